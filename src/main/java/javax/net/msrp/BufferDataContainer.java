@@ -0,0 +1,296 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.msrp.exceptions.IllegalUseException;
+import javax.net.msrp.exceptions.NotEnoughDataException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A data container for sending content held in buffers owned by the caller,
+ * heap or direct, without copying it.
+ * <p>
+ * The content is the remaining bytes of the given buffers, in order; their
+ * position and limit aren't changed. The connection sends from read-only
+ * views on them. Once all of the content has been written to the
+ * connection, the release callback is run, on the thread writing the
+ * connection, and the container no longer refers to the buffers. Until then
+ * the caller must leave their content as it is. {@link #dispose()} releases
+ * them right away, which is only safe when the message isn't being sent.
+ * 
+ * @see DataContainer
+ * @see OutgoingMessage#OutgoingMessage(String, Runnable, ByteBuffer...)
+ */
+public class BufferDataContainer
+    extends DataContainer
+{
+    private static final Logger logger =
+        LoggerFactory.getLogger(BufferDataContainer.class);
+
+    private ByteBuffer[] buffers;
+
+    /**
+     * Offset in the content of the first byte of each buffer.
+     */
+    private final long[] starts;
+
+    private final long size;
+
+    private long readOffset = 0;
+
+    private final Runnable release;
+
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    /**
+     * @param release run once the buffers are no longer referred to, may be
+     *            null.
+     * @param buffers the content.
+     */
+    public BufferDataContainer(Runnable release, ByteBuffer... buffers)
+    {
+        this.release = release;
+        this.buffers = new ByteBuffer[buffers.length];
+        starts = new long[buffers.length];
+        long total = 0;
+        for (int i = 0; i < buffers.length; i++)
+        {
+            this.buffers[i] = buffers[i].slice().asReadOnlyBuffer();
+            starts[i] = total;
+            total += buffers[i].remaining();
+        }
+        size = total;
+    }
+
+    /**
+     * @return the buffer holding the given offset in the content.
+     */
+    private int indexOf(long offset)
+    {
+        int i = buffers.length - 1;
+        while (i > 0 && starts[i] > offset)
+            i--;
+        while (i < buffers.length - 1 && !buffers[i].hasRemaining())
+            i++;					/* skip empty buffers */
+        return i;
+    }
+
+    /**
+     * Copy data out of the buffers.
+     */
+    private void copy(long offset, byte[] dst, int dstOffset, int length)
+    {
+        int i = indexOf(offset);
+        while (length > 0)
+        {
+            ByteBuffer buffer = buffers[i].duplicate();
+            buffer.position((int) (offset - starts[i]));
+            int part = Math.min(buffer.remaining(), length);
+            buffer.get(dst, dstOffset, part);
+            offset += part;
+            dstOffset += part;
+            length -= part;
+            i++;
+        }
+    }
+
+    /**
+     * Run the release callback, if not run before.
+     */
+    @Override
+    void release()
+    {
+        if (!released.compareAndSet(false, true))
+            return;
+        buffers = new ByteBuffer[0];
+        if (release != null)
+        {
+            try
+            {
+                release.run();
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Release callback failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return have the buffers been released?
+     */
+    public boolean isReleased()
+    {
+        return released.get();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#size()
+     */
+    @Override
+    public long size()
+    {
+        return size;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#currentReadOffset()
+     */
+    @Override
+    public long currentReadOffset()
+    {
+        return readOffset;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#hasDataToRead()
+     */
+    @Override
+    public boolean hasDataToRead()
+    {
+        return readOffset < size && !released.get();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#getView(int)
+     */
+    @Override
+    public ByteBuffer getView(int limit)
+    {
+        if (!hasDataToRead())
+            return ByteBuffer.allocate(0);
+        int i = indexOf(readOffset);
+        ByteBuffer view = buffers[i].duplicate();
+        view.position((int) (readOffset - starts[i]));
+        if (view.remaining() > limit)
+            view.limit(view.position() + limit);
+        readOffset += view.remaining();
+        return view.slice();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int)
+     */
+    @Override
+    public int get(byte[] dst, int offset)
+        throws IndexOutOfBoundsException
+    {
+        return get(dst, offset, dst.length - offset);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int, int)
+     */
+    @Override
+    public int get(byte[] dst, int offset, int limit)
+        throws IndexOutOfBoundsException
+    {
+        if (offset > dst.length - 1)
+            throw new IndexOutOfBoundsException();
+        if (!hasDataToRead())
+            return 0;
+        int length = (int) Math.min(Math.min(dst.length - offset, limit),
+                                size - readOffset);
+        copy(readOffset, dst, offset, length);
+        readOffset += length;
+        return length;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(long, long)
+     */
+    @Override
+    public ByteBuffer get(long offsetIndex, long size)
+        throws NotEnoughDataException, IllegalUseException
+    {
+        if (released.get())
+            throw new IllegalUseException("The buffers have been released");
+        if (size <= 0)
+            size = this.size - offsetIndex;
+        if (size < 0 || offsetIndex < 0)
+            throw new IllegalUseException("negative size or index");
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalUseException("Can't retrieve " + size +
+                " bytes in a buffer");
+        if (offsetIndex + size > this.size)
+            throw new NotEnoughDataException();
+        byte[] data = new byte[(int) size];
+        copy(offsetIndex, data, 0, data.length);
+        return ByteBuffer.wrap(data);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#rewindRead(long)
+     */
+    @Override
+    public void rewindRead(long nrPositions)
+    {
+        readOffset -= nrPositions;
+    }
+
+    /**
+     * Not supported, the buffers are the caller's.
+     * 
+     * @throws IllegalUseException always
+     */
+    @Override
+    public void put(long startingIndex, byte[] dataToPut)
+        throws IllegalUseException
+    {
+        throw new IllegalUseException("Can't put data in the caller's buffers");
+    }
+
+    /**
+     * Not supported, the buffers are the caller's.
+     * 
+     * @throws IllegalUseException always
+     */
+    @Override
+    public void put(byte byteToPut) throws IllegalUseException
+    {
+        throw new IllegalUseException("Can't put data in the caller's buffers");
+    }
+
+    /**
+     * Not supported, the buffers are the caller's.
+     * 
+     * @throws IllegalUseException always
+     */
+    @Override
+    public void put(long startingIndex, byte byteToPut)
+        throws IllegalUseException
+    {
+        throw new IllegalUseException("Can't put data in the caller's buffers");
+    }
+
+    /**
+     * Releases the buffers.
+     * 
+     * @see javax.net.msrp.DataContainer#dispose()
+     */
+    @Override
+    public void dispose()
+    {
+        release();
+    }
+}
@@ -0,0 +1,186 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of byte arrays that the short-lived buffers of the stack are
+ * borrowed from and returned to, instead of being garbage once used: I/O
+ * buffers, the header and body buffers of incoming transactions and blocks of
+ * received content.
+ * <p>
+ * Arrays come in size classes, the powers of two from {@value #MIN_SIZE} up
+ * to {@value #MAX_SIZE} bytes; a request is served from the smallest class
+ * that fits, so the array {@link #take(int) taken} may be larger than asked
+ * for. Larger requests are simply allocated. Each class keeps at most
+ * {@value #MAX_RETAINED} arrays, further returns are left to the garbage
+ * collector.
+ * <p>
+ * With debug logging enabled for this class, the pool tracks the arrays that
+ * are out: returning an array twice or one that didn't come from the pool is
+ * logged, and {@link #reportLeaks()} logs where the arrays that are still
+ * out were taken.
+ */
+class BufferPool
+{
+    private static final Logger logger =
+        LoggerFactory.getLogger(BufferPool.class);
+
+    private static final int MIN_SHIFT = 6;
+
+    private static final int MAX_SHIFT = 16;
+
+    /** Smallest size class */
+    static final int MIN_SIZE = 1 << MIN_SHIFT;
+
+    /** Largest size class */
+    static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+    /** Number of arrays kept per size class */
+    static final int MAX_RETAINED = 64;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ArrayDeque<byte[]>[] classes =
+        new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+
+    /**
+     * When detecting leaks, the arrays that are out mapped to where they were
+     * taken.
+     */
+    private final IdentityHashMap<byte[], Throwable> outstanding;
+
+    /**
+     * Create a pool, detecting leaks when debugging.
+     */
+    BufferPool()
+    {
+        this(logger.isDebugEnabled());
+    }
+
+    /**
+     * @param detectLeaks track the arrays that are out?
+     */
+    BufferPool(boolean detectLeaks)
+    {
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = new ArrayDeque<byte[]>();
+        outstanding = detectLeaks ? new IdentityHashMap<byte[], Throwable>()
+                                  : null;
+    }
+
+    /**
+     * @param size the number of bytes needed
+     * @return the index of the smallest class that fits, -1 if none
+     */
+    private static int classOf(int size)
+    {
+        if (size > MAX_SIZE)
+            return -1;
+        if (size <= MIN_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Borrow an array. Its content is undefined.
+     * 
+     * @param size the minimum number of bytes needed.
+     * @return an array of at least the given size.
+     */
+    byte[] take(int size)
+    {
+        int index = classOf(size);
+        if (index < 0)
+            return new byte[size];
+        byte[] buffer;
+        ArrayDeque<byte[]> pooled = classes[index];
+        synchronized (pooled)
+        {
+            buffer = pooled.poll();
+        }
+        if (buffer == null)
+            buffer = new byte[MIN_SIZE << index];
+        if (outstanding != null)
+        {
+            synchronized (outstanding)
+            {
+                outstanding.put(buffer, new Throwable("taken here"));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Return an array taken from this pool. The caller must not use it
+     * anymore.
+     * 
+     * @param buffer the array, ignored if null.
+     */
+    void give(byte[] buffer)
+    {
+        if (buffer == null)
+            return;
+        int index = classOf(buffer.length);
+        if (index < 0 || buffer.length != MIN_SIZE << index)
+            return;						// not one of ours
+        if (outstanding != null)
+        {
+            synchronized (outstanding)
+            {
+                if (outstanding.remove(buffer) == null)
+                {
+                    logger.warn("Buffer of " + buffer.length + " bytes returned"
+                        + " twice or not taken from the pool",
+                        new Throwable("returned here"));
+                    return;
+                }
+            }
+        }
+        ArrayDeque<byte[]> pooled = classes[index];
+        synchronized (pooled)
+        {
+            if (pooled.size() < MAX_RETAINED)
+                pooled.push(buffer);
+        }
+    }
+
+    /**
+     * Log the arrays that were taken and not returned (yet), when detecting
+     * leaks.
+     * 
+     * @return the number of arrays out, 0 when not detecting leaks.
+     */
+    int reportLeaks()
+    {
+        if (outstanding == null)
+            return 0;
+        synchronized (outstanding)
+        {
+            for (Map.Entry<byte[], Throwable> entry : outstanding.entrySet())
+                logger.debug("Buffer of " + entry.getKey().length +
+                    " bytes not returned", entry.getValue());
+            return outstanding.size();
+        }
+    }
+}
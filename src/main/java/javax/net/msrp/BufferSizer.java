@@ -0,0 +1,93 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+/**
+ * Sizes the I/O buffer of a connection to its traffic: small while it
+ * carries chat messages, large while bulk content is flowing.
+ * <p>
+ * The size starts at the minimum and doubles after each read or write that
+ * filled the buffer, up to the maximum. After {@value #SHRINK_AFTER}
+ * consecutive ones that used less than a quarter of it, it halves again.
+ */
+class BufferSizer
+{
+    /**
+     * Number of consecutive small reads or writes that shrink the buffer.
+     */
+    static final int SHRINK_AFTER = 16;
+
+    private final int min;
+
+    private final int max;
+
+    private int size;
+
+    /** number of consecutive small reads or writes	*/
+    private int small = 0;
+
+    /**
+     * @param min the size to start with and not to go below.
+     * @param max the size not to go above.
+     */
+    BufferSizer(int min, int max)
+    {
+        if (min <= 0 || max < min)
+            throw new IllegalArgumentException(
+                "Invalid buffer sizes: " + min + " - " + max);
+        this.min = min;
+        this.max = max;
+        size = min;
+    }
+
+    /**
+     * @return the size the buffer should have.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Account for a read or write.
+     * 
+     * @param bytes the number of bytes read or written.
+     * @return true if the size of the buffer changed.
+     */
+    boolean used(int bytes)
+    {
+        if (bytes >= size)
+        {
+            small = 0;
+            if (size == max)
+                return false;
+            size = (int) Math.min(2L * size, max);
+            return true;
+        }
+        if (bytes >= size / 4 || size == min)
+        {
+            small = 0;
+            return false;
+        }
+        if (++small < SHRINK_AFTER)
+            return false;
+        small = 0;
+        size = Math.max(size / 2, min);
+        return true;
+    }
+}
@@ -0,0 +1,431 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+import javax.net.msrp.exceptions.IllegalUseException;
+import javax.net.msrp.exceptions.NotEnoughDataException;
+import javax.net.msrp.exceptions.NotEnoughStorageException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A data container that reads the content of an outgoing message from a
+ * channel or stream of unknown length, as it is sent.
+ * <p>
+ * The source is read ahead by the source readers of the stack, so a source
+ * that keeps the reader waiting doesn't hold up the connection: when no data
+ * was read yet the container has none to read, and the message is continued
+ * once there is. A reader does a single read of the source at a time and is
+ * handed to it again while there is room for the data. Non-blocking channels
+ * aren't supported. The message is sent with
+ * a total size of '*' until the source is read to its end; see
+ * {@link OutgoingMessage#OutgoingMessage(String, ReadableByteChannel)}.
+ * <p>
+ * Only the data around the read offset is held: enough to rewind a send
+ * buffer when an end-line is found in the content. The container can't be
+ * written to and data can't be retrieved at random. A source that fails to
+ * be read ends there, the failure is logged.
+ * 
+ * @see Stack#setSourceReaderThreads(int)
+ * @see DataContainer
+ */
+public class ChannelDataContainer
+    extends DataContainer
+{
+    private static final Logger logger =
+        LoggerFactory.getLogger(ChannelDataContainer.class);
+
+    private final ReadableByteChannel source;
+
+    /**
+     * Number of bytes kept before the read offset, to rewind.
+     */
+    private final int keep;
+
+    private final byte[] buffer;
+
+    /**
+     * Data read from the source and not yet stored in buffer.
+     */
+    private final ByteBuffer ahead;
+
+    /**
+     * Offset in the content of the first byte in buffer.
+     */
+    private long start = 0;
+
+    /**
+     * Position of the read offset in buffer.
+     */
+    private int position = 0;
+
+    /**
+     * Number of bytes in buffer.
+     */
+    private int filled = 0;
+
+    /**
+     * Has the source been read to its end?
+     */
+    private boolean endOfSource = false;
+
+    /**
+     * Has all of the source been stored in buffer?
+     */
+    private boolean ended = false;
+
+    private boolean closed = false;
+
+    /**
+     * Is a read of the source queued or running?
+     */
+    private boolean reading = false;
+
+    private final Runnable readTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            readAhead();
+        }
+    };
+
+    /**
+     * To run once more data was read or the source ended, null if none.
+     */
+    private Runnable whenReadable = null;
+
+    /**
+     * @param source the channel to read the content from, in blocking mode.
+     * @throws IllegalArgumentException if the channel is non-blocking.
+     */
+    public ChannelDataContainer(ReadableByteChannel source)
+    {
+        if (source instanceof SelectableChannel &&
+                !((SelectableChannel) source).isBlocking())
+            throw new IllegalArgumentException(
+                "Non-blocking channels are not supported");
+        this.source = source;
+        keep = 2 * Stack.getIOBufferSize();
+        buffer = new byte[keep + Stack.getIOBufferSize()];
+        ahead = ByteBuffer.allocate(Stack.getIOBufferSize());
+    }
+
+    /**
+     * @param source the stream to read the content from.
+     */
+    public ChannelDataContainer(InputStream source)
+    {
+        this(Channels.newChannel(source));
+    }
+
+    /**
+     * Have the source read ahead if not done yet, without waiting for any
+     * data.
+     * 
+     * @return is there data to consume?
+     */
+    private boolean fill()
+    {
+        if (position < filled)
+            return true;
+        schedule();
+        return position < filled;
+    }
+
+    /**
+     * Store what was read ahead and queue the next read of the source, if
+     * there is room for its data and none is queued yet.
+     */
+    private void schedule()
+    {
+        if (reading || closed)
+            return;
+        store();
+        if (endOfSource || ahead.position() > 0)
+            return;
+        reading = true;
+        Stack.getSourceReaders().execute(readTask);
+    }
+
+    /**
+     * Read the source once and store the data, while there is room for it.
+     */
+    private void readAhead()
+    {
+        int read;
+        try
+        {
+            read = source.read(ahead);
+        }
+        catch (IOException e)
+        {
+            if (isOpen())
+                logger.error("Reading the source failed, ending the content",
+                    e);
+            read = -1;
+        }
+        Runnable toRun;
+        synchronized (this)
+        {
+            endOfSource = read < 0;
+            reading = false;
+            toRun = closed ? null : whenReadable;
+            whenReadable = null;
+            schedule();
+        }
+        if (toRun != null)
+            toRun.run();
+    }
+
+    /**
+     * Move the data read ahead into buffer, as far as there is room.
+     */
+    private void store()
+    {
+        ahead.flip();
+        if (ahead.hasRemaining() && makeRoom())
+        {
+            int count = Math.min(ahead.remaining(), buffer.length - filled);
+            ahead.get(buffer, filled, count);
+            filled += count;
+        }
+        ahead.compact();
+        if (endOfSource && ahead.position() == 0 && !ended)
+        {
+            ended = true;
+            logger.trace("Read all " + size() + " bytes of the source");
+        }
+    }
+
+    /**
+     * Drop the data no longer kept to rewind, to hold more.
+     * 
+     * @return is there room for more data?
+     */
+    private boolean makeRoom()
+    {
+        if (position > keep)
+        {
+            int drop = position - keep;
+            System.arraycopy(buffer, drop, buffer, 0, filled - drop);
+            start += drop;
+            position -= drop;
+            filled -= drop;
+        }
+        return filled < buffer.length;
+    }
+
+    private synchronized boolean isOpen()
+    {
+        return !closed;
+    }
+
+    /**
+     * @return true, the length of the source is unknown until it ended.
+     */
+    @Override
+    boolean isStreamed()
+    {
+        return true;
+    }
+
+    /**
+     * Have the given task run once there is data to read, unless there is
+     * some already or the source ended.
+     * 
+     * @param task what to do with the data, run by the reading thread.
+     * @return true when the task will be run, false when there is data or
+     *         the source ended: no need to wait.
+     */
+    @Override
+    synchronized boolean whenReadable(Runnable task)
+    {
+        if (fill() || ended || closed)
+            return false;
+        whenReadable = task;
+        return true;
+    }
+
+    /**
+     * @return has all of the source been read and consumed?
+     */
+    @Override
+    synchronized boolean isExhausted()
+    {
+        return ended && position >= filled;
+    }
+
+    /**
+     * @return has the source been read to its end? If so, {@link #size()}
+     *         is the length of the content.
+     */
+    @Override
+    public synchronized boolean isEnded()
+    {
+        return ended;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#hasDataToRead()
+     */
+    @Override
+    public synchronized boolean hasDataToRead()
+    {
+        return fill();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int)
+     */
+    @Override
+    public int get(byte[] dst, int offset)
+        throws IndexOutOfBoundsException, Exception
+    {
+        return get(dst, offset, dst.length - offset);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int, int)
+     */
+    @Override
+    public synchronized int get(byte[] dst, int offset, int limit)
+        throws IndexOutOfBoundsException, Exception
+    {
+        if (offset > dst.length - 1)
+            throw new IndexOutOfBoundsException();
+        if (!fill())
+            return 0;
+        int count = Math.min(Math.min(limit, dst.length - offset),
+                            filled - position);
+        System.arraycopy(buffer, position, dst, offset, count);
+        position += count;
+        schedule();				// room for the reader
+        return count;
+    }
+
+    /**
+     * Not supported, the data isn't kept once sent.
+     * 
+     * @throws IllegalUseException always
+     */
+    @Override
+    public ByteBuffer get(long offsetIndex, long size)
+        throws NotEnoughDataException, IllegalUseException
+    {
+        throw new IllegalUseException(
+            "Data from a channel can only be read in order");
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#currentReadOffset()
+     */
+    @Override
+    public synchronized long currentReadOffset()
+    {
+        return start + position;
+    }
+
+    /**
+     * @throws IllegalStateException when rewinding beyond the data held.
+     * @see javax.net.msrp.DataContainer#rewindRead(long)
+     */
+    @Override
+    public synchronized void rewindRead(long nrPositions)
+    {
+        if (nrPositions > position)
+            throw new IllegalStateException("Can't rewind " + nrPositions +
+                " bytes, only " + position + " are held");
+        position -= nrPositions;
+    }
+
+    /**
+     * @return the number of bytes read from the source so far.
+     * @see #isEnded()
+     * @see javax.net.msrp.DataContainer#size()
+     */
+    @Override
+    public synchronized long size()
+    {
+        return start + filled;
+    }
+
+    /**
+     * Not supported, the container is read-only.
+     * 
+     * @throws IllegalUseException always
+     */
+    @Override
+    public void put(long startingIndex, byte[] dataToPut)
+        throws NotEnoughStorageException, IllegalUseException
+    {
+        throw new IllegalUseException("Can't put data in a channel source");
+    }
+
+    /**
+     * Not supported, the container is read-only.
+     * 
+     * @throws IllegalUseException always
+     */
+    @Override
+    public void put(byte byteToPut)
+        throws NotEnoughStorageException, IllegalUseException
+    {
+        throw new IllegalUseException("Can't put data in a channel source");
+    }
+
+    /**
+     * Not supported, the container is read-only.
+     * 
+     * @throws IllegalUseException always
+     */
+    @Override
+    public void put(long startingIndex, byte byteToPut)
+        throws NotEnoughStorageException, IllegalUseException
+    {
+        throw new IllegalUseException("Can't put data in a channel source");
+    }
+
+    /**
+     * Closes the source, which ends a read of it that is waiting.
+     * 
+     * @see javax.net.msrp.DataContainer#dispose()
+     */
+    @Override
+    public synchronized void dispose()
+    {
+        closed = true;
+        whenReadable = null;
+        try
+        {
+            source.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Closing the source failed", e);
+        }
+    }
+}
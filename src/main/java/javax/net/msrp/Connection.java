@@ -19,15 +19,16 @@ package javax.net.msrp;
 import java.io.*;
 import java.net.*;
 import java.nio.*;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Observable;
 import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.msrp.exceptions.ConnectionLostException;
 import javax.net.msrp.exceptions.ParseException;
@@ -44,7 +45,8 @@ import org.slf4j.LoggerFactory;
 /**
  * This class represents an MSRP connection.
  * 
- * It has one pair of threads associated for writing and reading.
+ * It has one pair of threads associated for writing and reading, unless the
+ * stack uses the reactor engine; then its I/O is driven by a {@link Reactor}.
  * 
  * It is also responsible for some parsing, including:
  * Identifying MSRP transaction requests and responses;
@@ -62,11 +64,12 @@ class Connection extends Observable implements Runnable
     public static final int OUTPUTBUFFERLENGTH = 2048;
 
     public Connection(SocketChannel newSocketChannel)
-        throws URISyntaxException
+        throws URISyntaxException, SocketException
     {
         socketChannel = newSocketChannel;
         random = new Random();
         Socket socket = socketChannel.socket();
+        sizeSocketBuffers(socket);
         URI newLocalURI =
             new URI("msrp", null, socket.getInetAddress().getHostAddress(),
                 socket.getPort(), null, null, null);
@@ -100,6 +103,7 @@ class Connection extends Observable implements Runnable
         // bind a socket to a local TEMP port.
         socketChannel = SelectorProvider.provider().openSocketChannel();
         Socket socket = socketChannel.socket();
+        sizeSocketBuffers(socket);
         InetSocketAddress socketAddr = new InetSocketAddress(address, 0);
         socket.bind(socketAddr);
 
@@ -112,6 +116,24 @@ class Connection extends Observable implements Runnable
         // this.addObserver(transactionManager);
     }
 
+    /**
+     * Apply the configured socket buffer sizes to the given socket, before
+     * it is connected so the receive window can be scaled accordingly.
+     * 
+     * @param socket the socket.
+     * @throws SocketException if the sizes couldn't be set.
+     * @see Stack#setSocketBufferSize(int)
+     */
+    static void sizeSocketBuffers(Socket socket) throws SocketException
+    {
+        int size = Stack.getSocketBufferSize();
+        if (size > 0)
+        {
+            socket.setSendBufferSize(size);
+            socket.setReceiveBufferSize(size);
+        }
+    }
+
     private TransactionManager transactionManager;
 
     /**
@@ -248,6 +270,40 @@ class Connection extends Observable implements Runnable
         }
     }
 
+    /**
+     * Number of sessions using this connection, guarded by the {@link Stack}.
+     */
+    private int references = 0;
+
+    /**
+     * Register another session using this connection.
+     */
+    void addReference()
+    {
+        references++;
+    }
+
+    /**
+     * Unregister a session that used this connection.
+     * 
+     * @return the number of sessions still using it.
+     */
+    int removeReference()
+    {
+        if (references > 0)
+            references--;
+        return references;
+    }
+
+    /**
+     * @return true if the connection is established and not closing, so it can
+     *         take more sessions.
+     */
+    protected boolean isUsable()
+    {
+        return !closing && isEstablished();
+    }
+
     /**
      * @return if the socket associated with the connection is bound
      */
@@ -290,12 +346,28 @@ class Connection extends Observable implements Runnable
     	if (closing)
     		return;						// already closed
     	closing = true;
+    	synchronized (this)
+    	{
+    		if (idleTimer != null)
+    			idleTimer.cancel();
+    		idleTimer = null;
+    	}
     	try
     	{
     		if (socketChannel != null)
     			socketChannel.close();
 		}
     	catch (IOException e) { /* empty */; }
+    	synchronized (writeLock)
+    	{
+    		writeLock.notifyAll();	// release the write cycle
+    	}
+    	synchronized (readLock)
+    	{
+    		readLock.notifyAll();	// release a paused read cycle
+    	}
+    	if (transactionManager != null)
+    		transactionManager.connectionClosed();
     }
 
     public void messageInterrupt(Message message)
@@ -353,6 +425,109 @@ class Connection extends Observable implements Runnable
     private Thread writeThread = null;
     private Thread readThread = null;
 
+    /**
+     * Guards {@link #writePending}, the write cycle waits on it for work.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Set when transactions were queued since the write cycle last looked.
+     */
+    private boolean writePending = false;
+
+    /**
+     * Guards {@link #readPaused}, the read cycle waits on it to resume.
+     */
+    private final Object readLock = new Object();
+
+    /**
+     * Set while the application doesn't keep up with the data received.
+     */
+    private boolean readPaused = false;
+
+    /**
+     * Stop reading from the channel, so the sender is held back.
+     */
+    private final Runnable pauseReading = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized (readLock)
+            {
+                readPaused = true;
+            }
+            if (reactor != null)
+                reactor.wantRead(Connection.this, false);
+        }
+    };
+
+    /**
+     * Read from the channel again.
+     */
+    private final Runnable resumeReading = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized (readLock)
+            {
+                if (!readPaused)
+                    return;
+                readPaused = false;
+                readLock.notifyAll();
+            }
+            if (reactor != null)
+                reactor.wantRead(Connection.this, true);
+        }
+    };
+
+    /**
+     * The reactor driving the I/O of this connection, null when this
+     * connection has its own read and write threads.
+     */
+    private Reactor reactor = null;
+
+    private SelectionKey selectionKey = null;
+
+    /**
+     * Has a write been requested from the reactor that it didn't handle yet?
+     */
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    /**
+     * With the reactor engine, the staging array for data to send. Only
+     * borrowed from the {@link BufferPool} while there is data to send.
+     */
+    private byte[] reactorOutData;
+
+    /**
+     * With the reactor engine, the buffers to send, of which those from
+     * reactorOutFirst up to reactorOutCount are still (partly) pending.
+     * @see TransactionManager#getBuffersToSend(byte[], ByteBuffer[])
+     */
+    private ByteBuffer[] reactorOutBuffers;
+    private int reactorOutFirst = 0;
+    private int reactorOutCount = 0;
+
+    /**
+     * With the reactor engine, sizes the staging array to the traffic.
+     */
+    private final BufferSizer writeSizer =
+        new BufferSizer(OUTPUTBUFFERLENGTH, Stack.getIOBufferSize());
+
+    /**
+     * Time (ms) this connection may go without traffic, 0 when not watched.
+     * @see Stack#setConnectionIdleTimeout(long)
+     */
+    private long idleTimeout = 0;
+
+    /** time of the last traffic on this connection	*/
+    private volatile long lastActivity;
+
+    /** pending check for inactivity	*/
+    private TimerWheel.Timeout idleTimer = null;
+
     private void writeCycle() throws ConnectionWriteException
     {
         /*
@@ -361,44 +536,76 @@ class Connection extends Observable implements Runnable
          */
         Thread.currentThread().setName("Connection: " + localURI + " writeCycle thread");
 
-        byte[] outData = new byte[OUTPUTBUFFERLENGTH];
-        ByteBuffer outByteBuffer = ByteBuffer.wrap(outData);
+        BufferSizer sizer =
+            new BufferSizer(OUTPUTBUFFERLENGTH, Stack.getIOBufferSize());
+        byte[] outData = Stack.getBufferPool().take(sizer.size());
+        ByteBuffer[] outBuffers =
+            new ByteBuffer[TransactionManager.GATHER_BUFFERS];
 
-        int wroteNrBytes = 0;
-        while (!closing)
+        try
         {
-            try
+            while (!closing)
             {
-                if (transactionManager.hasDataToSend())
+                try
                 {
-                    int toWriteNrBytes;
-
-                    outByteBuffer.clear();
-                    // toWriteNrBytes = transactionManager.dataToSend(outData);
-                    // FIXME remove comment and change method name after the
-                    // tests go well
-                    toWriteNrBytes = transactionManager.getDataToSend(outData);
-
-                    outByteBuffer.limit(toWriteNrBytes);
-                    wroteNrBytes = 0;
-                    while (wroteNrBytes != toWriteNrBytes)
-                        wroteNrBytes += socketChannel.write(outByteBuffer);
-                }
-                else
-                {
-                    // TODO FIXME do this in another way, maybe with notify!
-                    synchronized (writeThread)
+                    if (transactionManager.hasDataToSend())
                     {
-                        writeThread.wait(200);
+                        if (transactionManager.transferDataToSend(
+                                socketChannel) > 0)
+                        {				// sent straight from a file
+                            active();
+                            continue;
+                        }
+                        int count = transactionManager.getBuffersToSend(
+                            outData, outBuffers);
+                        long toWriteNrBytes = remaining(outBuffers, 0, count);
+                        boolean resize = sizer.used((int) toWriteNrBytes);
+                        /*
+                         * The channel is in blocking mode: a full send buffer
+                         * parks this thread inside write(), it doesn't spin.
+                         */
+                        while (toWriteNrBytes > 0)
+                            toWriteNrBytes -=
+                                socketChannel.write(outBuffers, 0, count);
+                        Arrays.fill(outBuffers, 0, count, null);
+                        transactionManager.buffersWritten();
+                        active();
+                        if (resize)
+                        {
+                            Stack.getBufferPool().give(outData);
+                            outData = Stack.getBufferPool().take(sizer.size());
+                        }
                     }
+                    else
+                        awaitWrite();
+                }
+                catch (Exception e)
+                {
+                	if (!closing)
+                		throw new ConnectionWriteException(e);
                 }
-            }
-            catch (Exception e)
-            {
-            	if (!closing)
-            		throw new ConnectionWriteException(e);
             }
         }
+        finally
+        {
+            Stack.getBufferPool().give(outData);
+        }
+    }
+
+    /**
+     * Park the write cycle until {@link #notifyWriteThread()} signals new work
+     * or the connection is closed.
+     * 
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void awaitWrite() throws InterruptedException
+    {
+        synchronized (writeLock)
+        {
+            while (!writePending && !closing)
+                writeLock.wait();
+            writePending = false;
+        }
     }
 
     /**
@@ -411,30 +618,286 @@ class Connection extends Observable implements Runnable
 
     private void readCycle() throws ConnectionReadException
     {
-        byte[] inData = new byte[OUTPUTBUFFERLENGTH];
+        BufferSizer sizer =
+            new BufferSizer(OUTPUTBUFFERLENGTH, Stack.getIOBufferSize());
+        byte[] inData = Stack.getBufferPool().take(sizer.size());
         ByteBuffer inByteBuffer = ByteBuffer.wrap(inData);
         int readNrBytes = 0;
-        while (readNrBytes != -1 && !closing)
+        try
         {
-            inByteBuffer.clear();
-            try
+            while (readNrBytes != -1 && !closing)
             {
-                readNrBytes = socketChannel.read(inByteBuffer);
+                inByteBuffer.clear();
+                try
+                {
+                    synchronized (readLock)
+                    {
+                        while (readPaused && !closing)
+                            readLock.wait();
+                    }
+                    readNrBytes = socketChannel.read(inByteBuffer);
 
-                if (readNrBytes != -1 && readNrBytes != 0)
+                    if (readNrBytes != -1 && readNrBytes != 0)
+                    {
+                        active();
+                        inByteBuffer.flip();
+                        preParser.preParse(inData, inByteBuffer.limit());
+                        if (sizer.used(readNrBytes))
+                        {
+                            Stack.getBufferPool().give(inData);
+                            inData = Stack.getBufferPool().take(sizer.size());
+                            inByteBuffer = ByteBuffer.wrap(inData);
+                        }
+                    }
+                }
+                catch (Exception e)
                 {
-                    inByteBuffer.flip();
-                    preParser.preParse(inData, inByteBuffer.limit());
+                	if (!closing)
+                		throw new ConnectionReadException(e);
                 }
             }
-            catch (Exception e)
+        }
+        finally
+        {
+            Stack.getBufferPool().give(inData);
+        }
+    }
+
+    /**
+     * Have the I/O of this (connected) connection driven by a reactor instead
+     * of by a pair of threads.
+     * 
+     * @throws IOException if no reactor could be started.
+     * @see Stack#setUseReactors(boolean)
+     */
+    protected void registerWithReactor() throws IOException
+    {
+        reactor = Stack.getReactor(this);
+        reactor.register(this);
+    }
+
+    SocketChannel getSocketChannel()
+    {
+        return socketChannel;
+    }
+
+    SelectionKey getSelectionKey()
+    {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey key)
+    {
+        selectionKey = key;
+    }
+
+    /**
+     * Called by the reactor when the channel has data to be read.
+     * Counterpart of {@link #readCycle()} for the reactor engine.
+     * 
+     * @param inBuffer the read buffer of the reactor, to read into.
+     */
+    void readReady(ByteBuffer inBuffer)
+    {
+        try
+        {
+            inBuffer.clear();
+            int readNrBytes = socketChannel.read(inBuffer);
+            if (readNrBytes == -1)
+            {
+                logger.debug("Connection " + localURI + " closed by peer");
+                close();
+            }
+            else if (readNrBytes > 0)
+            {
+                active();
+                preParser.preParse(inBuffer.array(), readNrBytes);
+            }
+        }
+        catch (Exception e)
+        {
+            if (!closing)
             {
-            	if (!closing)
-            		throw new ConnectionReadException(e);
+                close();
+                notifyConnectionLoss(new ConnectionReadException(e));
             }
         }
     }
 
+    /**
+     * Called by the reactor when the channel can take more data.
+     * Counterpart of {@link #writeCycle()} for the reactor engine: writes as
+     * much as the socket takes and keeps waiting for write readiness while
+     * there is data left. The write buffer is returned to the pool once all
+     * is sent.
+     */
+    void writeReady()
+    {
+        writeScheduled.set(false);
+        active();
+        try
+        {
+            if (reactorOutData == null)
+            {
+                reactorOutData =
+                    Stack.getBufferPool().take(writeSizer.size());
+                reactorOutBuffers =
+                    new ByteBuffer[TransactionManager.GATHER_BUFFERS];
+            }
+            if (!flushReactorOut())
+                return;					// socket buffer full, wait.
+            while (transactionManager.hasDataToSend())
+            {
+                long transferred =
+                    transactionManager.transferDataToSend(socketChannel);
+                if (transferred == 0)
+                    return;				// socket buffer full, wait.
+                if (transferred > 0)
+                    continue;			// sent straight from a file
+                reactorOutCount = transactionManager.getBuffersToSend(
+                    reactorOutData, reactorOutBuffers);
+                reactorOutFirst = 0;
+                if (reactorOutCount == 0)
+                {
+                    transactionManager.buffersWritten();
+                    break;				// nothing ready, wait for more.
+                }
+                boolean resize = writeSizer.used((int)
+                    remaining(reactorOutBuffers, 0, reactorOutCount));
+                if (!flushReactorOut())
+                    return;				// socket buffer full, wait.
+                if (resize)
+                {
+                    Stack.getBufferPool().give(reactorOutData);
+                    reactorOutData =
+                        Stack.getBufferPool().take(writeSizer.size());
+                }
+            }
+            selectionKey.interestOps(
+                selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+            /*
+             * a request queued while writing may have found the write
+             * scheduled already: keep waiting for write readiness for it.
+             */
+            if (writeScheduled.get())
+                selectionKey.interestOps(
+                    selectionKey.interestOps() | SelectionKey.OP_WRITE);
+            Stack.getBufferPool().give(reactorOutData);
+            reactorOutData = null;
+            reactorOutBuffers = null;
+        }
+        catch (Exception e)
+        {
+            if (!closing)
+            {
+                close();
+                notifyConnectionLoss(new ConnectionWriteException(e));
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes remaining in the given buffers.
+     */
+    private static long remaining(ByteBuffer[] buffers, int first, int count)
+    {
+        long remaining = 0;
+        for (int i = first; i < count; i++)
+            remaining += buffers[i].remaining();
+        return remaining;
+    }
+
+    /**
+     * Write as much as the socket takes of the buffers pending with the
+     * reactor engine. Once all got written, the transaction manager is told.
+     * 
+     * @return true if all got written.
+     * @throws IOException if writing failed.
+     */
+    private boolean flushReactorOut() throws IOException
+    {
+        if (reactorOutFirst < reactorOutCount)
+            socketChannel.write(reactorOutBuffers, reactorOutFirst,
+                reactorOutCount - reactorOutFirst);
+        while (reactorOutFirst < reactorOutCount &&
+                !reactorOutBuffers[reactorOutFirst].hasRemaining())
+            reactorOutBuffers[reactorOutFirst++] = null;
+        if (reactorOutFirst < reactorOutCount)
+            return false;
+        transactionManager.buffersWritten();
+        return true;
+    }
+
+    /**
+     * Start watching this (connected) connection for inactivity, when an idle
+     * time-out has been configured.
+     * 
+     * @see Stack#setConnectionIdleTimeout(long)
+     */
+    protected void watchIdle()
+    {
+        idleTimeout = Stack.getConnectionIdleTimeout();
+        if (idleTimeout > 0)
+        {
+            lastActivity = System.currentTimeMillis();
+            scheduleIdleCheck(idleTimeout);
+        }
+    }
+
+    private void active()
+    {
+        if (idleTimeout > 0)
+            lastActivity = System.currentTimeMillis();
+    }
+
+    private synchronized void scheduleIdleCheck(long delay)
+    {
+        if (closing)
+            return;
+        idleTimer = Stack.getTimerWheel().schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    checkIdle();
+                }
+            }, delay);
+    }
+
+    /**
+     * Close this connection when it has been idle for too long, otherwise
+     * check again when it might be.
+     * <p>
+     * Run by the timer wheel, so closing (which tells the sessions) is handed
+     * off to the stack's worker.
+     */
+    private void checkIdle()
+    {
+        final long idle = System.currentTimeMillis() - lastActivity;
+        if (idle < idleTimeout)
+        {
+            scheduleIdleCheck(idleTimeout - idle);
+            return;
+        }
+        if (closing)
+            return;
+        Stack.getWorker().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (closing)
+                        return;
+                    logger.info("Connection " + localURI + " idle for " +
+                                idle + " ms, closing");
+                    close();
+                    notifyConnectionLoss(new ConnectionReadException(
+                        new SocketTimeoutException(
+                            "No traffic for " + idle + " ms")));
+                }
+            });
+    }
+
     /**
      * Constantly receives and sends new transactions
      */
@@ -505,258 +968,440 @@ class Connection extends Observable implements Runnable
 
     private boolean receivingTransaction = false;
 
+    /**
+     * Maximum size of a header line kept while waiting for its terminator.
+     */
+    private static final int MAX_LINE_LENGTH = 3024;
+
+    /**
+     * Header data received without its line terminator yet.
+     */
+    private byte[] lineBuffer = new byte[128];
+
+    private int lineLength = 0;
+
     private Transaction incomingTransaction = null;
 
+    /**
+     * Transaction id of an incoming response that is being skipped, as the
+     * request it responds to is unknown (or has timed out already).
+     */
+    private String skippedResponseTid = null;
+
+    /**
+     * Did the last header data parsed end with the empty line that starts
+     * content-stuff?
+     */
+    private boolean contentFollows = false;
+
     String getCurrentIncomingTid() {
     	if (incomingTransaction != null)
     		return incomingTransaction.getTID();
     	return null;
     }
 
-    /* Find the MSRP start line.
-     * the TId has to contain at least 64 bits of randomness.
-     * 
-     * req-start = pMSRP SP transact-id SP method CRLF
-     * resp-start= pMSRP SP transact-id SP status-cdoe [SP comment CRLF
+    /**
+     * The request methods, their names as bytes.
      */
-    private static Pattern req_start = Pattern.compile(
-                    "(^MSRP) (\\p{Alnum}[\\p{Alnum}\\-=%+.]{3,31}) ([\\p{Upper}]{1,20})\r\n(.*)",
-                    Pattern.DOTALL);
-    private static Pattern resp_start = Pattern.compile(
-                    "(^MSRP) (\\p{Alnum}[\\p{Alnum}\\-=%+.]{3,31}) ((\\d{3})([^\r\n]*)\r\n)(.*)",
-                    Pattern.DOTALL);
+    private static final TransactionType[] methods = TransactionType.values();
+    private static final byte[][] methodNames = new byte[methods.length][];
+    static
+    {
+        for (int i = 0; i < methods.length; i++)
+            methodNames[i] = methods[i].name().getBytes(TextUtils.usascii);
+    }
+
+    private static final byte[] startLinePrefix =
+        "MSRP ".getBytes(TextUtils.usascii);
+
+    /** Number of dashes that start an end-line. */
+    private static final int ENDLINE_DASHES = 7;
 
     /**
-     * Parse the incoming data, identifying transaction start or end,
-     * creating a new transaction according RFC.
+     * Parse the incoming header data, identifying transaction start or end,
+     * creating a new transaction according RFC. Parsing stops at the empty
+     * line that ends the headers of a transaction with content-stuff.
      * 
      * @param incomingBytes raw byte data to be handled
      * @param offset the starting position in the given byte array we should
      *            consider for processing
      * @param length the number of bytes to process starting from the offset
      *            position
-     * @param inContentStuff true if it is receiving data regarding the body
-     *            of a transaction, false otherwise
+     * @return the offset of the content-stuff that follows the headers, or
+     *         -1 if all of the data was header data.
      * @throws ParseException Generic parsing exception
      */
-    void parser(byte[] incomingBytes, int offset, int length,
-        boolean inContentStuff) throws ParseException
+    int parseHeaderData(byte[] incomingBytes, int offset, int length)
+        throws ParseException
     {
         if (length < 1)                 /* nothing to parse, please move along  */
+            return -1;
+        int end = offset + length;
+        contentFollows = false;
+        /*
+         * A read can end anywhere: an unterminated last line (a start-
+         * or end-line maybe) is kept until the rest of it is received.
+         */
+        if (lineLength > 0)
+        {
+            int endOfLine;
+            if (lineBuffer[lineLength - 1] == '\r' &&
+                incomingBytes[offset] == '\n')
+                endOfLine = offset + 1;
+            else
+                endOfLine = findEndOfLine(incomingBytes, offset, end);
+            keepLine(incomingBytes, offset,
+                endOfLine < 0 ? end : endOfLine);
+            if (endOfLine < 0)
+                return -1;
+            int lineEnd = lineLength;
+            lineLength = 0;
+            parseLines(lineBuffer, 0, lineEnd);
+            if (contentFollows)
+                return endOfLine;
+            offset = endOfLine;
+        }
+        int rest = parseLines(incomingBytes, offset, end);
+        if (contentFollows)
+            return rest;
+        keepLine(incomingBytes, rest, end);
+        return -1;
+    }
+
+    /**
+     * Hand received content-stuff to the transaction being received.
+     * 
+     * @param incomingBytes the buffer
+     * @param offset start of the content-stuff in the buffer
+     * @param length number of bytes of content-stuff
+     */
+    void parseContent(byte[] incomingBytes, int offset, int length)
+    {
+        if (length < 1)
             return;
-        if (inContentStuff)
+        try
         {
-            try
+            incomingTransaction.parse(incomingBytes, offset, length, true);
+        }
+        catch (Exception e)
+        {
+            logger.error("Error parsing - ", e);
+        }
+        Message message = incomingTransaction.getMessage();
+        if (message != null && message.getDataContainer() != null)
+            message.getDataContainer().holdBack(pauseReading, resumeReading);
+    }
+
+    /**
+     * Signal the end-line of the transaction being received.
+     * 
+     * @param flag the continuation flag of the end-line
+     */
+    void endOfTransaction(char flag)
+    {
+        logger.trace("found end of " + incomingTransaction);
+        incomingTransaction.signalizeEnd(flag);
+
+        setChanged();
+        notifyObservers(incomingTransaction);
+        receivingTransaction = false;
+    }
+
+    /**
+     * Handle all complete lines of header data in the given range: find
+     * the start- and end-lines of transactions and hand the lines in between
+     * to the transaction being received.
+     * 
+     * @param data	the buffer
+     * @param start	offset of the first line
+     * @param end	end of the data in the buffer
+     * @return		the offset of the unterminated last line (or end if none),
+     * 				or of the content-stuff when that follows
+     * @throws ParseException when no start of a transaction was found.
+     */
+    private int parseLines(byte[] data, int start, int end)
+        throws ParseException
+    {
+        int headerStart = start;		// header data not yet handed over
+        int endOfLine;
+        while ((endOfLine = findEndOfLine(data, start, end)) >= 0)
+        {
+            if (!receivingTransaction)
             {
-                incomingTransaction.parse(incomingBytes, offset, length,
-                    inContentStuff);
+                parseStartLine(data, start, endOfLine);
+                headerStart = endOfLine;
             }
-            catch (Exception e)
+            else if (skippedResponseTid != null)
             {
-                logger.error("Error parsing - ", e);
+                if (endLineFlag(skippedResponseTid, data, start, endOfLine) >= 0)
+                {
+                    skippedResponseTid = null;
+                    receivingTransaction = false;
+                }
+                headerStart = endOfLine;
             }
-        }
-        else
-        {								// We are receiving headers.
-            String incomingString =
-                new String(incomingBytes, offset, length, TextUtils.utf8);
-            String toParse = incomingString;
-            String tID;
-            /*
-             * For calls containing multiple transactions in incomingString
-             */
-            ArrayList<String> txRest = new ArrayList<String>();
-
-            do
+            else if (endOfLine - start == 2)
+            {							// empty line: content-stuff follows
+                if (incomingTransaction == null)
+                    throw new ParseException("no transaction found");
+                parseHeaders(data, headerStart, endOfLine);
+                incomingTransaction.hasContentStuff = true;
+                contentFollows = true;
+                return endOfLine;
+            }
+            else
             {
-                /*
-                 * Deal with reception of multiple transactions.
-                 */
-                if (txRest.size() > 0)
+                int flag = endLineFlag(incomingTransaction.getTID(), data,
+                                start, endOfLine);
+                if (flag >= 0)
                 {
-                    toParse = txRest.remove(0);
+                    parseHeaders(data, headerStart, start);
+                    endOfTransaction((char) flag);
+                    headerStart = endOfLine;
                 }
-                if (txRest.size() > 0)
-                    throw new RuntimeException(
-                    		"restTransactions were never meant "
-                            + "to have more than one element!");
+            }
+            start = endOfLine;
+        }
+        if (receivingTransaction && skippedResponseTid == null)
+            parseHeaders(data, headerStart, start);
+        return start;
+    }
 
-                if (!receivingTransaction)
-                {
-                    Matcher matchRequest = req_start.matcher(toParse);
-                    Matcher matchResponse = resp_start.matcher(toParse);
-
-                    if (matchRequest.matches())
-                    {					// Retrieve TID and create new transaction
-                        receivingTransaction = true;
-                        tID = matchRequest.group(2);
-                        toParse = matchRequest.group(4);
-                        String type = matchRequest.group(3).toUpperCase();
-                        TransactionType tType;
-                        try
-                        {
-                            tType = TransactionType.valueOf(type);
-                            logger.debug(String.format(
-                            		"Parsing incoming request Tx-%s[%s]", tType, tID));
-                        }
-                        catch (IllegalArgumentException iae)
-                        {
-                            tType = TransactionType.UNSUPPORTED;
-                            logger.warn("Unsupported transaction type: Tx-"
-                        			+ type + "[" + tID + "]");
-                        }
-                        try
-                        {
-                            incomingTransaction = new Transaction(tID, tType,
-                            				transactionManager, Direction.IN);
-                        }
-                        catch (IllegalUseException e)
-                        {
-                            logger.error("Cannot create an incoming transaction", e);
-                        }
-                        if (tType == TransactionType.UNSUPPORTED)
-                        {
-                            incomingTransaction.signalizeEnd('$');
-                            logger.warn(
-                            		"Found an unsupported transaction type for["
-                                    + tID
-                                    + "] signalised end and called update");
-                            setChanged();
-                            notifyObservers(tType);
-                            // XXX:? receivingTransaction = false;
-                        }
-                    }
-                    else if (matchResponse.matches())
-                    {
-                        receivingTransaction = true;
-                        tID = matchResponse.group(2);
-                        int status = Integer.parseInt(matchResponse.group(4));
-                        String comment = matchResponse.group(5);
-                        if (matchResponse.group(6) != null)
-                            toParse = matchResponse.group(6);
-
-                        incomingTransaction =
-                            transactionManager.getTransaction(tID);
-                        if (incomingTransaction == null)
-                        {
-                        	String reason =
-                        			String.format("No outstanding Tx matches this response[%s]", tID);
-                            logger.error(reason);
-                            throw new ParseException(reason);
-                        }
-                        logger.debug("Found response to " + incomingTransaction);
-                        try
-                        {
-                            Transaction trResponse =
-                                new TransactionResponse(incomingTransaction,
-                                			status, comment, Direction.IN);
-                            incomingTransaction = trResponse;
-                        }
-                        catch (IllegalUseException e)
-                        {
-                            throw new ParseException(
-                                "Cannot create transaction response", e);
-                        }
-                    }
-                    else
-                    {
-                        logger.error("Start of transaction not found while parsing:\n"
-                                + incomingString);
-                        throw new ParseException(
-                            "Error, start of the transaction not found on thread: "
-                            + Thread.currentThread().getName());
-                    }
-                }
-                if (receivingTransaction)
-                {
-                    /*
-                     * Split multiple transactions.
-                     */
-                    tID = incomingTransaction.getTID();
-                    Pattern endTransaction = Pattern.compile(
-                        		"(.*)(-------" + tID.replace("+", "\\+") + ")([$+#])(\r\n)(.*)?",
-                        		Pattern.DOTALL);
-                    Matcher matcher = endTransaction.matcher(toParse);
-                    if (matcher.matches())
-                    {
-                        logger.trace("found end of " + incomingTransaction);
-                        toParse = matcher.group(1) + matcher.group(2)
-                                + matcher.group(3) + matcher.group(4);
-                        /*
-                         * add any remaining data to restTransactions
-                         */
-                        if ((matcher.group(5) != null) &&
-                    		(matcher.group(5).length() > 0)) {
-                            txRest.add(matcher.group(5));
-                        }
-                    }
-                    /*
-                     * identify if transaction has content-stuff or not:
-                     * 'Content-Type 2CRLF' from formal syntax.
-                     */
-                    Pattern contentStuff = Pattern.compile(
-                    		"(.*)(Content-Type:) (" + RegEx.token
-                            + "/" + RegEx.token + ")(\r\n\r\n)(.*)",
-                            Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-                    matcher = contentStuff.matcher(toParse);
-                    if (matcher.matches())
-                    {
-                        logger.trace(incomingTransaction +
-                        			" was found to have content-stuff");
-                        incomingTransaction.hasContentStuff = true;
-                    }
-                    if (incomingTransaction.hasContentStuff) {
-                    	// strip 1 CRLF from string to parse...
-                        endTransaction = Pattern.compile(
-                    		"(.*)(\r\n)(-------" + tID.replace("+", "\\+") + ")([$+#])(\r\n)(.*)?",
-                            Pattern.DOTALL);
-                    }
-                    matcher = endTransaction.matcher(toParse);
+    /**
+     * Hand header data to the transaction being received.
+     */
+    private void parseHeaders(byte[] data, int start, int end)
+    {
+        if (end <= start)
+            return;
+        try
+        {
+            incomingTransaction.parse(data, start, end - start, false);
+        }
+        catch (Exception e)
+        {
+            logger.error("Exception parsing data to a transaction:", e);
+        }
+    }
 
-                    if (matcher.matches())
-                    {					// we have a complete end of transaction
-                        try
-                        {
-                            incomingTransaction.parse(
-                        		matcher.group(1).getBytes(TextUtils.utf8), 0,
-                                matcher.group(1).length(),
-                                inContentStuff);
-                        }
-                        catch (Exception e)
-                        {
-                            logger.error("Weird transaction? - ", e);
-                        }
-                        if (incomingTransaction.hasContentStuff)
-                            incomingTransaction
-                                .signalizeEnd(matcher.group(4).charAt(0));
-                        else
-                            incomingTransaction
-                                .signalizeEnd(matcher.group(3).charAt(0));
-
-                        setChanged();
-                        notifyObservers(incomingTransaction);
-                        receivingTransaction = false;
-                    }
-                    else
-                    {
-                        try
-                        {
-                            incomingTransaction.parse(
-                                toParse.getBytes(TextUtils.utf8), 0, toParse.length(),
-                                inContentStuff);
-                        }
-                        catch (Exception e)
-                        {
-                            logger.error(
-	                            "Exception parsing data to a transaction:", e);
-                        }
-                    }
-                }
+    /**
+     * Recognise the start-line of a request or response and set up the
+     * incoming transaction. The TId has to contain at least 64 bits of
+     * randomness.
+     * <pre>
+     * req-start  = pMSRP SP transact-id SP method CRLF
+     * resp-start = pMSRP SP transact-id SP status-code [SP comment] CRLF
+     * </pre>
+     * 
+     * @param data		the buffer
+     * @param start		start of the line
+     * @param end		end of the line (after the CRLF)
+     * @throws ParseException when this isn't a valid start-line.
+     */
+    private void parseStartLine(byte[] data, int start, int end)
+        throws ParseException
+    {
+        int i = start;
+        int lineEnd = end - 2;
+        if (!startsWith(data, i, lineEnd, startLinePrefix))
+            throw noStartLine(data, start, end);
+        i += startLinePrefix.length;
+
+        int tidStart = i;
+        if (i < lineEnd && isAlnum(data[i]))
+            i++;
+        while (i < lineEnd && isTidChar(data[i]))
+            i++;
+        int tidLength = i - tidStart;
+        if (tidLength < 4 || tidLength > 32 || i >= lineEnd || data[i] != ' ')
+            throw noStartLine(data, start, end);
+        String tID = new String(data, tidStart, tidLength, TextUtils.usascii);
+        i++;
+        if (i >= lineEnd)
+            throw noStartLine(data, start, end);
+
+        if (isDigit(data[i]))
+        {
+            if (lineEnd - i < 3 || !isDigit(data[i + 1]) ||
+                !isDigit(data[i + 2]))
+                throw noStartLine(data, start, end);
+            int status = (data[i] - '0') * 100 + (data[i + 1] - '0') * 10 +
+                            (data[i + 2] - '0');
+            i += 3;
+            String comment = null;
+            if (i < lineEnd)
+            {
+                if (data[i] != ' ')
+                    throw noStartLine(data, start, end);
+                comment = new String(data, i + 1, lineEnd - i - 1,
+                                TextUtils.utf8);
+            }
+            receivingTransaction = true;
+            incomingTransaction = transactionManager.getTransaction(tID);
+            if (incomingTransaction == null)
+            {
+                logger.warn(String.format(
+                    "No outstanding Tx matches this response[%s], ignored", tID));
+                skippedResponseTid = tID;
+                return;
+            }
+            logger.debug("Found response to " + incomingTransaction);
+            try
+            {
+                incomingTransaction = new TransactionResponse(
+                    incomingTransaction, status, comment, Direction.IN);
+            }
+            catch (IllegalUseException e)
+            {
+                throw new ParseException(
+                    "Cannot create transaction response", e);
+            }
+            return;
+        }
+        int methodLength = lineEnd - i;
+        if (methodLength < 1 || methodLength > 20)
+            throw noStartLine(data, start, end);
+        for (int j = i; j < lineEnd; j++)
+            if (data[j] < 'A' || data[j] > 'Z')
+                throw noStartLine(data, start, end);
+
+        receivingTransaction = true;
+        TransactionType tType = TransactionType.UNSUPPORTED;
+        for (int m = 0; m < methods.length; m++)
+        {
+            if (methodNames[m].length == methodLength &&
+                startsWith(data, i, lineEnd, methodNames[m]))
+            {
+                tType = methods[m];
+                break;
             }
-            while (txRest.size() > 0);
+        }
+        if (tType == TransactionType.UNSUPPORTED)
+            logger.warn("Unsupported transaction type: Tx-" +
+                new String(data, i, methodLength, TextUtils.usascii) +
+                "[" + tID + "]");
+        else
+            logger.debug(String.format(
+                "Parsing incoming request Tx-%s[%s]", tType, tID));
+        try
+        {
+            incomingTransaction = new Transaction(tID, tType,
+                            transactionManager, Direction.IN);
+        }
+        catch (IllegalUseException e)
+        {
+            logger.error("Cannot create an incoming transaction", e);
+        }
+        if (tType == TransactionType.UNSUPPORTED)
+        {
+            incomingTransaction.signalizeEnd('$');
+            logger.warn("Found an unsupported transaction type for["
+                + tID + "] signalised end and called update");
+            setChanged();
+            notifyObservers(tType);
+            // XXX:? receivingTransaction = false;
         }
     }
 
+    private ParseException noStartLine(byte[] data, int start, int end)
+    {
+        logger.error("Start of transaction not found while parsing:\n"
+            + new String(data, start, end - start, TextUtils.utf8));
+        return new ParseException(
+            "Error, start of the transaction not found on thread: "
+            + Thread.currentThread().getName());
+    }
+
+    /**
+     * Is the given line the end-line of the given transaction?
+     * 
+     * @param tID		the transaction id
+     * @param data		the buffer
+     * @param start		start of the line
+     * @param end		end of the line (after the CRLF)
+     * @return the continuation flag of the end-line or -1 if it isn't one.
+     */
+    private static int endLineFlag(String tID, byte[] data, int start, int end)
+    {
+        int tidLength = tID.length();
+        if (end - start != ENDLINE_DASHES + tidLength + 3)
+            return -1;
+        for (int i = 0; i < ENDLINE_DASHES; i++)
+            if (data[start + i] != '-')
+                return -1;
+        int i = start + ENDLINE_DASHES;
+        for (int j = 0; j < tidLength; j++)
+            if (data[i + j] != tID.charAt(j))
+                return -1;
+        byte flag = data[i + tidLength];
+        if (flag == '$' || flag == '+' || flag == '#')
+            return flag;
+        return -1;
+    }
+
+    /**
+     * @return the offset after the first CRLF in the given range or -1.
+     */
+    private static int findEndOfLine(byte[] data, int start, int end)
+    {
+        for (int i = start + 1; i < end; i++)
+            if (data[i] == '\n' && data[i - 1] == '\r')
+                return i + 1;
+        return -1;
+    }
+
+    /**
+     * Add the given bytes to the unterminated line.
+     * 
+     * @throws ParseException when the line exceeds the maximum header size.
+     */
+    private void keepLine(byte[] data, int start, int end)
+        throws ParseException
+    {
+        int length = end - start;
+        if (length <= 0)
+            return;
+        if (lineLength + length > lineBuffer.length)
+        {
+            if (lineLength + length > MAX_LINE_LENGTH)
+                throw new ParseException("Header line exceeds " +
+                    MAX_LINE_LENGTH + " bytes");
+            byte[] larger = new byte[Math.min(MAX_LINE_LENGTH,
+                Math.max(lineLength + length, lineBuffer.length * 2))];
+            System.arraycopy(lineBuffer, 0, larger, 0, lineLength);
+            lineBuffer = larger;
+        }
+        System.arraycopy(data, start, lineBuffer, lineLength, length);
+        lineLength += length;
+    }
+
+    private static boolean startsWith(byte[] data, int start, int end,
+        byte[] prefix)
+    {
+        if (end - start < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (data[start + i] != prefix[i])
+                return false;
+        return true;
+    }
+
+    private static boolean isDigit(byte b)
+    {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isAlnum(byte b)
+    {
+        return isDigit(b) || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+    }
+
+    private static boolean isTidChar(byte b)
+    {
+        return isAlnum(b) || b == '-' || b == '=' || b == '%' || b == '+' ||
+                b == '.';
+    }
+
     private ThreadGroup ioOperationGroup;
 
     public void addEndPoint(URI uri, InetAddress address) throws IOException
@@ -785,6 +1430,12 @@ class Connection extends Observable implements Runnable
         // -- end of the code that enables a transaction test.
 
         socketChannel.connect(remoteAddress);
+        watchIdle();
+        if (Stack.isUsingReactors())
+        {
+            registerWithReactor();
+            return;
+        }
         Connections connectionsInstance =
             Stack.getConnectionsInstance(address);
 
@@ -803,16 +1454,22 @@ class Connection extends Observable implements Runnable
     }
 
     /**
-     * Method used to notify the write cycle thread
+     * Method used to notify the write cycle (or the reactor) that there is
+     * data to send. The signal is remembered when nobody is waiting yet, so it
+     * can't get lost.
      */
     public void notifyWriteThread()
     {
-        if (writeThread != null)
+        if (reactor != null)
         {
-            synchronized (writeThread)
-            {
-                writeThread.notify();
-            }
+            if (writeScheduled.compareAndSet(false, true))
+                reactor.wantWrite(this);
+            return;
+        }
+        synchronized (writeLock)
+        {
+            writePending = true;
+            writeLock.notify();
         }
     }
 }
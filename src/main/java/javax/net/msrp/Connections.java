@@ -88,6 +88,8 @@ public class Connections
 
             // bind the socket to a local temp port.
             ServerSocket socket = serverSocketChannel.socket();
+            if (Stack.getSocketBufferSize() > 0)	/* inherited on accept */
+                socket.setReceiveBufferSize(Stack.getSocketBufferSize());
             InetSocketAddress socketAddr = new InetSocketAddress(address, 0);
 
             socket.bind(socketAddr);
@@ -140,6 +142,8 @@ public class Connections
 
             // bind the socket to a local temp. port.
             ServerSocket socket = serverSocketChannel.socket();
+            if (Stack.getSocketBufferSize() > 0)	/* inherited on accept */
+                socket.setReceiveBufferSize(Stack.getSocketBufferSize());
             InetSocketAddress socketAddr = new InetSocketAddress(newAddress, 0);
 
             socket.bind(socketAddr);
@@ -191,6 +195,12 @@ public class Connections
                 Connection connection =
                     new Connection(serverSocketChannel.accept());
                 stack.addConnection(connection);
+                connection.watchIdle();
+                if (Stack.isUsingReactors())
+                {
+                    connection.registerWithReactor();
+                    continue;
+                }
                 Thread newConnThread = new Thread(connection);
                 newConnThread.setName("Connection: " + connection.getLocalURI() +
                 					" by Connections.newConnThread");
@@ -259,12 +269,23 @@ public class Connections
         return urisSessionsToIdentify.get(uri);
     }
 
-    protected void identifiedSession(Session session)
+    /**
+     * The given session has been contacted by its peer: bind it to the
+     * connection the request came in on.
+     * <br>
+     * That connection may be shared with other sessions of the same peer, so
+     * it is not identified by the from-path of the session (the authority of
+     * which needn't match the connection).
+     * 
+     * @param session		the session now identified.
+     * @param connection	the connection the session was contacted on.
+     */
+    protected void identifiedSession(Session session, Connection connection)
     {
     	urisSessionsToIdentify.remove(session.getURI());
         existingURISessions.add(session.getURI());
-        session.setConnection(stack.getConnectionByLocalURI(
-        		NetworkUtils.getCompleteAuthority(session.getNextURI())));
+        stack.acquireConnection(connection);
+        session.setConnection(connection);
         stack.addActiveSession(session);
     }
 
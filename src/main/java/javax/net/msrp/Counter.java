@@ -16,9 +16,7 @@
  */
 package javax.net.msrp;
 
-import java.util.*;
-
-import org.slf4j.*;
+import java.util.Arrays;
 
 
 /**
@@ -28,6 +26,10 @@ import org.slf4j.*;
  * 
  * Also the class takes into consideration the fact that the reported bytes to
  * count can overlap
+ * <p>
+ * The received ranges are kept as sorted, disjoint (and non adjacent)
+ * clusters in two primitive arrays: registering a range is a binary search
+ * and at most one array move, whatever the order the chunks arrive in.
  * 
  * @author João André Pereira Antunes 2008
  * 
@@ -35,18 +37,24 @@ import org.slf4j.*;
 public class Counter
 {
     /**
-     * The logger associated with this class
+     * The start of each cluster of received bytes, in ascending order
      */
-    private static final Logger logger = LoggerFactory.getLogger(Counter.class);
+    private long[] starts = new long[4];
 
     /**
-     * The ArrayList used to register the bytes
+     * The end (exclusive) of each cluster of received bytes
      */
-    ArrayList<long[]> counter;
+    private long[] ends = new long[4];
 
-    private static final int VMIN = 0;
+    /**
+     * The number of clusters in use
+     */
+    private int clusters = 0;
 
-    private static final int NRBYTESPOS = 1;
+    /**
+     * View on the clusters, used for automatic testing
+     */
+    final Clusters counter = new Clusters();
 
     /**
      * Stores the number of bytes that the counter has
@@ -65,7 +73,7 @@ public class Counter
      */
     protected Counter(Message message)
     {
-        counter = new ArrayList<long[]>();
+        /* empty */;
     }
 
     /**
@@ -82,132 +90,70 @@ public class Counter
     protected synchronized boolean register(long startingPosition,
         long numberBytes)
     {
-        logger.trace("Register: " + numberBytes
-            + " bytes received @ position " + startingPosition);
-        long previousValueConsecutiveBytes = nrConsecutiveBytes;
-        long[] valueToRegister =
-        { startingPosition, numberBytes };
-
-        // Go through the list to find the position to insert the value
-        ListIterator<long[]> counterIterator = counter.listIterator();
-        boolean inserted = false;
-        while (counterIterator.hasNext() && !inserted)
+        if (numberBytes <= 0)
+            return false;
+        long start = startingPosition;
+        long end = startingPosition + numberBytes;
+
+        // first cluster that ends at or after the start: touches or follows
+        int first = search(ends, start);
+        // clusters first..last overlap or touch the new range
+        int last = search(starts, end + 1) - 1;
+        int merged = last - first + 1;
+        if (merged == 1 && starts[first] <= start && end <= ends[first])
+            return false;				// nothing new
+
+        if (merged > 0)
         {
-            long[] toEvaluate = counterIterator.next();
-            long vMaxExisting = toEvaluate[VMIN] + toEvaluate[NRBYTESPOS];
-            long vMinToInsert = valueToRegister[0];
-            long vMaxToInsert = vMinToInsert + valueToRegister[1];
-            // case one - separate cluster before
-            if (vMinToInsert < toEvaluate[VMIN]
-                && vMaxToInsert < toEvaluate[VMIN])
-            {
-                logger.trace("1. separate cluster before detected");
-                // insert the new element before
-                int indexToInsert = counterIterator.previousIndex();
-                if (indexToInsert == -1)
-                    counter.add(0, valueToRegister);
-                else
-                    counter.add(indexToInsert, valueToRegister);
-                inserted = true;
-                // add the second position to the count
-                count += valueToRegister[NRBYTESPOS];
-                // update the nr consecutive bytes if it's the case:
-                if (vMinToInsert == 0)
-                    nrConsecutiveBytes = valueToRegister[NRBYTESPOS];
-                // end the cycle
-                break;
-            }// if (vMinToInsert < toEvaluate[VMIN] && vMaxtoInsert <
-            // toEvaluate[VMIN])
-            // case two - Intersects and extends it in the beginning
-            else if (vMinToInsert < toEvaluate[VMIN]
-                && vMaxExisting >= vMaxToInsert
-                && vMaxToInsert >= toEvaluate[VMIN])
-            {
-                logger.trace("2. Intersects and extends in the beginning detected");
-                valueToRegister[NRBYTESPOS] =
-                    vMaxExisting - valueToRegister[VMIN];
-
-                // replace the to evaluate with this one:
-                counterIterator.remove();
-                counterIterator.add(valueToRegister);
-                inserted = true;
-                count += (toEvaluate[VMIN] - valueToRegister[VMIN]);
-                // update the nr consecutive bytes if it's the case:
-                if (vMinToInsert == 0)
-                    nrConsecutiveBytes = valueToRegister[NRBYTESPOS];
-                // end the cycle
-                break;
-            }// else if (vMinToInsert < toEvaluate[VMIN] && toEvaluate[VMAX] >=
-            // vMaxToInsert && vMaxToInsert >= toEvaluate[VMIN])
-            // case three - Within an existing cluster
-            else if (vMinToInsert >= toEvaluate[VMIN]
-                && vMaxToInsert <= vMaxExisting)
-            {
-                logger.trace("3. Within existing cluster detected");
-                // don't quite do anything, just break the cycle
-                inserted = true;
-                break;
-            }
-            // case four - Intersects and extends it further to the end
-            else if (vMinToInsert >= toEvaluate[VMIN]
-                && vMinToInsert <= vMaxExisting && vMaxToInsert >= vMaxExisting)
-            {
-                logger.trace("4. Intersects and extends further to end detected");
-                // remove the existing one and create the new one
-                counterIterator.remove();
-                valueToRegister[VMIN] = toEvaluate[VMIN];
-                valueToRegister[NRBYTESPOS] =
-                    vMaxToInsert - valueToRegister[VMIN];
-                count -= toEvaluate[NRBYTESPOS];
-                if (toEvaluate[VMIN] == 0)
-                    nrConsecutiveBytes = 0;
-
-                // go to the next iteration
-                continue;
+            if (starts[first] < start)
+                start = starts[first];
+            if (ends[last] > end)
+                end = ends[last];
+            for (int i = first; i <= last; i++)
+                count -= ends[i] - starts[i];
+        }
+        else if (clusters == starts.length)
+        {
+            starts = Arrays.copyOf(starts, clusters * 2);
+            ends = Arrays.copyOf(ends, clusters * 2);
+        }
+        int shift = 1 - merged;
+        if (shift != 0 && last + 1 < clusters)
+        {
+            System.arraycopy(starts, last + 1, starts, last + 1 + shift,
+                clusters - last - 1);
+            System.arraycopy(ends, last + 1, ends, last + 1 + shift,
+                clusters - last - 1);
+        }
+        clusters += shift;
+        starts[first] = start;
+        ends[first] = end;
+        count += end - start;
 
-            }// else if (vMinToInsert >= toEvaluate[VMIN] && vMinToInsert <=
-            // vMaxExisting && vMaxToInsert >= vMaxExisting )
-            // case five - Separate cluster after
-            else if (vMinToInsert > toEvaluate[VMIN]
-                && vMinToInsert > vMaxExisting)
-            // don't do anything
-            {
-                logger.trace("5. Separate cluster after detected");
-                // go to the next iteration
-                continue;
+        long previousValueConsecutiveBytes = nrConsecutiveBytes;
+        if (starts[0] == 0)
+            nrConsecutiveBytes = ends[0];
+        return nrConsecutiveBytes != previousValueConsecutiveBytes;
+    }
 
-            }// else if (vMinToInsert > toEvaluate[VMIN] && vMinToInsert >
-            // vMaxExisting)
-            else if (vMinToInsert < toEvaluate[VMIN]
-                && vMaxToInsert > vMaxExisting)
-            // case six - bigger new cluster
-            {
-                logger.trace("6. bigger new cluster detected");
-                // remove this one
-                counterIterator.remove();
-                count -= toEvaluate[NRBYTESPOS];
-                if (toEvaluate[VMIN] == 0)
-                    nrConsecutiveBytes = 0;
-                continue;
-            }
-            else
-            {
-                logger.error("Serious error in counter algorithm, please "
-                    + "report this error to the developers");
-            }
-        }
-        if (!inserted)
+    /**
+     * @param values ascending values of the clusters in use
+     * @param key the value to look for
+     * @return the index of the first cluster with a value not less than key
+     */
+    private int search(long[] values, long key)
+    {
+        int low = 0;
+        int high = clusters;
+        while (low < high)
         {
-            logger.trace("Not inserted and cycle ended");
-            counter.add(valueToRegister);
-            // update the number of counted and consecutive bytes
-            count += valueToRegister[NRBYTESPOS];
-            if (valueToRegister[VMIN] == 0)
-                nrConsecutiveBytes = valueToRegister[NRBYTESPOS];
+            int middle = (low + high) >>> 1;
+            if (values[middle] < key)
+                low = middle + 1;
+            else
+                high = middle;
         }
-        if (nrConsecutiveBytes != previousValueConsecutiveBytes)
-            return true;
-        return false;
+        return low;
     }
 
     /**
@@ -262,4 +208,28 @@ public class Counter
             return false;
         return true;
     }
+
+    /**
+     * The clusters as {start, number of bytes} pairs, for automatic testing
+     */
+    class Clusters
+    {
+        int size()
+        {
+            synchronized (Counter.this)
+            {
+                return clusters;
+            }
+        }
+
+        long[] get(int index)
+        {
+            synchronized (Counter.this)
+            {
+                if (index >= clusters)
+                    throw new IndexOutOfBoundsException("Cluster " + index);
+                return new long[] { starts[index], ends[index] - starts[index] };
+            }
+        }
+    }
 }
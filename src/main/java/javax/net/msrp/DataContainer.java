@@ -98,6 +98,22 @@ public abstract class DataContainer
     public abstract int get(byte[] dst, int offset, int limit)
         throws IndexOutOfBoundsException, Exception;
 
+    /**
+     * Retrieve a read-only view on the next data to read, of at most limit
+     * bytes, and advance the read offset past it. Spares the copy made by
+     * {@link #get(byte[], int, int)} for containers that hold their data in
+     * a buffer.
+     * 
+     * @param limit the maximum number of bytes to view
+     * @return the view, or null if this container doesn't provide views and
+     *         {@link #get(byte[], int, int)} is to be used instead
+     * @throws Exception if there was any kind of Exception
+     */
+    public ByteBuffer getView(int limit) throws Exception
+    {
+        return null;
+    }
+
     /**
      * Retrieve the data from the data container
      * <p>
@@ -127,6 +143,9 @@ public abstract class DataContainer
 
     /**
      * Stores the given data into this container.
+     * <p>
+     * The stack reuses the array once this returns, so the data has to be
+     * copied, not referred to.
      * 
      * @param startingIndex where to start putting the data in this container.
      * @param dataToPut the byte array to store.
@@ -137,6 +156,28 @@ public abstract class DataContainer
     public abstract void put(long startingIndex, byte[] dataToPut)
         throws NotEnoughStorageException, Exception;
 
+    /**
+     * Stores the remaining bytes of the given buffer into this container,
+     * advancing its position to its limit.
+     * <p>
+     * The stack reuses the buffer once this returns, so the data has to be
+     * copied, not referred to. This default copies the data to an array for
+     * {@link #put(long, byte[])}, containers should store it directly.
+     * 
+     * @param startingIndex where to start putting the data in this container.
+     * @param dataToPut the data to store.
+     * @throws NotEnoughStorageException if there is no more storage
+     *             available in this Container
+     * @throws Exception if there was any other kind of Exception
+     */
+    public void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException, Exception
+    {
+        byte[] data = new byte[dataToPut.remaining()];
+        dataToPut.get(data);
+        put(startingIndex, data);
+    }
+
     /**
      * Store the given byte.
      * 
@@ -186,4 +227,72 @@ public abstract class DataContainer
      * @param nrPositions number of positions to rewind.
      */
     public abstract void rewindRead(long nrPositions);
+
+    /**
+     * @return has all of the content been put in this container? Only then
+     *         is {@link #size()} the length of the content.
+     */
+    public boolean isEnded()
+    {
+        return true;
+    }
+
+    /**
+     * @return is the content read from a source of unknown length while it
+     *         is sent? It is then sent a chunk at a time.
+     */
+    boolean isStreamed()
+    {
+        return false;
+    }
+
+    /**
+     * @return has all of the content been read?
+     */
+    boolean isExhausted()
+    {
+        return !hasDataToRead();
+    }
+
+    /**
+     * Have the given task run once there is data to read, if there is none
+     * yet.
+     * 
+     * @param task what to do with the data.
+     * @return true when the task will be run, false when there is no need
+     *         to wait.
+     */
+    boolean whenReadable(Runnable task)
+    {
+        return false;
+    }
+
+    /**
+     * Called by the connection after it put received data, so the container
+     * can have it stop reading until the data was consumed.
+     * 
+     * @param pause stops the connection reading, run right away if needed.
+     * @param resume has the connection read again.
+     */
+    void holdBack(Runnable pause, Runnable resume)
+    {
+        ;
+    }
+
+    /**
+     * Called when the last chunk of the message was received.
+     */
+    void end()
+    {
+        ;
+    }
+
+    /**
+     * Called once the content is no longer needed by the stack: it was
+     * written to the connection, or won't be.
+     */
+    void release()
+    {
+        ;
+    }
 }
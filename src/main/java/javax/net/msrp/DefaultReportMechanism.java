@@ -95,4 +95,14 @@ public class DefaultReportMechanism
     {
         return 1024;
     }
+
+    /**
+     * Reports only depend on message completion, so don't bother asking
+     * for every block received.
+     */
+    @Override
+    protected boolean isTriggeredOnGranularity()
+    {
+        return true;
+    }
 }
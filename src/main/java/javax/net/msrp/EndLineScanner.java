@@ -0,0 +1,156 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.nio.ByteBuffer;
+
+import javax.net.msrp.utils.TextUtils;
+
+/**
+ * Finds the end-line of a transaction (seven hyphens, the transaction
+ * identifier and a continuation flag) in outgoing content, which the sender
+ * must keep out of the body (RFC 4975, section 7.1).
+ * <p>
+ * Instead of matching every byte, the scanner only looks at every seventh
+ * one: a run of seven hyphens always covers one of those. Only when such a
+ * byte is a hyphen are the positions around it matched in full, so content
+ * with few hyphens costs about one comparison per seven bytes.
+ * <p>
+ * Content is scanned in consecutive parts; an end-line split over two parts
+ * is found too, as the last bytes of a part are kept for the next.
+ */
+class EndLineScanner
+{
+    /**
+     * Number of hyphens that start an end-line.
+     */
+    private static final int DASHES = 7;
+
+    private final String transactionId;
+
+    /**
+     * The end-line without its continuation flag.
+     */
+    private final byte[] pattern;
+
+    /**
+     * The last bytes of the part scanned before, that might start an
+     * end-line completed in the next part.
+     */
+    private final byte[] tail;
+
+    private int tailLength = 0;
+
+    /**
+     * @param transactionId the transaction identifier of the end-line.
+     */
+    EndLineScanner(String transactionId)
+    {
+        this.transactionId = transactionId;
+        pattern = ("-------" + transactionId).getBytes(TextUtils.usascii);
+        tail = new byte[pattern.length];
+    }
+
+    /**
+     * @return the transaction identifier this scanner looks for.
+     */
+    String getTransactionId()
+    {
+        return transactionId;
+    }
+
+    /**
+     * Forget the bytes kept of the part scanned before: the content that
+     * follows doesn't continue it.
+     */
+    void clear()
+    {
+        tailLength = 0;
+    }
+
+    /**
+     * Scan the remaining bytes of the given buffer, without changing its
+     * position, as the part of the content that follows the part scanned
+     * before.
+     * 
+     * @param data the content to scan.
+     * @return the offset, relative to the position of data, of the first
+     *         end-line found (0 when it starts in the part scanned before),
+     *         -1 if none was found.
+     */
+    int scan(ByteBuffer data)
+    {
+        int start = data.position();
+        int total = tailLength + data.remaining();
+        for (int sentinel = DASHES - 1; sentinel < total; sentinel += DASHES)
+        {
+            if (at(data, start, sentinel) != '-')
+                continue;
+            /* the run of hyphens covering the sentinel starts at most 6 before */
+            for (int k = Math.max(sentinel - DASHES + 1, 0); k <= sentinel; k++)
+            {
+                if (matches(data, start, k, total))
+                {
+                    int found = Math.max(k - tailLength, 0);
+                    tailLength = 0;
+                    return found;
+                }
+            }
+        }
+        keepTail(data, start, total);
+        return -1;
+    }
+
+    /**
+     * @return is there a complete end-line at index k of the tail followed
+     *         by data?
+     */
+    private boolean matches(ByteBuffer data, int start, int k, int total)
+    {
+        if (k + pattern.length >= total)
+            return false;				/* undecided, the tail keeps it */
+        for (int i = 0; i < pattern.length; i++)
+            if (at(data, start, k + i) != pattern[i])
+                return false;
+        byte flag = at(data, start, k + pattern.length);
+        return flag == '$' || flag == '#' || flag == '+';
+    }
+
+    /**
+     * @return the byte at index i of the tail followed by data.
+     */
+    private byte at(ByteBuffer data, int start, int i)
+    {
+        if (i < tailLength)
+            return tail[i];
+        return data.get(start + i - tailLength);
+    }
+
+    /**
+     * Keep the last bytes of the tail followed by data, enough for an
+     * end-line that is still incomplete.
+     */
+    private void keepTail(ByteBuffer data, int start, int total)
+    {
+        int length = Math.min(pattern.length, total);
+        int from = total - length;
+        for (int j = 0; j < length; j++)	/* from >= 0: tail isn't overrun */
+            tail[j] = at(data, start, from + j);
+        tailLength = length;
+    }
+}
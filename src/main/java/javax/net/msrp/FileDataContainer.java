@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import javax.net.msrp.exceptions.IllegalUseException;
 import javax.net.msrp.exceptions.NotEnoughDataException;
@@ -71,6 +72,15 @@ public class FileDataContainer
      */
     private ByteBuffer auxByteBuffer;
 
+    /** Size of the buffer that parts of the file are searched in */
+    private static final int SCANBUFFERSIZE = 8 * 1024;
+
+    /**
+     * Buffer that {@link #contains(byte[], long, long)} reads the file into,
+     * allocated on first use.
+     */
+    private ByteBuffer scanBuffer;
+
     private final Object readOffsetLock = new Object();
     private Long currentReadOffset = new Long(0);
 
@@ -107,6 +117,26 @@ public class FileDataContainer
         return file;
     }
 
+    /**
+     * @return the channel to the file, for subclasses that access the file
+     *         their own way.
+     */
+    FileChannel getChannel()
+    {
+        return fileChannel;
+    }
+
+    /**
+     * Set the length of the file, extending or truncating it.
+     * 
+     * @param length the new length of the file.
+     * @throws IOException if the length couldn't be set.
+     */
+    void setLength(long length) throws IOException
+    {
+        randomAccessFile.setLength(length);
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.DataContainer#size()
      */
@@ -169,6 +199,23 @@ public class FileDataContainer
         fileChannel.write(auxByteBuffer, startingIndex);
     }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, java.nio.ByteBuffer)
+     */
+    @Override
+    public void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        long position = startingIndex;
+        while (dataToPut.hasRemaining())
+        {
+            int result = fileChannel.write(dataToPut, position);
+            if (result == -1)
+                throw new NotEnoughStorageException();
+            position += result;
+        }
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.DataContainer#put(byte)
      */
@@ -218,9 +265,8 @@ public class FileDataContainer
                     + MAXIMUMNUMBERBYTES + "bytes to memory");
             auxByteBuffer =
                 ByteBuffer.allocate((int) (fileChannel.size() - offsetIndex));
-            int result =
-                fileChannel.read(auxByteBuffer, auxByteBuffer.capacity());
-            if (result == 0 || result == -1)
+            int result = fileChannel.read(auxByteBuffer, offsetIndex);
+            if (result == -1 || result != auxByteBuffer.capacity())
                 throw new NotEnoughDataException();
             return auxByteBuffer;
         }
@@ -279,7 +325,8 @@ public class FileDataContainer
                 bytesToCopy = space;
 
             auxByteBuffer = ByteBuffer.allocate(bytesToCopy);
-            int result = fileChannel.read(auxByteBuffer);
+            int result =
+                fileChannel.read(auxByteBuffer, currentReadOffset.longValue());
             if (result == 0 || result == -1)
                 throw new NotEnoughDataException();
             if (result != bytesToCopy)
@@ -293,6 +340,84 @@ public class FileDataContainer
         }
     }
 
+    /**
+     * Send data straight from the file to the given channel, starting at the
+     * current read offset, which is advanced by the number of bytes sent.
+     * The data doesn't pass through the heap.
+     * 
+     * @param target the channel to send the data to.
+     * @param count maximum number of bytes to send.
+     * @return the number of bytes sent, possibly 0 when the channel is in
+     *         non-blocking mode.
+     * @throws IOException if reading the file or writing the channel failed.
+     */
+    long transferTo(WritableByteChannel target, long count) throws IOException
+    {
+        synchronized (readOffsetLock)
+        {
+            long position = currentReadOffset.longValue();
+            long remaining = fileChannel.size() - position;
+            if (count > remaining)
+                count = remaining;
+            long sent = fileChannel.transferTo(position, count, target);
+            currentReadOffset = position + sent;
+            return sent;
+        }
+    }
+
+    /**
+     * Look for the given sequence of bytes in part of the file. The part is
+     * read, without moving the read offset, into a buffer that is kept for
+     * the next call.
+     * 
+     * @param pattern the bytes to look for.
+     * @param from where to start looking, clipped to the start of the file.
+     * @param to where to stop looking, clipped to the end of the file.
+     * @return true if the pattern lies entirely within [from, to).
+     * @throws IOException if reading the file failed.
+     */
+    boolean contains(byte[] pattern, long from, long to) throws IOException
+    {
+        if (from < 0)
+            from = 0;
+        if (to > fileChannel.size())
+            to = fileChannel.size();
+        if (to - from < pattern.length)
+            return false;
+        if (scanBuffer == null || scanBuffer.capacity() < 2 * pattern.length)
+            scanBuffer =
+                ByteBuffer.allocate(Math.max(SCANBUFFERSIZE, 2 * pattern.length));
+        byte[] data = scanBuffer.array();
+        long position = from;
+        int kept = 0;					// tail of the previous read
+        while (position < to)
+        {
+            scanBuffer.clear();
+            scanBuffer.position(kept);
+            scanBuffer.limit((int) Math.min(data.length, kept + to - position));
+            int read = fileChannel.read(scanBuffer, position);
+            if (read <= 0)
+                break;
+            position += read;
+            int filled = kept + read;
+            int last = filled - pattern.length;
+            for (int i = 0; i <= last; i++)
+            {
+                if (data[i] != pattern[0])
+                    continue;
+                int j = 1;
+                while (j < pattern.length && data[i + j] == pattern[j])
+                    j++;
+                if (j == pattern.length)
+                    return true;
+            }
+            /* keep what could be the start of a pattern split over reads */
+            kept = Math.min(pattern.length - 1, filled);
+            System.arraycopy(data, filled - kept, data, 0, kept);
+        }
+        return false;
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.DataContainer#dispose()
      */
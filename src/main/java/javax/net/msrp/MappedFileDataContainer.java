@@ -0,0 +1,192 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.net.msrp.exceptions.NotEnoughStorageException;
+
+/**
+ * A file data container for receiving large messages.
+ * <p>
+ * The file is sized to the total size of the message up front and received
+ * data is copied into windows of the file mapped in memory, instead of
+ * being written to the file per received block. A few windows are kept
+ * mapped so chunks that are received interleaved each have theirs.
+ * <p>
+ * When the total size is unknown ({@code *}) the data is written to the
+ * file like {@link FileDataContainer} does. Reading is done as in that
+ * class.
+ * <p>
+ * Java has no way to unmap a file: the windows are only unmapped once the
+ * garbage collector reclaims them, so the file stays mapped (and, on some
+ * platforms, can't be deleted or renamed) for a while after
+ * {@link #dispose()}.
+ * 
+ * @see FileDataContainer
+ */
+public class MappedFileDataContainer
+    extends FileDataContainer
+{
+    /**
+     * Default size (bytes) of a window of the file mapped at a time.
+     */
+    static final int WINDOW_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Number of windows kept mapped.
+     */
+    private static final int WINDOWS = 4;
+
+    private final long totalSize;
+
+    private final int windowSize;
+
+    private final MappedByteBuffer[] windows = new MappedByteBuffer[WINDOWS];
+
+    private final long[] windowStart = new long[WINDOWS];
+
+    /**
+     * Index of the window to replace next.
+     */
+    private int nextWindow = 0;
+
+    /**
+     * Creates a new container for receiving a message of the given size into
+     * the given file.
+     * <p>
+     * Note: if the file exists it's content will be overwritten
+     * 
+     * @param file the file to receive into
+     * @param size the total size of the message, or {@link Message#UNKNOWN}
+     * @throws IOException if the file couldn't be opened or sized
+     * @throws SecurityException if a security manager denies access to the
+     *             file
+     */
+    public MappedFileDataContainer(File file, long size)
+        throws IOException, SecurityException
+    {
+        this(file, size, WINDOW_SIZE);
+    }
+
+    /**
+     * @param file the file to receive into
+     * @param size the total size of the message, or {@link Message#UNKNOWN}
+     * @param windowSize the size of the windows mapped
+     * @throws IOException if the file couldn't be opened or sized
+     */
+    MappedFileDataContainer(File file, long size, int windowSize)
+        throws IOException
+    {
+        super(file);
+        totalSize = size;
+        this.windowSize = windowSize;
+        if (size > 0)
+            setLength(size);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.FileDataContainer#put(long, java.nio.ByteBuffer)
+     */
+    @Override
+    public synchronized void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        long position = startingIndex;
+        while (dataToPut.hasRemaining())
+        {
+            if (position < 0 || position >= totalSize)
+            {					/* size unknown or exceeded */
+                super.put(position, dataToPut);
+                return;
+            }
+            int i = window(position);
+            int offset = (int) (position - windowStart[i]);
+            int length = Math.min(dataToPut.remaining(),
+                                windows[i].capacity() - offset);
+            ByteBuffer part = dataToPut.duplicate();
+            part.limit(part.position() + length);
+            windows[i].position(offset);
+            windows[i].put(part);
+            dataToPut.position(part.limit());
+            position += length;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.FileDataContainer#put(long, byte[])
+     */
+    @Override
+    public void put(long startingIndex, byte[] dataToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        put(startingIndex, ByteBuffer.wrap(dataToPut));
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.FileDataContainer#put(long, byte)
+     */
+    @Override
+    public void put(long startingIndex, byte byteToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        put(startingIndex, ByteBuffer.wrap(new byte[] { byteToPut }));
+    }
+
+    /**
+     * @return the index of the window containing the given position of the
+     *         file, mapping it if needed.
+     */
+    private int window(long position) throws IOException
+    {
+        for (int i = 0; i < WINDOWS; i++)
+            if (windows[i] != null && position >= windowStart[i] &&
+                position < windowStart[i] + windows[i].capacity())
+                return i;
+        int i = nextWindow;
+        nextWindow = (nextWindow + 1) % WINDOWS;
+        long start = position - position % windowSize;
+        windows[i] = getChannel().map(FileChannel.MapMode.READ_WRITE, start,
+                        Math.min(windowSize, totalSize - start));
+        windowStart[i] = start;
+        return i;
+    }
+
+    /**
+     * Writes the mapped windows out to the file before closing it.
+     * <p>
+     * The windows are dropped, but remain mapped until collected.
+     * 
+     * @see javax.net.msrp.FileDataContainer#dispose()
+     */
+    @Override
+    public synchronized void dispose()
+    {
+        for (int i = 0; i < WINDOWS; i++)
+        {
+            if (windows[i] != null)
+                windows[i].force();
+            windows[i] = null;		/* unmapped once collected */
+        }
+        super.dispose();
+    }
+}
@@ -120,6 +120,27 @@ public class MemoryDataContainer
         }
     }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, java.nio.ByteBuffer)
+     */
+    @Override
+    public void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException
+    {
+        try
+        {
+            byteBuffer.position((int) startingIndex);
+            byteBuffer.put(dataToPut);
+        }
+        catch (BufferOverflowException e)
+        {
+            throw new NotEnoughStorageException("Putting " +
+                dataToPut.remaining() + " bytes of data starting in " +
+                startingIndex + " on a buffer with " + byteBuffer.capacity(),
+                e);
+        }
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.DataContainer#put(byte)
      */
@@ -220,6 +241,19 @@ public class MemoryDataContainer
         return bytesToCopy;
     }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#getView(int)
+     */
+    @Override
+    public ByteBuffer getView(int limit)
+    {
+        ByteBuffer view = byteBuffer.slice();
+        if (view.remaining() > limit)
+            view.limit(limit);
+        byteBuffer.position(byteBuffer.position() + view.remaining());
+        return view.asReadOnlyBuffer();
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.DataContainer#rewindRead(long)
      */
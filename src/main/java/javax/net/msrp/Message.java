@@ -16,6 +16,8 @@
  */
 package javax.net.msrp;
 
+import java.nio.ByteBuffer;
+
 import javax.net.msrp.events.MessageAbortedEvent;
 import javax.net.msrp.exceptions.*;
 import javax.net.msrp.utils.TextUtils;
@@ -93,6 +95,12 @@ public abstract class Message
     private ReportMechanism reportMechanism =
     		DefaultReportMechanism.getInstance();
 
+    /**
+     * Accounts for the received body of this message, created on first use.
+     * It lives as long as the message does.
+     */
+    private volatile Counter counter = null;
+
     /**
      * To be used by ConnectionPrioritizer.
      * 
@@ -253,6 +261,20 @@ public abstract class Message
             return dataContainer.get(outData, offset);
     }
 
+    /**
+     * Get a view on the next DATA bytes, sparing the copy of
+     * {@link #get(byte[], int)}.
+     * 
+     * @param limit the maximum number of bytes to view
+     * @return the view, or null if the data container doesn't provide one
+     * @throws Exception when there was an internal error
+     * @see DataContainer#getView(int)
+     */
+    ByteBuffer getView(int limit) throws Exception
+    {
+        return dataContainer.getView(limit);
+    }
+
     /**
      * Convenience method to retrieve associated counter of this message
      * 
@@ -260,7 +282,26 @@ public abstract class Message
      */
     public Counter getCounter()
     {
-        return reportMechanism.getCounter(this);
+        Counter current = counter;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                if (counter == null)
+                    counter = new Counter(this);
+                current = counter;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Forget the received body accounted for, a new counter is created when
+     * needed.
+     */
+    void releaseCounter()
+    {
+        counter = null;
     }
 
     /**
@@ -413,6 +454,7 @@ public abstract class Message
      */
     public String getSizeString()
     {
+        long size = getSize();
         return size == UNKNOWN ? "*" : Long.toString(size);
     }
 
@@ -0,0 +1,226 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.msrp.exceptions.ConnectionLostException;
+import javax.net.msrp.exceptions.DeliveryFailedException;
+import javax.net.msrp.exceptions.IllegalUseException;
+
+/**
+ * The progress of a message sent with
+ * {@link Session#sendMessageAsync(OutgoingMessage)}, as futures that are
+ * completed with the message at each milestone:
+ * <ul>
+ * <li>{@link #written()}: all of the message has been written to the
+ * connection;</li>
+ * <li>{@link #acknowledged()}: a 200 response has been received to every
+ * request (chunk) that carried it;</li>
+ * <li>{@link #delivered()}: a success REPORT covering all of it has been
+ * received.</li>
+ * </ul>
+ * A negative response or a failure REPORT completes the futures still
+ * pending exceptionally, with a {@link DeliveryFailedException}; losing the
+ * connection does so with a {@link ConnectionLostException}. Aborting the
+ * message cancels them.
+ * <p>
+ * Milestones that aren't reported complete exceptionally right away, with an
+ * {@link IllegalUseException}: responses unless the Failure-Report is "yes",
+ * and success reports unless requested.
+ * <p>
+ * The futures are completed on the threads of the stack, so dependent
+ * actions that take time should be run asynchronously. They are never
+ * completed while holding a lock of the delivery, so dependent actions may
+ * use the stack.
+ */
+public class MessageDelivery
+{
+    private final OutgoingMessage message;
+
+    private final CompletableFuture<OutgoingMessage> written =
+        new CompletableFuture<OutgoingMessage>();
+
+    private final CompletableFuture<OutgoingMessage> acknowledged =
+        new CompletableFuture<OutgoingMessage>();
+
+    private final CompletableFuture<OutgoingMessage> delivered =
+        new CompletableFuture<OutgoingMessage>();
+
+    /**
+     * Number of requests sent that await their response.
+     */
+    private int awaiting = 0;
+
+    /**
+     * Has the last request carrying the message been sent?
+     */
+    private boolean allSent = false;
+
+    /**
+     * @param message the message to follow, with its reports set as wanted.
+     */
+    MessageDelivery(OutgoingMessage message)
+    {
+        this.message = message;
+        if (!Message.YES.equalsIgnoreCase(message.getFailureReport()))
+            acknowledged.completeExceptionally(new IllegalUseException(
+                "No responses with Failure-Report: " +
+                message.getFailureReport()));
+        if (!message.wantSuccessReport())
+            delivered.completeExceptionally(new IllegalUseException(
+                "No success report requested"));
+    }
+
+    /**
+     * @return the message sent.
+     */
+    public OutgoingMessage getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * @return completed once all of the message was written to the
+     *         connection.
+     */
+    public CompletableFuture<OutgoingMessage> written()
+    {
+        return written;
+    }
+
+    /**
+     * @return completed once all requests carrying the message got a 200
+     *         response.
+     */
+    public CompletableFuture<OutgoingMessage> acknowledged()
+    {
+        return acknowledged;
+    }
+
+    /**
+     * @return completed once a success report for all of the message was
+     *         received.
+     */
+    public CompletableFuture<OutgoingMessage> delivered()
+    {
+        return delivered;
+    }
+
+    /**
+     * @return have all milestones been completed, one way or another?
+     */
+    public boolean isDone()
+    {
+        return written.isDone() && acknowledged.isDone() && delivered.isDone();
+    }
+
+    /**
+     * A request carrying the message was sent and awaits its response.
+     */
+    synchronized void requestSent()
+    {
+        awaiting++;
+    }
+
+    /**
+     * The last request carrying the message was sent.
+     */
+    void lastRequestSent()
+    {
+        boolean done;
+        synchronized (this)
+        {
+            allSent = true;
+            done = awaiting == 0;
+        }
+        if (done)
+            acknowledged.complete(message);
+    }
+
+    /**
+     * All of the message was written to the connection.
+     */
+    void allWritten()
+    {
+        written.complete(message);
+    }
+
+    /**
+     * @param response the response to a request carrying the message.
+     */
+    void responseReceived(TransactionResponse response)
+    {
+        if (!response.isOk())
+        {
+            failed(new DeliveryFailedException(response.getResponseCode(),
+                "Request " + response.getTID() + " failed: " +
+                response.getComment()));
+            return;
+        }
+        boolean done;
+        synchronized (this)
+        {
+            awaiting--;
+            done = allSent && awaiting == 0;
+        }
+        if (done)
+            acknowledged.complete(message);
+    }
+
+    /**
+     * A success report only completes the delivery when its range covers
+     * all of the message, not for the last chunk only.
+     * 
+     * @param report a REPORT received for the message.
+     */
+    void reportReceived(Transaction report)
+    {
+        StatusHeader status = report.getStatusHeader();
+        long size = message.getSize();
+        if (status.getStatusCode() != ResponseCode.RC200)
+            failed(new DeliveryFailedException(status.getStatusCode(),
+                "Failure report: " + status.getComment()));
+        else if (size >= 0 &&		/* unknown until a streamed source ends */
+                report.getByteRange()[0] <= 1 &&
+                report.getByteRange()[1] >= size)
+            delivered.complete(message);
+    }
+
+    /**
+     * Complete the milestones still pending exceptionally.
+     * 
+     * @param cause why the message won't get there.
+     */
+    void failed(Throwable cause)
+    {
+        written.completeExceptionally(cause);
+        acknowledged.completeExceptionally(cause);
+        delivered.completeExceptionally(cause);
+    }
+
+    /**
+     * Cancel the milestones still pending, the message was aborted.
+     */
+    void cancel()
+    {
+        written.cancel(false);
+        acknowledged.cancel(false);
+        delivered.cancel(false);
+    }
+}
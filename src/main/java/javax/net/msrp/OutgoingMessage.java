@@ -19,6 +19,9 @@ package javax.net.msrp;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.security.InvalidParameterException;
 
 import javax.net.msrp.exceptions.IllegalUseException;
@@ -45,6 +48,11 @@ public class OutgoingMessage
     private int chunksSent;
     private int chunkOffset;
 
+    /**
+     * The progress followed, when sent asynchronously.
+     */
+    private MessageDelivery delivery = null;
+
     /**
      * Create a blank message that can be used to send over a session.
      */
@@ -72,6 +80,68 @@ public class OutgoingMessage
         size = dataContainer.size();
     }
 
+    /**
+     * Create a message with the content held by the given container.
+     * 
+     * @param contentType the content type
+     * @param container the content
+     */
+    public OutgoingMessage(String contentType, DataContainer container)
+    {
+        if (contentType == null || container == null)
+            throw new InvalidParameterException("Type must be specified with content");
+        this.contentType = contentType;
+        dataContainer = container;
+        size = isStreamed() ? UNKNOWN : container.size();
+    }
+
+    /**
+     * Create a message with content read from the given channel as it is
+     * sent, up to its end. Until then the total size is unknown and sent as
+     * '*', the last chunk carries it if known by then. The end of the
+     * message is signalled by the continuation flag of that chunk.
+     * 
+     * @param contentType the content type
+     * @param source the content
+     * @see ChannelDataContainer
+     */
+    public OutgoingMessage(String contentType, ReadableByteChannel source)
+    {
+        this(contentType, source == null ? null :
+                            new ChannelDataContainer(source));
+    }
+
+    /**
+     * Create a message with content read from the given stream as it is
+     * sent, up to its end.
+     * 
+     * @param contentType the content type
+     * @param source the content
+     * @see #OutgoingMessage(String, ReadableByteChannel)
+     */
+    public OutgoingMessage(String contentType, InputStream source)
+    {
+        this(contentType, source == null ? null :
+                            new ChannelDataContainer(source));
+    }
+
+    /**
+     * Create a message with content held in the given buffers, which is sent
+     * from them without copying. The given callback is run once the buffers
+     * are no longer referred to.
+     * 
+     * @param contentType the content type
+     * @param release run once the buffers are released, may be null
+     * @param buffers the content, the remaining bytes of each
+     * @see BufferDataContainer
+     */
+    public OutgoingMessage(String contentType, Runnable release,
+    		ByteBuffer... buffers)
+    {
+        this(contentType, buffers == null ? null :
+                            new BufferDataContainer(release, buffers));
+    }
+
     protected OutgoingMessage(String nickname)
     {
         this.nickname = nickname;
@@ -108,6 +178,8 @@ public class OutgoingMessage
 	                "pause() called on message with no transaction manager.");
 
         aborted = true;			/* signal this message internally as aborted */
+        if (delivery != null)
+            delivery.cancel();
 
         /* remove from the list of messages to send in session */
         session.delMessageToSend(this);
@@ -128,6 +200,18 @@ public class OutgoingMessage
             return dataContainer.get(outData, offset);
     }
 
+    @Override
+    ByteBuffer getView(int limit) throws Exception
+    {
+        if (chunkSize > 0)
+        {
+            long chunkSent = dataContainer.currentReadOffset() % chunkSize;
+            if (chunkSize - chunkSent < limit)
+                limit = (int) (chunkSize - chunkSent);
+        }
+        return dataContainer.getView(limit);
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.Message#getMessageID()
      */
@@ -149,6 +233,43 @@ public class OutgoingMessage
         return dataContainer == null ? 0 : dataContainer.currentReadOffset();
     }
 
+    /**
+     * @return the progress followed of this message, null unless sent with
+     *         {@link Session#sendMessageAsync(OutgoingMessage)}.
+     */
+    MessageDelivery getDelivery()
+    {
+        return delivery;
+    }
+
+    /**
+     * @param delivery the progress to follow of this message.
+     */
+    void setDelivery(MessageDelivery delivery)
+    {
+        this.delivery = delivery;
+    }
+
+    /**
+     * @return is the content read from a source of unknown length?
+     */
+    boolean isStreamed()
+    {
+        return dataContainer != null && dataContainer.isStreamed();
+    }
+
+    /**
+     * @return the size of this message, {@link Message#UNKNOWN} while its
+     *         content is read from a source that hasn't ended yet.
+     */
+    @Override
+    public long getSize()
+    {
+        if (size == UNKNOWN && isStreamed() && dataContainer.isEnded())
+            size = dataContainer.size();
+        return size;
+    }
+
     protected void setSession(Session session)
     {
         super.setSession(session);
@@ -158,12 +279,13 @@ public class OutgoingMessage
     }
 
     /**
-     * @return the number of chunks this message will be send in
+     * @return the number of chunks this message will be send in, streamed
+     *         content is sent a chunk at a time.
      */
     protected int getChunks()
     {
         int chunks = 1;
-        if (chunkSize > 0 && size > chunkSize)
+        if (chunkSize > 0 && size > chunkSize && !isStreamed())
         {
             chunks = (int) (size / chunkSize);
             if (size % chunkSize != 0)
@@ -177,7 +299,7 @@ public class OutgoingMessage
      */
     protected long nextRange()
     {
-        if (chunkSize == 0)
+        if (chunkSize == 0 || isStreamed())
             return getSentBytes() + 1;
         else
         {
@@ -196,6 +318,7 @@ public class OutgoingMessage
     public boolean isComplete()
     {
     	long sentBytes = getSentBytes();
+    	long size = getSize();
     	if (logger.isTraceEnabled())
             logger.trace(String.format(
             		"isComplete(%s, sent[%d])? %b",
@@ -1,8 +1,5 @@
 package javax.net.msrp;
 
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
-
 import javax.net.msrp.exceptions.ParseException;
 import javax.net.msrp.utils.TextUtils;
 
@@ -13,6 +10,12 @@ import org.slf4j.LoggerFactory;
 /** Pre-parse incoming data.
  * Main goal is to separate header data from any -optional- content-stuff.
  * These are fed separately to the connection parser.
+ * <p>
+ * Every received byte is looked at once: header data is handed to the
+ * connection parser, which tells where content-stuff starts; content-stuff is
+ * scanned for the end-line and handed over as slices of the received data.
+ * An end-line that is split over reads is carried over as the number of its
+ * bytes matched, these bytes are known and aren't kept.
  */
 class PreParser
 {
@@ -33,26 +36,33 @@ class PreParser
      */
     private boolean inContentStuff = false;
 
-    private short preState = 0;
+    /**
+     * The end of the content-stuff being received: the CRLF after the data,
+     * the end-line and its closing CRLF. The continuation flag is filled in
+     * when matched.
+     */
+    private byte[] endLine;
+
+    /**
+     * Index of the continuation flag in endLine.
+     */
+    private int flagIndex;
 
     /**
-     * Save the possible start of end-line.
-     * Max size:
-     * 		2 bytes for CRLF after data;
-     * 		7 for '-';
-     * 		32 for transactid;
-     * 		1 for continuation flag;
-     * 		2 for closing CRLF
-     * Total: 44 bytes.
+     * Number of bytes of endLine matched so far.
      */
-    private ByteBuffer wrapBuffer = ByteBuffer.allocate(44);
+    private int matched = 0;
 
     /**
-     * A tiny state machine to identify if 
-     * the incomingData belongs to header-data or is content-stuff.
-     * It is responsible for changing the value of inContentStuff
-     * and then calling the actual parser (gluing data chunks together).
-     * 
+     * Number of the matched bytes that were received in earlier reads. They
+     * are handed over as data when the end-line doesn't match after all.
+     */
+    private int carried = 0;
+
+    /**
+     * Separate the received data into header data and content-stuff and
+     * have the connection parse them.
+     *
      * @param incomingData buffer containing received data
      * @param length number of bytes of received data
      * @throws ParseException an exception occurred
@@ -62,203 +72,98 @@ class PreParser
         throws ParseException
     {
         if (logger.isTraceEnabled())
-            logger.trace("Received:\r\n'" + new String(incomingData) + "'");
-        ByteBuffer data = ByteBuffer.wrap(incomingData, 0, length);
-        /*
-         * Index of data already processed
-         */
-        int indexProcessed = 0;
-
-        if (wrapBuffer.position() != 0)
+            logger.trace("Received:\r\n'" +
+                new String(incomingData, 0, length, TextUtils.utf8) + "'");
+        int offset = 0;
+        while (offset < length)
         {
-            /* in case we have data to prepend, prepend it */
-            int bytesToPrepend = wrapBuffer.position();
-            byte[] prependedData = new byte[(bytesToPrepend + length)];
-            wrapBuffer.flip();
-            wrapBuffer.get(prependedData, 0, bytesToPrepend);
-            wrapBuffer.clear();
-            data.get(prependedData, bytesToPrepend, length);
-            /*
-             * now substitute the buffer with prepended bytes but start
-             * processing after the prepend.
-             */
-            data = ByteBuffer.wrap(prependedData);
-            data.position(bytesToPrepend);
+            if (inContentStuff)
+                offset = parseContent(incomingData, offset, length);
+            else
+            {
+                int contentStart = connection.parseHeaderData(incomingData,
+                                        offset, length - offset);
+                if (contentStart < 0)
+                    return;
+                startContent();
+                offset = contentStart;
+            }
         }
+    }
 
-        while (data.hasRemaining())
-        {
-            /*
-             * 2 distinct points of start for the algorithm: headers or content-stuff
-             */
-            if (!inContentStuff)
-            {					// hunt for 2CRLF (start of data in content-stuff)
-                switch (preState)
-                {
-                case 0:
-                    if (data.get() == '\r')
-                        preState++;
-                    break;
-                case 1:
-                    if (data.get() == '\n')
-                        preState++;
-                    else
-                        reset(data);
-                    break;
-                case 2:
-                    if (data.get() == '\r')
-                        preState++;
-                    else
-                        reset(data);
-                    break;
-                case 3:
-                    if (data.get() == '\n')
-                    {
-                        preState = 0;
-                        connection.parser(data.array(), indexProcessed,
-                            data.position() - indexProcessed,
-                            inContentStuff);
-                        if (connection.getCurrentIncomingTid() == null)
-                        	throw new ParseException(
-                        					"no transaction found");
-
-                        indexProcessed = data.position();
-                        inContentStuff = true;
-                    }
-                    else
-                        reset(data);
-                }
-            }
-            else					// data, hunt for end-line
-            {
-                switch (preState)
-                {
-                case 0:
-                    if (data.get() == '\r')
-                        preState++;
-                    break;
-                case 1:
-                    if (data.get() == '\n')
-                        preState++;
-                    else
-                        reset(data);
-                    break;
-                case 2:
-                case 3:
-                case 4:
-                case 5:
-                case 6:
-                case 7:
-                case 8:
-                    if (data.get() == '-')
-                        preState++;
-                    else
-                        reset(data);
-                    break;
-                default:
-                    if (preState >= 9)
-                    {
-                        if (connection.getCurrentIncomingTid() == null)
-                        	throw new ParseException(
-                        					"no transaction found");
+    /**
+     * Prepare for the content-stuff of the transaction being received.
+     *
+     * @throws ParseException when there is no such transaction.
+     */
+    private void startContent() throws ParseException
+    {
+        String tid = connection.getCurrentIncomingTid();
+        if (tid == null)
+            throw new ParseException("no transaction found");
+        endLine = ("\r\n-------" + tid + "$\r\n").getBytes(TextUtils.usascii);
+        flagIndex = endLine.length - 3;
+        matched = 0;
+        carried = 0;
+        inContentStuff = true;
+    }
 
-                        int tidSize = connection.getCurrentIncomingTid().length();
-                        if (tidSize == (preState - 9))
-                        {
-                            /*
-                             * End of Tx-id, look for valid continuation flag.
-                             */
-                            char incChar = (char) data.get();
-                            if (incChar == '+' || incChar == '$' ||
-                                incChar == '#')
-                            {
-                                preState++;
-                            }
-                            else
-                                reset(data);
-                        }
-                        else if ((preState - 9) > tidSize)
-                        {
-                            if ((preState - 9) == tidSize + 1)
-                            {		/* expect the CR here */
-                                if (data.get() == '\r')
-                                    preState++;
-                                else
-                                    reset(data);
-                            }
-                            else if ((preState - 9) == tidSize + 2)
-                            {		/* expect the LF here */
-                                if (data.get() == '\n')
-                                {
-                                    preState++;
-                                    /*
-                                     * body received so process all of the
-                                     * data we have so far excluding CRLF
-                                     * and "end-line" that later must be
-                                     * parsed as text.
-                                     */
-                                    data.position(data.position() - preState);
-                                    connection.parser(data.array(), indexProcessed,
-                                		data.position() - indexProcessed,
-                                		inContentStuff);
-                                    indexProcessed = data.position();
-                                    inContentStuff = false;
-                                    preState = 0;
-                                }
-                                else
-                                    reset(data);
-                            }
-                        }
-                        else
-                        {
-                        	if ((tidSize > (preState - 9)) &&
-                        		(data.get() == connection.getCurrentIncomingTid().charAt(preState - 9)))
-                        		preState++;
-                        	else
-                        		reset(data);
-                        }
-                    }				// end of default:
-                    break;
-                }
-            }
-        }							// while (data.hasRemaining())
-        /*
-         * We scanned everything, process remaining data.
-         * Exclude any end-line state (when scanning for end-line after
-         * content-stuff) to be wrapped to next scan.
-         */
-        int endOfData = data.position();
-        if (inContentStuff && preState != 0)
+    /**
+     * Hand the content-stuff in the given data to the connection, up to the
+     * end-line.
+     *
+     * @param data		the received data
+     * @param offset	start of the content-stuff
+     * @param length	end of the received data
+     * @return the offset after the end-line, or length if not found.
+     */
+    private int parseContent(byte[] data, int offset, int length)
+    {
+        int i = offset;
+        while (i < length)
         {
-            endOfData -= preState;		/* here we save the state */
-            try
+            if (matched == 0)
             {
-                wrapBuffer.put(data.array(), endOfData, preState);
+                while (i < length && data[i] != '\r')
+                    i++;
+                if (i == length)
+                    break;
+                matched = 1;
+                i++;
+                continue;
             }
-            catch (BufferOverflowException e)
+            byte b = data[i];
+            if (matched == flagIndex ? isFlag(b) : b == endLine[matched])
             {
-            	logger.error(String.format(
-        			"Error wrapping %d bytes (from[%d] to[%d])\nContent:[%s]",
-        			preState, endOfData, data.position(),
-                    new String(data.array(), TextUtils.utf8).substring(endOfData, data.position())
-    			));
-                throw e;
+                endLine[matched++] = b;
+                i++;
+                if (matched == endLine.length)
+                {				/* the end-line and the CRLF before it aren't data */
+                    connection.parseContent(data, offset,
+                        i - (matched - carried) - offset);
+                    inContentStuff = false;
+                    connection.endOfTransaction((char) endLine[flagIndex]);
+                    return i;
+                }
+                continue;
             }
+            /*
+             * No end-line after all, look at this byte again. The bytes
+             * matched can't start one themselves: none but the first is a CR
+             * followed by a LF.
+             */
+            connection.parseContent(endLine, 0, carried);
+            carried = 0;
+            matched = 0;
         }
-        connection.parser(	data.array(), indexProcessed,
-        					endOfData - indexProcessed, inContentStuff);
+        connection.parseContent(data, offset,
+            length - (matched - carried) - offset);
+        carried = matched;
+        return length;
     }
 
-    /**
-     * Rewind 1 position in given buffer (if possible) and reset state.
-     * 
-     * @param buffer the buffer to rewind
-     */
-    private void reset(ByteBuffer buffer)
+    private static boolean isFlag(byte b)
     {
-    	preState = 0;
-        int position = buffer.position();
-        if (position != 0)
-        	buffer.position(position - 1);
+        return b == '$' || b == '#' || b == '+';
     }
-}
\ No newline at end of file
+}
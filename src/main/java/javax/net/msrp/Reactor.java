@@ -0,0 +1,226 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A selector loop that multiplexes the I/O of many {@link Connection}s on
+ * a single thread.
+ * <p>
+ * When the NIO engine is enabled (see {@link Stack#setUseReactors(boolean)})
+ * a connection doesn't get a read and a write thread of its own; instead it is
+ * hashed onto one of a small number of reactors and its channel is put in
+ * non-blocking mode. Read readiness feeds the received bytes to the
+ * connection's {@link PreParser}, write readiness drains the connection's
+ * {@link TransactionManager}.
+ * <p>
+ * All changes to selection keys are done on the reactor thread itself, other
+ * threads post them as tasks and wake up the selector.
+ */
+class Reactor
+    implements Runnable
+{
+    private static final Logger logger =
+        LoggerFactory.getLogger(Reactor.class);
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    /**
+     * Registrations and interest changes posted by other threads, run by the
+     * reactor thread before its next select.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+        new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * The buffer that all connections of this reactor read into: the received
+     * data is parsed before the next read. Being shared, it has the largest
+     * size of {@link Stack#setIOBufferSize(int)} from the start.
+     */
+    private final ByteBuffer inBuffer =
+        ByteBuffer.allocate(Stack.getIOBufferSize());
+
+    /**
+     * Create and start a new reactor.
+     *
+     * @param name the name of the reactor thread
+     * @throws IOException if the selector couldn't be opened
+     */
+    Reactor(String name) throws IOException
+    {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Hand the given (connected) connection over to this reactor.
+     *
+     * @param connection the connection whose I/O is to be handled here.
+     */
+    void register(final Connection connection)
+    {
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                SocketChannel channel = connection.getSocketChannel();
+                try
+                {
+                    channel.configureBlocking(false);
+                    int ops = SelectionKey.OP_READ;
+                    if (connection.getTransactionManager().hasDataToSend())
+                        ops |= SelectionKey.OP_WRITE;
+                    connection.setSelectionKey(
+                        channel.register(selector, ops, connection));
+                }
+                catch (ClosedChannelException e)
+                {
+                    logger.debug("Connection closed before registration: "
+                        + connection.getLocalURI());
+                }
+                catch (IOException e)
+                {
+                    logger.error("Unable to register connection "
+                        + connection.getLocalURI(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Signal that the given connection has got data to send: have the reactor
+     * wait for write readiness of its channel.
+     *
+     * @param connection the connection with data to send.
+     */
+    void wantWrite(final Connection connection)
+    {
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                SelectionKey key = connection.getSelectionKey();
+                if (key != null && key.isValid())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    /**
+     * Have the reactor stop or resume reading the channel of the given
+     * connection, to hold back its sender.
+     *
+     * @param connection the connection.
+     * @param read whether to read from its channel.
+     */
+    void wantRead(final Connection connection, final boolean read)
+    {
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                SelectionKey key = connection.getSelectionKey();
+                if (key == null || !key.isValid())
+                    return;
+                if (read)
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                else
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    private void execute(Runnable task)
+    {
+        if (Thread.currentThread() == thread)
+        {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (CancelledKeyException e)
+                    {
+                        ;			// connection closed meanwhile, nothing to do
+                    }
+                }
+
+                Iterator<SelectionKey> keys =
+                    selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try
+                    {
+                        if (key.isValid() && key.isReadable())
+                            connection.readReady(inBuffer);
+                        if (key.isValid() && key.isWritable())
+                            connection.writeReady();
+                    }
+                    catch (CancelledKeyException e)
+                    {			// closed by another thread, go on with the rest
+                        logger.debug("Connection closed while handling its I/O: "
+                            + connection.getLocalURI());
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                logger.error("Unexpected error in " + thread.getName(), e);
+            }
+        }
+    }
+}
@@ -16,8 +16,6 @@
  */
 package javax.net.msrp;
 
-import java.util.HashMap;
-
 /**
  * Public "interface" that allows one to define it's own report mechanisms of
  * receiving/sending of messages
@@ -33,9 +31,6 @@ import java.util.HashMap;
  */
 public abstract class ReportMechanism
 {
-    private HashMap<Message, Counter> messageCounters =
-        new HashMap<Message, Counter>();
-
     /**
      * Method that accounts for blocks of received body of the given message
      * starting at the offset given by the byte-range header field of the
@@ -45,6 +40,7 @@ public abstract class ReportMechanism
      * @param transaction the transaction associated with this block
      * @param chunkStartOffset the absolute offset within the given message
      * @param chunkNrBytes the number of bytes accounted for starting from the
+     * @see #isTriggeredOnGranularity()
      */
     public final void countReceivedBodyBlock(Message message,
         Transaction transaction, long chunkStartOffset, int chunkNrBytes)
@@ -53,6 +49,18 @@ public abstract class ReportMechanism
         counter.register(chunkStartOffset, chunkNrBytes);
         long callCount = counter.getCount();
 
+        if (isTriggeredOnGranularity())
+        {
+            /*
+             * blocks are as large as received: only trigger once the count
+             * crossed the granularity (or the message is complete)
+             */
+            long granularity = Math.max(getTriggerGranularity(), 1);
+            if (callCount / granularity ==
+                    message.lastCallReportCount / granularity &&
+                (callCount < message.getSize() || !message.isComplete()))
+                return;
+        }
         triggerSuccessReport(message, transaction, message.lastCallReportCount,
             callCount);
 
@@ -97,19 +105,17 @@ public abstract class ReportMechanism
 
     /**
      * Retrieve the counter associated with the given message
+     * <p>
+     * The counter is kept by the message itself, so mechanisms shared by
+     * sessions don't need to synchronise on a registry of their own, nor do
+     * they hold on to the messages.
      * 
      * @param message the message to retrieve the counter from
      * @return the counter associated with the given message
      */
     public final Counter getCounter(Message message)
     {
-        Counter counterToRetrieve = messageCounters.get(message);
-        if (counterToRetrieve == null)
-        {
-            counterToRetrieve = new Counter(message);
-            messageCounters.put(message, counterToRetrieve);
-        }
-        return counterToRetrieve;
+        return message.getCounter();
     }
 
     /**
@@ -146,6 +152,23 @@ public abstract class ReportMechanism
      */
     public abstract int getTriggerGranularity();
 
+    /**
+     * Received blocks are as large as what was read from the connection, so
+     * {@link #shouldGenerateReport(Message, long, long)} is called once for
+     * every block by default.
+     * <P>
+     * Mechanisms that only look at the count may override this to return
+     * true. It is then only called when the count crossed a multiple of
+     * {@link #getTriggerGranularity()}, or once the message is complete.
+     *
+     * @return true to call {@link #shouldGenerateReport(Message, long, long)}
+     *         on the trigger granularity only.
+     */
+    protected boolean isTriggeredOnGranularity()
+    {
+        return false;
+    }
+
     /**
      * Called whenever {@link #getTriggerGranularity()} change to the number
      * of received bytes is detected on the message.
@@ -189,6 +212,6 @@ public abstract class ReportMechanism
      */
     public void removeMessage(Message message) 
     {
-    	messageCounters.remove(message);
+    	message.releaseCounter();
     }
 }
@@ -54,11 +54,6 @@ public class ReportTransaction
             throw new InternalErrorException("Generating report: this session"
             				+ "and associated message session differ!");
 
-        if (transaction.getTotalMessageBytes() == Message.UNINTIALIZED)
-            throw new InternalErrorException(
-    			"Invalid argument or in generating a report, the total number "
-        		+ "of bytes of this message was unintialized");
-
         this.message = message;
         continuation_flag = FLAG_END;
 	}
@@ -85,9 +80,11 @@ public class ReportTransaction
         		.append("\r\nMessage-ID: ").append(message.getMessageID());
 
         long totalBytes = transaction.getTotalMessageBytes();
+        if (totalBytes < 0)			/* '*', known once the message is complete */
+            totalBytes = message.getSize();
         header.append("\r\nByte-Range: 1-").append(message.getCounter()
         		.getNrConsecutiveBytes()).append("/");
-        if (totalBytes == Message.UNKNOWN)
+        if (totalBytes < 0)
             header.append("*");
         else
             header.append(totalBytes);
@@ -55,7 +55,7 @@ public class ResponseCode {
 	};
 
 	static final int abortCode[] = {
-		RC400, RC403, RC413, RC415, RC481
+		RC400, RC403, RC408, RC413, RC415, RC481
 	};
 
 	/** Is given response code a valid MSRP code?
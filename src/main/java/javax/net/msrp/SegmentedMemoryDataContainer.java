@@ -0,0 +1,360 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import javax.net.msrp.exceptions.IllegalUseException;
+import javax.net.msrp.exceptions.NotEnoughDataException;
+import javax.net.msrp.exceptions.NotEnoughStorageException;
+
+/**
+ * A data container that keeps the data in memory outside of the heap.
+ * <p>
+ * The data is stored in direct segments of {@value #SEGMENT_SIZE} bytes that
+ * are added as the data grows, so there is no limit on the size of the
+ * message other than the memory available and no large array to be
+ * allocated up front. Content is sent from views on the segments, without
+ * copying.
+ * <p>
+ * {@link #dispose()} hands the segments back to a pool shared by all
+ * containers, of which new containers take their segments first, zeroed.
+ * Segments beyond what the pool retains are freed by the garbage collector.
+ * So are the segments of a container that handed out views with
+ * {@link #getView(int)}: those may still be queued for writing to a
+ * connection after the container is disposed of.
+ * 
+ * @see DataContainer
+ * @see MemoryDataContainer
+ */
+public class SegmentedMemoryDataContainer
+    extends DataContainer
+{
+    /**
+     * Size (bytes) of a segment.
+     */
+    static final int SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * Number of disposed segments kept for reuse.
+     */
+    static final int MAX_RETAINED = 256;
+
+    private static final ArrayDeque<ByteBuffer> spare =
+        new ArrayDeque<ByteBuffer>();
+
+    private static final byte[] zeros = new byte[SEGMENT_SIZE];
+
+    private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+    /**
+     * Number of bytes of data: the end of the data stored.
+     */
+    private long size = 0;
+
+    private long readOffset = 0;
+
+    /**
+     * Whether views on the segments were handed out.
+     */
+    private boolean viewed = false;
+
+    /**
+     * Creates an empty container, that grows as data is put in.
+     */
+    public SegmentedMemoryDataContainer()
+    {
+        ;
+    }
+
+    /**
+     * Creates a container holding a copy of the given data.
+     * 
+     * @param data the data.
+     */
+    public SegmentedMemoryDataContainer(byte[] data)
+    {
+        put(0, ByteBuffer.wrap(data));
+    }
+
+    private static ByteBuffer takeSegment()
+    {
+        ByteBuffer segment;
+        synchronized (spare)
+        {
+            segment = spare.poll();
+        }
+        if (segment == null)
+            return ByteBuffer.allocateDirect(SEGMENT_SIZE);
+        segment.clear();
+        segment.put(zeros);		/* no data of a previous message */
+        segment.clear();
+        return segment;
+    }
+
+    private static void giveSegment(ByteBuffer segment)
+    {
+        synchronized (spare)
+        {
+            if (spare.size() < MAX_RETAINED)
+                spare.push(segment);
+        }
+    }
+
+    /**
+     * @return the number of segments in the pool.
+     */
+    static int spareSegments()
+    {
+        synchronized (spare)
+        {
+            return spare.size();
+        }
+    }
+
+    /**
+     * @return the segment holding the given index, added if needed.
+     */
+    private ByteBuffer segment(long index)
+    {
+        int i = (int) (index / SEGMENT_SIZE);
+        while (segments.size() <= i)
+            segments.add(takeSegment());
+        return segments.get(i);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#size()
+     */
+    @Override
+    public long size()
+    {
+        return size;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#currentReadOffset()
+     */
+    @Override
+    public long currentReadOffset()
+    {
+        return readOffset;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#hasDataToRead()
+     */
+    @Override
+    public boolean hasDataToRead()
+    {
+        return readOffset < size;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, java.nio.ByteBuffer)
+     */
+    @Override
+    public void put(long startingIndex, ByteBuffer dataToPut)
+    {
+        if (startingIndex < 0)
+            throw new IllegalArgumentException("Starting index should be >= 0");
+        long index = startingIndex;
+        while (dataToPut.hasRemaining())
+        {
+            ByteBuffer segment = segment(index).duplicate();
+            segment.position((int) (index % SEGMENT_SIZE));
+            int length = Math.min(segment.remaining(), dataToPut.remaining());
+            ByteBuffer part = dataToPut.duplicate();
+            part.limit(part.position() + length);
+            segment.put(part);
+            dataToPut.position(part.limit());
+            index += length;
+        }
+        if (index > size)
+            size = index;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, byte[])
+     */
+    @Override
+    public void put(long startingIndex, byte[] dataToPut)
+    {
+        put(startingIndex, ByteBuffer.wrap(dataToPut));
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(byte)
+     */
+    @Override
+    public void put(byte byteToPut)
+    {
+        put(size, byteToPut);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, byte)
+     */
+    @Override
+    public void put(long startingIndex, byte byteToPut)
+    {
+        if (startingIndex < 0)
+            throw new IllegalArgumentException("Starting index should be >= 0");
+        segment(startingIndex).put((int) (startingIndex % SEGMENT_SIZE),
+            byteToPut);
+        if (startingIndex >= size)
+            size = startingIndex + 1;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int)
+     */
+    @Override
+    public int get(byte[] dst, int offset)
+        throws IndexOutOfBoundsException
+    {
+        return get(dst, offset, dst.length - offset);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int, int)
+     */
+    @Override
+    public int get(byte[] dst, int offset, int limit)
+        throws IndexOutOfBoundsException
+    {
+        if (offset > dst.length - 1)
+            throw new IndexOutOfBoundsException();
+        int length = (int) Math.min(Math.min(dst.length - offset, limit),
+                                size - readOffset);
+        copy(readOffset, dst, offset, length);
+        readOffset += length;
+        return length;
+    }
+
+    /**
+     * Copy data out of the segments.
+     */
+    private void copy(long index, byte[] dst, int offset, int length)
+    {
+        while (length > 0)
+        {
+            ByteBuffer segment = segments.get((int) (index / SEGMENT_SIZE))
+                                    .duplicate();
+            segment.position((int) (index % SEGMENT_SIZE));
+            int part = Math.min(segment.remaining(), length);
+            segment.get(dst, offset, part);
+            index += part;
+            offset += part;
+            length -= part;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#getView(int)
+     */
+    @Override
+    public ByteBuffer getView(int limit)
+    {
+        if (readOffset >= size)
+            return ByteBuffer.allocate(0);
+        ByteBuffer view = segments.get((int) (readOffset / SEGMENT_SIZE))
+                            .duplicate();
+        view.position((int) (readOffset % SEGMENT_SIZE));
+        long remaining = Math.min(size - readOffset, limit);
+        if (view.remaining() > remaining)
+            view.limit(view.position() + (int) remaining);
+        readOffset += view.remaining();
+        viewed = true;
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Put all of the data in the given file container, at the same offsets.
+     * The views on the segments used aren't handed out, so the segments are
+     * still pooled on dispose. The read offset isn't changed.
+     * 
+     * @param to the container to copy to.
+     * @throws NotEnoughStorageException if the file can't hold the data.
+     * @throws IOException if writing the file failed.
+     */
+    void copyTo(FileDataContainer to)
+        throws NotEnoughStorageException, IOException
+    {
+        for (int i = 0; i < segments.size(); i++)
+        {
+            long start = (long) i * SEGMENT_SIZE;
+            if (start >= size)
+                break;
+            ByteBuffer view = segments.get(i).duplicate();
+            view.limit((int) Math.min(SEGMENT_SIZE, size - start));
+            to.put(start, view);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(long, long)
+     */
+    @Override
+    public ByteBuffer get(long offsetIndex, long size)
+        throws NotEnoughDataException, IllegalUseException
+    {
+        if (size <= 0)
+            size = this.size - offsetIndex;
+        if (size < 0 || offsetIndex < 0)
+            throw new IllegalUseException("negative size or index");
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalUseException("Can't retrieve " + size +
+                " bytes in a buffer");
+        if (offsetIndex + size > this.size)
+            throw new NotEnoughDataException();
+        byte[] data = new byte[(int) size];
+        copy(offsetIndex, data, 0, data.length);
+        return ByteBuffer.wrap(data);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#rewindRead(long)
+     */
+    @Override
+    public void rewindRead(long nrPositions)
+    {
+        readOffset -= nrPositions;
+    }
+
+    /**
+     * Hands the segments back to the pool, unless views on them were handed
+     * out.
+     * 
+     * @see javax.net.msrp.DataContainer#dispose()
+     */
+    @Override
+    public void dispose()
+    {
+        if (!viewed)
+            for (ByteBuffer segment : segments)
+                giveSegment(segment);
+        segments.clear();
+        viewed = false;
+        size = 0;
+        readOffset = 0;
+    }
+}
@@ -24,9 +24,11 @@ import java.net.URI;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 
 import javax.net.msrp.events.*;
 import javax.net.msrp.exceptions.*;
+import javax.net.msrp.utils.NetworkUtils;
 import javax.net.msrp.wrap.Wrap;
 
 import org.slf4j.Logger;
@@ -81,6 +83,15 @@ public class Session
     private long activeEnd;
     /** the refresh period currently in effect	*/
     private int refresh;
+	/** transitions active to idle at activeEnd */
+    private TimerWheel.Timeout composeTimer;
+
+    /** keep-alive interval in seconds (0: none)	*/
+    private int keepAlive = 0;
+	/** fires the next keep-alive check	*/
+    private TimerWheel.Timeout keepAliveTimer;
+	/** anything sent since the last keep-alive check?	*/
+    private volatile boolean sentSinceKeepAlive = false;
 
     /** the chunk size to use when SENDing data */
     private long chunkSize = 0;
@@ -98,6 +109,12 @@ public class Session
      */
     private Connection connection = null;
 
+    /** the next hop given on creation, null if none	*/
+    private URI nextHop = null;
+
+    /** is the connection that of another session to the same next hop?	*/
+    private boolean sharesConnection = false;
+
     /**
      * The queue of messages to send.
      * 
@@ -105,6 +122,12 @@ public class Session
      */
     private ArrayList<Message> sendQueue = new ArrayList<Message>();
 
+    /**
+     * The progress followed of messages sent asynchronously.
+     */
+    private ArrayList<MessageDelivery> deliveries =
+    		new ArrayList<MessageDelivery>();
+
     /**
      * stores sent/being sent messages (by message-ID) on request of the Success-Report field.
      * @uml.property name="_messagesSent"
@@ -154,13 +177,63 @@ public class Session
 
     Session(boolean isSecure, boolean isRelay, InetAddress address)
         throws InternalErrorException
+    {
+        this(isSecure, isRelay, address, (Connection) null);
+    }
+
+    /** Create an active session with the local address, that will connect
+     * to the given next hop (relay or peer).
+     * <br>
+     * When another session has an established connection to that next hop,
+     * the connection is shared (unless disabled by
+     * {@link Stack#setShareConnections(boolean)}) and the URI of this session
+     * is generated on it. Either way the URI of the session doesn't change
+     * once created, so it can be advertised right away.
+     * <br>
+     * Connection will be established once a call to {@link #setToPath(ArrayList)}
+     * defines the target-list, which must start at the given next hop.
+     * 
+     * @param isSecure	Is it a secure connection or not (use TLS - not implemented yet)?
+     * @param isRelay	is this a relaying session?
+     * @param address	the address to use as local end-point.
+     * @param nextHop	URI of the next hop, only its authority is used.
+     * @return the created session
+     * @throws InternalErrorException if any error occurred. More info about the
+     *             error in the accompanying Throwable.
+     * @see #setToPath(ArrayList)
+     */
+    public static Session create(boolean isSecure, boolean isRelay,
+    		InetAddress address, URI nextHop) throws InternalErrorException
+    {
+        if (address == null)
+            throw new IllegalArgumentException("Address must have a value");
+        if (nextHop == null || !RegEx.isMsrpUri(nextHop))
+            throw new IllegalArgumentException("Invalid next hop: " + nextHop);
+        return new Session(isSecure, isRelay, address, nextHop);
+    }
+
+    Session(boolean isSecure, boolean isRelay, InetAddress address, URI nextHop)
+        throws InternalErrorException
+    {
+        this(isSecure, isRelay, address,
+        		Stack.getInstance().acquireConnection(nextHop, address));
+        this.nextHop = nextHop;
+    }
+
+    /**
+     * @param shared	an established connection to the next hop to share,
+     * 					null to set up one for this session.
+     */
+    private Session(boolean isSecure, boolean isRelay, InetAddress address,
+    		Connection shared) throws InternalErrorException
     {
         this.localAddress = address;
         this.isSecure = isSecure;
         this.isRelay = isRelay;
         try
         {
-            connection = new Connection(address);
+            connection = shared == null ? new Connection(address) : shared;
+            sharesConnection = shared != null;
 
             // Generate new URI and add to list of connection-URIs.
             uri = connection.generateNewURI();
@@ -171,6 +244,8 @@ public class Session
         }
         catch (Exception e)
         {
+            if (shared != null)
+                stack.releaseConnection(shared);
             throw new InternalErrorException(e);
         }
     }
@@ -323,11 +398,16 @@ public class Session
      * Adds the given destination URI's and establish the connection according RFC.
      * <br>
      * This call should follow the creation of a {@link Session}.
+     * <br>
+     * The connection is that of the session; use
+     * {@link #create(boolean, boolean, InetAddress, URI)} to share the
+     * connection of another session to the same next hop.
      * 
      * @param uris the to-path to use.
      * 
      * @throws IOException if there was a connection problem.
-     * @throws IllegalArgumentException if the given URI's are not MSRP URIs
+     * @throws IllegalArgumentException if the given URI's are not MSRP URIs,
+     *             or don't start at the next hop given on creation.
      * @throws RuntimeException when called twice.
      * @see #create(boolean, boolean, InetAddress)
      */
@@ -342,8 +422,21 @@ public class Session
         	else
         		throw new IllegalArgumentException("Invalid To-URI: " + uri);
         }
-        connection.addEndPoint(getNextURI(), localAddress);
-
+        URI first = getNextURI();
+        if (nextHop != null && !NetworkUtils.getCompleteAuthority(nextHop)
+        		.equals(NetworkUtils.getCompleteAuthority(first)))
+        {
+        	toUris.clear();
+        	throw new IllegalArgumentException("To-path doesn't start at " +
+        			"the next hop given on creation: " + first);
+        }
+        if (sharesConnection)			// connected already, chosen on creation
+            logger.debug(this + " shares connection " + connection.getLocalURI());
+        else
+        {
+            connection.addEndPoint(getNextURI(), localAddress);
+            stack.shareConnection(getNextURI(), localAddress, connection);
+        }
         txManager = connection.getTransactionManager();
         txManager.addSession(this);
         txManager.initialize(this);
@@ -362,6 +455,84 @@ public class Session
     	sendMessage(new OutgoingAliveMessage());
     }
 
+    /**
+     * Have this session send a keep-alive (bodiless message) whenever nothing
+     * was sent on it during the given interval.
+     * 
+     * @param seconds the keep-alive interval, 0 to stop sending keep-alives.
+     * @see #sendAliveMessage()
+     * @see Stack#setConnectionIdleTimeout(long)
+     */
+    public synchronized void setKeepAlive(int seconds)
+    {
+    	if (seconds < 0)
+    		throw new IllegalArgumentException(
+    				"Invalid keep-alive interval: " + seconds);
+    	keepAlive = seconds;
+    	if (keepAliveTimer != null)
+    		keepAliveTimer.cancel();
+    	keepAliveTimer = null;
+    	if (seconds > 0)
+    		scheduleKeepAlive();
+    }
+
+    /**
+     * @return the keep-alive interval in seconds, 0 when not sending any.
+     * @see #setKeepAlive(int)
+     */
+    public int getKeepAlive()
+    {
+    	return keepAlive;
+    }
+
+    private void scheduleKeepAlive()
+    {
+    	sentSinceKeepAlive = false;
+    	keepAliveTimer = Stack.getTimerWheel().schedule(new Runnable()
+    		{
+    			@Override
+    			public void run()
+    			{
+    				keepAlive();
+    			}
+    		}, keepAlive * 1000L);
+    }
+
+    private void keepAlive()
+    {
+    	final TimerWheel.Timeout expired;
+    	synchronized (this)
+    	{
+    		if (keepAlive == 0 || sendQueue == null)
+    			return;					// stopped or torn down
+    		expired = keepAliveTimer;
+    		if (sentSinceKeepAlive || txManager == null)
+    		{
+    			scheduleKeepAlive();
+    			return;
+    		}
+    	}
+    	/*
+    	 * queueing the message waits for the transaction manager, which the
+    	 * ticker of the timer wheel mustn't do.
+    	 */
+    	Stack.getWorker().execute(new Runnable()
+    		{
+    			@Override
+    			public void run()
+    			{
+    				logger.trace(Session.this + " sending keep-alive");
+    				sendAliveMessage();
+    				synchronized (Session.this)
+    				{
+    					if (keepAliveTimer == expired && sendQueue != null &&
+    							keepAlive != 0)
+    						scheduleKeepAlive();	// unless changed meanwhile
+    				}
+    			}
+    		});
+    }
+
     /** send the given content over this session.
 	 * 
 	 * @param contentType	the type of content (refer to the MIME RFC's).
@@ -424,9 +595,47 @@ public class Session
 		return sendMessage(new OutgoingMessage(contentType, fileHandle));
 	}
 
+	/** Send the given content over this session, following its progress.
+	 * 
+	 * @param contentType	the type of content (refer to the MIME RFC's).
+	 * @param content		the content itself
+	 * @return				the progress of the message sent.
+	 * @see #sendMessageAsync(OutgoingMessage)
+	 */
+	public MessageDelivery sendMessageAsync(String contentType, byte[] content)
+	{
+		return sendMessageAsync(new OutgoingMessage(contentType, content));
+	}
+
+	/** Send the given message over this session, following its progress.
+	 * Instead of waiting for the callbacks of the {@link SessionListener},
+	 * the caller can chain on the futures of the returned delivery; the
+	 * callbacks are still made.
+	 * 
+	 * @param message	the message to send, with its reports set as wanted.
+	 * @return			the progress of the message sent.
+	 * @see MessageDelivery
+	 */
+	public MessageDelivery sendMessageAsync(OutgoingMessage message)
+	{
+		MessageDelivery delivery = new MessageDelivery(message);
+		message.setDelivery(delivery);
+		synchronized (deliveries)
+		{
+			Iterator<MessageDelivery> it = deliveries.iterator();
+			while (it.hasNext())
+				if (it.next().isDone())
+					it.remove();
+			deliveries.add(delivery);
+		}
+		sendMessage(message);
+		return delivery;
+	}
+
 	public OutgoingMessage sendMessage(OutgoingMessage message)
 	{
 		message.setSession(this);
+		sentSinceKeepAlive = true;
 		if (message.hasData())
 			endComposing();
 		if (message.contentType != null)
@@ -477,9 +686,14 @@ public class Session
 		return isComposing;
 	}
 
-	private void endComposing() {
+	private synchronized void endComposing() {
 		isComposing = ImState.idle;
 		activeEnd = 0;
+		if (composeTimer != null)
+		{
+			composeTimer.cancel();
+			composeTimer = null;
+		}
 	}
 
 	/**
@@ -523,7 +737,7 @@ public class Session
 	 * @param refresh  refresh period to use.
 	 * @return
 	 */
-	private boolean shouldActiveTransitionBeSent(int refresh)
+	private synchronized boolean shouldActiveTransitionBeSent(int refresh)
 	{
 		long now = System.currentTimeMillis();
 		isComposing = ImState.active;
@@ -535,6 +749,16 @@ public class Session
 				refresh = 60;
 			this.refresh = refresh;
 			activeEnd = lastActive + (refresh * 1000);
+			if (composeTimer != null)
+				composeTimer.cancel();
+			composeTimer = Stack.getTimerWheel().schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						endComposing();
+					}
+				}, refresh * 1000L);
 			return true;
 		}
 		return false;
@@ -620,6 +844,15 @@ public class Session
         logger.debug("teardown(" + toString() + ")");
 		// clear local resources
 		toUris = null;
+		synchronized (this)
+		{
+			keepAlive = 0;
+			if (keepAliveTimer != null)
+				keepAliveTimer.cancel();
+			keepAliveTimer = null;
+		}
+		endComposing();
+		failDeliveries(new ConnectionLostException("Session torn down"));
 
 		if (sendQueue != null)
 		{
@@ -634,12 +867,13 @@ public class Session
 			txManager.removeSession(this);
 			txManager = null;
 		}
-		// FIXME: (javax.net.msrp-31) allow connection reuse by sessions.
 		if (connection != null)
-		{
-			connection.close();
+		{						// close when no other session uses it
+			if (!(connection instanceof Connections) &&
+					(stack == null || stack.releaseConnection(connection)))
+				connection.close();
 			if (stack != null)
-			    stack.removeConnection(connection);
+			    stack.removeConnection(uri);
 			connection = null;
 		}
 		if (stack != null)
@@ -982,8 +1216,25 @@ public class Session
      */
     protected void triggerConnectionLost(Throwable cause) {
     	traceCall("triggerConnectionLost");
+    	failDeliveries(new ConnectionLostException(cause));
     	myListener.connectionLost(this, cause);
     }
+
+    /**
+     * Fail the progress still pending of messages sent asynchronously.
+     * @param cause why they won't get there.
+     */
+    private void failDeliveries(Throwable cause)
+    {
+    	ArrayList<MessageDelivery> pending;
+    	synchronized (deliveries)
+    	{
+    		pending = new ArrayList<MessageDelivery>(deliveries);
+    		deliveries.clear();
+    	}
+    	for (MessageDelivery delivery : pending)
+    		delivery.failed(cause);
+    }
     /*
      * End of triggers to the Listener
      */
@@ -34,9 +34,10 @@ public interface SessionListener
 {
 
     /**
-     * Accept or reject the incoming message. SHOULD ALWAYS
-     * assign a {@code DataContainer} to the given message, otherwise it is
-     * discarded.
+     * Accept or reject the incoming message. Should assign a
+     * {@code DataContainer} to the given message, otherwise it is received
+     * in a {@link SpillingDataContainer}. Assign a
+     * {@link StreamingDataContainer} to consume the data as it arrives.
      * <p>
      * <strong>Note:</strong> if the message is rejected one should call
      * 		 {@link IncomingMessage#setResult(int)} to specify why, defaults to 413
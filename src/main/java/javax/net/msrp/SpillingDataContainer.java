@@ -0,0 +1,331 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import javax.net.msrp.exceptions.IllegalUseException;
+import javax.net.msrp.exceptions.NotEnoughDataException;
+import javax.net.msrp.exceptions.NotEnoughStorageException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A data container that keeps the data in memory as long as it is small and
+ * moves it to a temporary file once it grows beyond a threshold.
+ * <p>
+ * Data is held in a {@link SegmentedMemoryDataContainer} up to the
+ * threshold, by default the {@link Stack#getShortMessageBytes() short
+ * message} size. When more data is put in, it is copied to a temporary file
+ * (see {@link Stack#setTempFileDirectory(File)}) and the container continues
+ * as a {@link FileDataContainer}. Chat messages never touch the disk, large
+ * transfers don't fill the memory.
+ * <p>
+ * This is the container given to accepted incoming messages that the
+ * {@link SessionListener#acceptHook(Session, IncomingMessage) acceptHook}
+ * didn't give one. The data can be kept by {@link #moveTo(File) moving} it
+ * to a file of choice; otherwise the temporary file is deleted on
+ * {@link #dispose()}.
+ * 
+ * @see DataContainer
+ */
+public class SpillingDataContainer
+    extends DataContainer
+{
+    private static final Logger logger =
+        LoggerFactory.getLogger(SpillingDataContainer.class);
+
+    private final long threshold;
+
+    private final File directory;
+
+    private DataContainer container;
+
+    /**
+     * The file holding the data, null while in memory.
+     */
+    private File file = null;
+
+    /**
+     * Is the file a temporary one, to be deleted on dispose?
+     */
+    private boolean temporary = false;
+
+    /**
+     * Creates a container that moves to a temporary file when holding more
+     * than a short message.
+     */
+    public SpillingDataContainer()
+    {
+        this(Stack.getShortMessageBytes(), Stack.getTempFileDirectory());
+    }
+
+    /**
+     * Creates a container for a message of the given size: one larger than a
+     * short message is put in a temporary file right away.
+     * 
+     * @param size the size of the message, or {@link Message#UNKNOWN}
+     * @throws IOException if the temporary file couldn't be created
+     */
+    public SpillingDataContainer(long size) throws IOException
+    {
+        this();
+        if (size > threshold)
+        {
+            container.dispose();
+            container = createTempFile();
+        }
+    }
+
+    /**
+     * @param threshold the number of bytes kept in memory at most
+     * @param directory where to create the temporary file, null for the
+     *            system default
+     */
+    public SpillingDataContainer(long threshold, File directory)
+    {
+        this.threshold = threshold;
+        this.directory = directory;
+        container = new SegmentedMemoryDataContainer();
+    }
+
+    /**
+     * @return has the data been moved to a file?
+     */
+    public boolean isSpilled()
+    {
+        return file != null;
+    }
+
+    /**
+     * @return the file holding the data, null while the data is in memory.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return a container on a new temporary file.
+     */
+    private FileDataContainer createTempFile() throws IOException
+    {
+        file = File.createTempFile("msrp", ".part", directory);
+        temporary = true;
+        return new FileDataContainer(file);
+    }
+
+    /**
+     * Move the data to a temporary file, continue as a file container.
+     */
+    private void spill() throws IOException, NotEnoughStorageException
+    {
+        SegmentedMemoryDataContainer memory =
+            (SegmentedMemoryDataContainer) container;
+        FileDataContainer spilled = createTempFile();
+        logger.trace("Spilling " + memory.size() + " bytes to " + file);
+        copy(memory, spilled);
+        memory.dispose();
+        container = spilled;
+    }
+
+    /**
+     * Copy all data and the read offset of the memory to a file container.
+     */
+    private static void copy(SegmentedMemoryDataContainer from,
+        FileDataContainer to)
+        throws IOException, NotEnoughStorageException
+    {
+        from.copyTo(to);
+        to.rewindRead(-from.currentReadOffset());
+    }
+
+    /**
+     * Move the data to the given file, which is then kept on dispose. Any
+     * existing file is replaced.
+     * 
+     * @param target the file to keep the data in
+     * @throws IOException if the data couldn't be moved
+     */
+    public void moveTo(File target) throws IOException
+    {
+        long readOffset = container.currentReadOffset();
+        if (file == null)
+        {
+            FileDataContainer moved = new FileDataContainer(target);
+            moved.setLength(0);
+            try
+            {
+                copy((SegmentedMemoryDataContainer) container, moved);
+            }
+            catch (NotEnoughStorageException e)
+            {
+                moved.dispose();
+                throw new IOException(e);
+            }
+            container.dispose();
+            container = moved;
+        }
+        else
+        {
+            container.dispose();
+            Files.move(file.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+            container = new FileDataContainer(target);
+            container.rewindRead(-readOffset);
+        }
+        file = target;
+        temporary = false;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, java.nio.ByteBuffer)
+     */
+    @Override
+    public void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException, Exception
+    {
+        if (file == null && startingIndex + dataToPut.remaining() > threshold)
+            spill();
+        container.put(startingIndex, dataToPut);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, byte[])
+     */
+    @Override
+    public void put(long startingIndex, byte[] dataToPut)
+        throws NotEnoughStorageException, Exception
+    {
+        put(startingIndex, ByteBuffer.wrap(dataToPut));
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(byte)
+     */
+    @Override
+    public void put(byte byteToPut)
+        throws NotEnoughStorageException, Exception
+    {
+        if (file == null && container.size() + 1 > threshold)
+            spill();
+        container.put(byteToPut);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, byte)
+     */
+    @Override
+    public void put(long startingIndex, byte byteToPut)
+        throws NotEnoughStorageException, Exception
+    {
+        if (file == null && startingIndex + 1 > threshold)
+            spill();
+        container.put(startingIndex, byteToPut);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int)
+     */
+    @Override
+    public int get(byte[] dst, int offset) throws Exception
+    {
+        return container.get(dst, offset);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int, int)
+     */
+    @Override
+    public int get(byte[] dst, int offset, int limit) throws Exception
+    {
+        return container.get(dst, offset, limit);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#getView(int)
+     */
+    @Override
+    public ByteBuffer getView(int limit) throws Exception
+    {
+        return container.getView(limit);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(long, long)
+     */
+    @Override
+    public ByteBuffer get(long offsetIndex, long size)
+        throws NotEnoughDataException, IllegalUseException, Exception
+    {
+        return container.get(offsetIndex, size);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#currentReadOffset()
+     */
+    @Override
+    public long currentReadOffset()
+    {
+        return container.currentReadOffset();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#hasDataToRead()
+     */
+    @Override
+    public boolean hasDataToRead()
+    {
+        return container.hasDataToRead();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#size()
+     */
+    @Override
+    public long size()
+    {
+        return container.size();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#rewindRead(long)
+     */
+    @Override
+    public void rewindRead(long nrPositions)
+    {
+        container.rewindRead(nrPositions);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#dispose()
+     */
+    @Override
+    public void dispose()
+    {
+        container.dispose();
+        if (temporary && !file.delete())
+            logger.warn("Could not delete temporary file " + file);
+        temporary = false;
+    }
+}
@@ -16,6 +16,8 @@
  */
 package javax.net.msrp;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.util.Collection;
@@ -24,8 +26,14 @@ import java.util.Iterator;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.msrp.exceptions.*;
+import javax.net.msrp.utils.NetworkUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,12 +60,98 @@ public class Stack implements Observer {
 	 */
 	private static int shortMessageBytes = 1024 * 1024;
 
+	/**
+	 * Directory for temporary files, null for the system default.
+	 */
+	private static File tempFileDirectory = null;
+
 	/**
 	 * Stores all {@link Connections} objects mapped to the address they are bound to.
 	 */
 	private static Hashtable<InetAddress, Connections> addressConnections =
 						new Hashtable<InetAddress, Connections>();
 
+	/**
+	 * Use the selector based I/O engine instead of a read and a write thread
+	 * per connection?
+	 */
+	private static boolean useReactors = false;
+
+	/**
+	 * Number of reactor threads of the I/O engine (one per core by default).
+	 */
+	private static int reactorThreads =
+						Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The reactors of the I/O engine, created on first use.
+	 */
+	private static Reactor[] reactors = null;
+
+	/**
+	 * Duration (ms) of a tick of the timer wheel.
+	 */
+	private static final long TIMER_TICK = 100;
+
+	/**
+	 * Number of buckets of the timer wheel (one round is about 51 s).
+	 */
+	private static final int TIMER_BUCKETS = 512;
+
+	/**
+	 * Timer wheel for the time-outs of the stack, created on first use.
+	 */
+	private static TimerWheel timerWheel = null;
+
+	/**
+	 * Runs the work that time-outs hand off, created on first use.
+	 */
+	private static ExecutorService worker = null;
+
+	/**
+	 * Number of threads reading the sources of streamed messages ahead.
+	 */
+	private static int sourceReaderThreads = 4;
+
+	/**
+	 * Reads the sources of streamed messages ahead, created on first use.
+	 */
+	private static ExecutorService sourceReaders = null;
+
+	/**
+	 * Pool of the short-lived buffers of the stack.
+	 */
+	private static final BufferPool bufferPool = new BufferPool();
+
+	/**
+	 * Time (ms) a connection may go without any traffic before it is closed
+	 * (0: never).
+	 */
+	private static long connectionIdleTimeout = 0;
+
+	/**
+	 * Size (bytes) the I/O buffers of a connection grow to while bulk
+	 * content is flowing.
+	 */
+	private static int ioBufferSize = 64 * 1024;
+
+	/**
+	 * Size (bytes) of the socket send and receive buffers (SO_SNDBUF,
+	 * SO_RCVBUF) of new connections, 0 to leave the system default.
+	 */
+	private static int socketBufferSize = 0;
+
+	/**
+	 * Number (bytes) of received body bytes of a chunk accounted for at once,
+	 * 0 to account every read.
+	 */
+	private static int receiveAccountingThreshold = 0;
+
+	/**
+	 * Let sessions towards the same next hop share their connection?
+	 */
+	private static boolean shareConnections = true;
+
 	private Hashtable<URI, Connection> localUriConnections;
 
 	private Hashtable<URI, Connection> sessionConnections;
@@ -67,10 +161,17 @@ public class Stack implements Observer {
 	 */
 	private Hashtable<URI, Session> activeSessions;
 
+	/**
+	 * Established connections that can be shared by sessions, mapped to their
+	 * next hop (scheme, host and port) and the local address they are bound to.
+	 */
+	private Hashtable<String, Connection> sharedConnections;
+
 	protected Stack() {
 		localUriConnections = new Hashtable<URI, Connection>();
 		sessionConnections = new Hashtable<URI, Connection>();
 		activeSessions = new Hashtable<URI, Session>();
+		sharedConnections = new Hashtable<String, Connection>();
 	}
 
 	private static class SingletonHolder {
@@ -119,6 +220,116 @@ public class Stack implements Observer {
 		return shortMessageBytes;
 	}
 
+	/**
+	 * Set where the stack creates temporary files, like those of a
+	 * {@link SpillingDataContainer} that outgrew the short message size.
+	 * 
+	 * @param directory the directory, null (the default) for the system
+	 * 			default temporary directory.
+	 */
+	public static void setTempFileDirectory(File directory) {
+		tempFileDirectory = directory;
+	}
+
+	/**
+	 * @return the directory for temporary files, null for the system default.
+	 * @see #setTempFileDirectory(File)
+	 */
+	public static File getTempFileDirectory() {
+		return tempFileDirectory;
+	}
+
+	/**
+	 * Select the I/O model for connections that are established from now on.
+	 * <P>
+	 * By default each connection has a dedicated read and a dedicated write
+	 * thread. With the reactor engine enabled all connections are multiplexed
+	 * on a small number of selector threads instead, which is what one wants
+	 * when handling many concurrent sessions.
+	 * 
+	 * @param use true to use the reactor engine.
+	 * @see #setReactorThreads(int)
+	 */
+	public static void setUseReactors(boolean use) {
+		useReactors = use;
+	}
+
+	/**
+	 * @return true if new connections are handled by the reactor engine.
+	 * @see #setUseReactors(boolean)
+	 */
+	public static boolean isUsingReactors() {
+		return useReactors;
+	}
+
+	/**
+	 * Have sessions towards the same next hop (relay or peer) multiplex a
+	 * single connection (RFC 4975, section 8.1), instead of each session
+	 * setting up its own. Enabled by default.
+	 * 
+	 * @param share true to share connections between sessions.
+	 */
+	public static void setShareConnections(boolean share) {
+		shareConnections = share;
+	}
+
+	/**
+	 * @return true if sessions share connections to the same next hop.
+	 * @see #setShareConnections(boolean)
+	 */
+	public static boolean isSharingConnections() {
+		return shareConnections;
+	}
+
+	/**
+	 * Set the number of reactor threads used by the I/O engine.
+	 * Only effective before the first connection is handed to the engine.
+	 * 
+	 * @param threads the number of reactors (default: one per core).
+	 */
+	public static synchronized void setReactorThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException(
+					"Need at least one reactor thread, got " + threads);
+		reactorThreads = threads;
+	}
+
+	/**
+	 * Set the number of threads that read the sources of streamed messages
+	 * ahead. Each thread reads one source at a time, so a source that keeps
+	 * its reader waiting holds up the sources queued behind it.
+	 * Only effective before the first streamed message is sent.
+	 * 
+	 * @param threads the number of readers (default: 4).
+	 * @see ChannelDataContainer
+	 */
+	public static synchronized void setSourceReaderThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException(
+					"Need at least one source reader thread, got " + threads);
+		sourceReaderThreads = threads;
+	}
+
+	/**
+	 * Get the reactor that is to handle the given connection. Connections are
+	 * hashed onto the available reactors, which are started on first use.
+	 * 
+	 * @param connection the connection to be handled.
+	 * @return the reactor for this connection.
+	 * @throws IOException when a reactor could not be started.
+	 */
+	protected static synchronized Reactor getReactor(Connection connection)
+			throws IOException {
+		if (reactors == null) {
+			Reactor[] newReactors = new Reactor[reactorThreads];
+			for (int i = 0; i < newReactors.length; i++)
+				newReactors[i] = new Reactor("MSRP reactor-" + i);
+			reactors = newReactors;
+		}
+		int hash = System.identityHashCode(connection) & Integer.MAX_VALUE;
+		return reactors[hash % reactors.length];
+	}
+
 	/**
 	 * Generate a new unique message-ID
 	 * 
@@ -130,6 +341,171 @@ public class Stack implements Observer {
 				Long.toHexString(id.getLeastSignificantBits());
 	}
 
+	/**
+	 * @return the timer wheel that runs the time-outs of the stack:
+	 * 			response time-outs, keep-alives, composing indications and
+	 * 			idle connections.
+	 */
+	protected static synchronized TimerWheel getTimerWheel() {
+		if (timerWheel == null)
+			timerWheel = new TimerWheel("MSRP timer", TIMER_TICK, TIMER_BUCKETS);
+		return timerWheel;
+	}
+
+	/**
+	 * @return the executor that runs the work handed off by time-outs, such as
+	 * 			failing a request or closing a connection, so the ticker of the
+	 * 			timer wheel doesn't wait for it.
+	 */
+	protected static synchronized Executor getWorker() {
+		if (worker == null)
+			worker = Executors.newCachedThreadPool(
+					daemonThreads("MSRP worker-"));
+		return worker;
+	}
+
+	/**
+	 * @return the executor that reads the sources of streamed messages
+	 * 			ahead, with {@link #setSourceReaderThreads(int)} threads.
+	 */
+	protected static synchronized Executor getSourceReaders() {
+		if (sourceReaders == null)
+			sourceReaders = Executors.newFixedThreadPool(sourceReaderThreads,
+					daemonThreads("MSRP source reader-"));
+		return sourceReaders;
+	}
+
+	/**
+	 * @param prefix the name of the threads, followed by their number.
+	 * @return a factory of daemon threads.
+	 */
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task,
+						prefix + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * @return the pool that the short-lived buffers of the stack are borrowed
+	 * 			from.
+	 */
+	protected static BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Close connections that carried no traffic for the given time. The
+	 * sessions on such a connection are told it was lost. Use
+	 * {@link Session#setKeepAlive(int)} to keep quiet sessions alive.
+	 * Only effective for connections established after the call.
+	 * 
+	 * @param millis the idle time-out in ms, 0 (the default) to disable.
+	 */
+	public static void setConnectionIdleTimeout(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException(
+					"Invalid idle time-out: " + millis);
+		connectionIdleTimeout = millis;
+	}
+
+	/**
+	 * @return the idle time-out (ms) of connections, 0 when disabled.
+	 * @see #setConnectionIdleTimeout(long)
+	 */
+	public static long getConnectionIdleTimeout() {
+		return connectionIdleTimeout;
+	}
+
+	/**
+	 * Set the size the read and write buffers of a connection may grow to.
+	 * <P>
+	 * Connections start with buffers of {@link Connection#OUTPUTBUFFERLENGTH}
+	 * bytes, fit for chat traffic; they grow towards this size while bulk
+	 * content is flowing and shrink again once it stops. This is also the
+	 * most that goes out per write.
+	 * Only effective for connections established after the call.
+	 * 
+	 * @param bytes the maximum buffer size (default 64 KB), at least
+	 * 			{@link Connection#OUTPUTBUFFERLENGTH}; that size disables the
+	 * 			adaptation.
+	 */
+	public static void setIOBufferSize(int bytes) {
+		if (bytes < Connection.OUTPUTBUFFERLENGTH)
+			throw new IllegalArgumentException(
+					"I/O buffers need at least " + Connection.OUTPUTBUFFERLENGTH
+					+ " bytes, got " + bytes);
+		ioBufferSize = bytes;
+	}
+
+	/**
+	 * @return the size (bytes) the I/O buffers of a connection may grow to.
+	 * @see #setIOBufferSize(int)
+	 */
+	public static int getIOBufferSize() {
+		return ioBufferSize;
+	}
+
+	/**
+	 * Set the size of the socket send and receive buffers (SO_SNDBUF and
+	 * SO_RCVBUF) of new connections. Bulk transfers over links with a large
+	 * bandwidth-delay product need more than the system default.
+	 * 
+	 * @param bytes the size of the socket buffers, 0 (the default) to leave
+	 * 			the system default.
+	 */
+	public static void setSocketBufferSize(int bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException(
+					"Invalid socket buffer size: " + bytes);
+		socketBufferSize = bytes;
+	}
+
+	/**
+	 * @return the size of the socket buffers of new connections, 0 when the
+	 * 			system default is used.
+	 * @see #setSocketBufferSize(int)
+	 */
+	public static int getSocketBufferSize() {
+		return socketBufferSize;
+	}
+
+	/**
+	 * Set how coarse received body is accounted for.
+	 * <P>
+	 * By default the message counter is updated, and the
+	 * {@link ReportMechanism} consulted on success reports, for every read
+	 * of body data. For bulk transfers this bookkeeping can be limited to
+	 * once every given number of bytes of a chunk and to the end of each
+	 * chunk. Success reports and received-status then lag up to that many
+	 * bytes behind.
+	 * 
+	 * @param bytes the number of bytes to account for at once, 0 (the
+	 * 			default) to account every read.
+	 */
+	public static void setReceiveAccountingThreshold(int bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException(
+					"Invalid accounting threshold: " + bytes);
+		receiveAccountingThreshold = bytes;
+	}
+
+	/**
+	 * @return the number of received body bytes of a chunk accounted for at
+	 * 			once, 0 when every read is.
+	 * @see #setReceiveAccountingThreshold(int)
+	 */
+	public static int getReceiveAccountingThreshold() {
+		return receiveAccountingThreshold;
+	}
+
 	/**
 	 * @param address
 	 *            the ip address to bind to
@@ -248,6 +624,14 @@ public class Stack implements Observer {
 		sessionConnections.put(uri, connection);
 	}
 
+	/**
+	 * @param uri the URI of a session.
+	 * @return the {@link Connection} associated with the given session URI.
+	 */
+	protected Connection getConnectionBySessionURI(URI uri) {
+		return sessionConnections.get(uri);
+	}
+
 	/**
 	 * Returns an activeConnection
 	 * 
@@ -261,6 +645,70 @@ public class Stack implements Observer {
 		return null;
 	}
 
+	private static String sharingKey(URI nextHop, InetAddress localAddress) {
+		return NetworkUtils.getCompleteAuthority(nextHop) + "/" +
+				localAddress.getHostAddress();
+	}
+
+	/**
+	 * Get a reference to an established connection towards the given next
+	 * hop, one that is already used by other sessions.
+	 * 
+	 * @param nextHop the URI of the next hop in the to-path.
+	 * @param localAddress the local address the connection must be bound to.
+	 * @return the shared connection or null when there is none.
+	 * @see #releaseConnection(Connection)
+	 */
+	protected synchronized Connection acquireConnection(URI nextHop,
+			InetAddress localAddress) {
+		if (!shareConnections)
+			return null;
+		Connection connection =
+				sharedConnections.get(sharingKey(nextHop, localAddress));
+		if (connection == null || !connection.isUsable())
+			return null;
+		connection.addReference();
+		return connection;
+	}
+
+	/**
+	 * Make the given, just established, connection available to other sessions
+	 * towards the same next hop and take the first reference to it.
+	 * 
+	 * @param nextHop the URI of the next hop in the to-path.
+	 * @param localAddress the local address the connection is bound to.
+	 * @param connection the connection.
+	 */
+	protected synchronized void shareConnection(URI nextHop,
+			InetAddress localAddress, Connection connection) {
+		connection.addReference();
+		if (shareConnections)
+			sharedConnections.put(sharingKey(nextHop, localAddress), connection);
+	}
+
+	/**
+	 * Take a reference to a connection that was accepted from a peer.
+	 * 
+	 * @param connection the connection.
+	 */
+	protected synchronized void acquireConnection(Connection connection) {
+		connection.addReference();
+	}
+
+	/**
+	 * Drop a reference to the given connection.
+	 * 
+	 * @param connection the connection no longer used by a session.
+	 * @return true if this was the last reference, the connection is not
+	 * 			shared anymore and should be closed.
+	 */
+	protected synchronized boolean releaseConnection(Connection connection) {
+		if (connection.removeReference() > 0)
+			return false;
+		sharedConnections.values().remove(connection);
+		return true;
+	}
+
 	/**
 	 * Removes the connection-association with the session URI.
      *
@@ -278,4 +726,15 @@ public class Stack implements Observer {
 	        }
 	    }
 	}
+
+	/**
+	 * Removes the connection-association of the given session URI only, other
+	 * sessions may share the connection.
+	 *
+	 * @param uri the URI of the session.
+	 */
+	protected void removeConnection(URI uri)
+	{
+		sessionConnections.remove(uri);
+	}
 }
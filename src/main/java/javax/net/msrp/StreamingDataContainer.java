@@ -0,0 +1,404 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+
+import javax.net.msrp.exceptions.IllegalUseException;
+import javax.net.msrp.exceptions.NotEnoughDataException;
+import javax.net.msrp.exceptions.NotEnoughStorageException;
+
+/**
+ * A data container that hands the body of an incoming message to the
+ * application while it is being received, instead of storing it.
+ * <p>
+ * Assign it to the message in the
+ * {@link SessionListener#acceptHook(Session, IncomingMessage) acceptHook}
+ * and consume the data from another thread, either as ordered slices with
+ * {@link #take()} or through the {@link ReadableByteChannel} interface. Both
+ * signal the end of the message once all of it was consumed.
+ * <p>
+ * When the application doesn't keep up and the given capacity of received
+ * data is held, the connection stops reading from its channel, so the sender
+ * is held back, until half of it was consumed. Receiving never waits: the
+ * data already read is still put, so up to one read buffer more than the
+ * capacity may be held. Other connections, also those served by the same
+ * reactor, go on as usual.
+ * <p>
+ * Data is only kept until consumed: the random access
+ * {@link #get(long, long)} isn't supported, so neither are wrapped content
+ * types, which are parsed from the container when complete.
+ * {@link #dispose()} closes the stream and has the connection read again;
+ * any thread waiting to take data is released, with an
+ * {@link AsynchronousCloseException} for readers of an unfinished message.
+ * 
+ * @see DataContainer
+ */
+public class StreamingDataContainer
+    extends DataContainer
+    implements ReadableByteChannel
+{
+    /**
+     * Default number of bytes held for the application.
+     */
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private final int capacity;
+
+    /**
+     * The received slices not yet consumed, the first possibly partly.
+     */
+    private final ArrayDeque<ByteBuffer> slices = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * Number of bytes held in slices.
+     */
+    private long held = 0;
+
+    /**
+     * Number of bytes put in, the offset the next data is expected at.
+     */
+    private long received = 0;
+
+    /**
+     * Number of bytes consumed.
+     */
+    private long consumed = 0;
+
+    private boolean ended = false;
+
+    private boolean closed = false;
+
+    /**
+     * Has the connection read again once enough was consumed, null unless
+     * held back.
+     */
+    private Runnable resume = null;
+
+    /**
+     * Creates a stream holding at most {@link #DEFAULT_CAPACITY} bytes.
+     */
+    public StreamingDataContainer()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of received bytes to hold before holding
+     *            back the sender until the application consumed them.
+     */
+    public StreamingDataContainer(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Take the next slice of the received data, waiting for it to arrive.
+     * The slice is the application's to keep.
+     * 
+     * @return the next slice of data, or null at the end of the message.
+     * @throws AsynchronousCloseException if the stream was disposed of
+     *             before the end of the message, e.g. when it was aborted.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized ByteBuffer take()
+        throws AsynchronousCloseException, InterruptedException
+    {
+        while (!awaitData())
+            wait();
+        if (slices.isEmpty())
+            return null;
+        ByteBuffer slice = slices.removeFirst();
+        consumed(slice.remaining());
+        return slice;
+    }
+
+    /* (non-Javadoc)
+     * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+     */
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException
+    {
+        if (!dst.hasRemaining())
+            return 0;
+        try
+        {
+            while (!awaitData())
+                wait();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AsynchronousCloseException();
+        }
+        if (slices.isEmpty())
+            return -1;
+        int count = 0;
+        while (dst.hasRemaining() && !slices.isEmpty())
+        {
+            ByteBuffer slice = slices.getFirst();
+            int n = Math.min(dst.remaining(), slice.remaining());
+            ByteBuffer part = slice.duplicate();
+            part.limit(part.position() + n);
+            dst.put(part);
+            slice.position(slice.position() + n);
+            if (!slice.hasRemaining())
+                slices.removeFirst();
+            count += n;
+        }
+        consumed(count);
+        return count;
+    }
+
+    /**
+     * @return true when there is data to consume or the message has ended.
+     * @throws AsynchronousCloseException if closed before the end.
+     */
+    private boolean awaitData() throws AsynchronousCloseException
+    {
+        if (closed && !ended)
+            throw new AsynchronousCloseException();
+        return !slices.isEmpty() || ended;
+    }
+
+    private void consumed(int count)
+    {
+        held -= count;
+        consumed += count;
+        notifyAll();
+        if (held <= capacity / 2)
+            resume();
+    }
+
+    /**
+     * Called by the connection after it put received data: when the
+     * capacity is reached, stop reading until enough was consumed.
+     * 
+     * @param pause stops the connection reading, run right away if needed.
+     * @param resume has the connection read again.
+     */
+    @Override
+    synchronized void holdBack(Runnable pause, Runnable resume)
+    {
+        if (this.resume != null || held < capacity || closed)
+            return;
+        this.resume = resume;
+        pause.run();
+    }
+
+    private void resume()
+    {
+        Runnable toRun = resume;
+        resume = null;
+        if (toRun != null)
+            toRun.run();
+    }
+
+    /**
+     * Called when the last chunk of the message was received: the
+     * application reads to the end of the data held.
+     */
+    @Override
+    synchronized void end()
+    {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * @return has all of the message been received?
+     */
+    @Override
+    public synchronized boolean isEnded()
+    {
+        return ended;
+    }
+
+    /* (non-Javadoc)
+     * @see java.nio.channels.Channel#isOpen()
+     */
+    @Override
+    public synchronized boolean isOpen()
+    {
+        return !closed;
+    }
+
+    /**
+     * Same as {@link #dispose()}.
+     * 
+     * @see java.nio.channels.Channel#close()
+     */
+    @Override
+    public void close()
+    {
+        dispose();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, java.nio.ByteBuffer)
+     */
+    @Override
+    public synchronized void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        if (startingIndex != received)
+            throw new IOException("Streamed data must arrive in order, " +
+                "expected offset " + received + " got " + startingIndex);
+        if (closed)
+            throw new ClosedChannelException();
+        int n = dataToPut.remaining();
+        if (n == 0)
+            return;
+        ByteBuffer slice = ByteBuffer.allocate(n);
+        slice.put(dataToPut).flip();
+        slices.addLast(slice);
+        held += n;
+        received += n;
+        notifyAll();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, byte[])
+     */
+    @Override
+    public void put(long startingIndex, byte[] dataToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        put(startingIndex, ByteBuffer.wrap(dataToPut));
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(byte)
+     */
+    @Override
+    public synchronized void put(byte byteToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        put(received, byteToPut);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, byte)
+     */
+    @Override
+    public void put(long startingIndex, byte byteToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        put(startingIndex, new byte[] { byteToPut });
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int)
+     */
+    @Override
+    public int get(byte[] dst, int offset)
+        throws IndexOutOfBoundsException, Exception
+    {
+        return get(dst, offset, dst.length - offset);
+    }
+
+    /**
+     * Same as {@link #read(ByteBuffer)}, waiting for data to arrive.
+     * 
+     * @return the number of bytes copied, 0 at the end of the message.
+     * @see javax.net.msrp.DataContainer#get(byte[], int, int)
+     */
+    @Override
+    public int get(byte[] dst, int offset, int limit)
+        throws IndexOutOfBoundsException, Exception
+    {
+        if (offset > dst.length - 1)
+            throw new IndexOutOfBoundsException();
+        int count = read(ByteBuffer.wrap(dst, offset,
+                            Math.min(limit, dst.length - offset)));
+        return count < 0 ? 0 : count;
+    }
+
+    /**
+     * Not supported, the data isn't kept once consumed.
+     * 
+     * @throws IllegalUseException always
+     */
+    @Override
+    public ByteBuffer get(long offsetIndex, long size)
+        throws NotEnoughDataException, IllegalUseException
+    {
+        throw new IllegalUseException(
+            "Streamed data can only be read in order");
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#currentReadOffset()
+     */
+    @Override
+    public synchronized long currentReadOffset()
+    {
+        return consumed;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#hasDataToRead()
+     */
+    @Override
+    public synchronized boolean hasDataToRead()
+    {
+        return !slices.isEmpty();
+    }
+
+    /**
+     * @return the number of bytes received so far.
+     * @see javax.net.msrp.DataContainer#size()
+     */
+    @Override
+    public synchronized long size()
+    {
+        return received;
+    }
+
+    /**
+     * Not supported, the data isn't kept once consumed.
+     * 
+     * @throws IllegalStateException always
+     */
+    @Override
+    public void rewindRead(long nrPositions)
+    {
+        throw new IllegalStateException(
+            "Streamed data can't be read again");
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#dispose()
+     */
+    @Override
+    public synchronized void dispose()
+    {
+        closed = true;
+        slices.clear();
+        held = 0;
+        notifyAll();
+        resume();
+    }
+}
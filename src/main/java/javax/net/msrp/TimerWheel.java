@@ -0,0 +1,264 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.util.ArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel that runs the time-outs of the stack on a single
+ * thread.
+ * <p>
+ * Time is divided in ticks. A time-out is put in the bucket of the tick it
+ * expires in (modulo the size of the wheel) together with the number of
+ * rounds the wheel has to make before it is due, so scheduling and
+ * cancelling take constant time and a tick only visits its own bucket.
+ * Time-outs are precise to one tick, which is plenty for response time-outs,
+ * keep-alives and composing indications. The ticker thread only ticks while
+ * there are time-outs pending.
+ * <p>
+ * Tasks are run on the ticker thread and should be short: anything that
+ * might block should just be queued from there.
+ */
+class TimerWheel
+    implements Runnable
+{
+    private static final Logger logger =
+        LoggerFactory.getLogger(TimerWheel.class);
+
+    private final String name;
+
+    private final long tickMillis;
+
+    /**
+     * Heads of the (doubly linked) lists of time-outs per bucket.
+     */
+    private final Timeout[] buckets;
+
+    private final int mask;
+
+    private final long startTime;
+
+    /**
+     * The last tick that has been processed.
+     */
+    private long tick = 0;
+
+    /**
+     * Number of time-outs in the wheel; the ticker thread waits while there
+     * are none.
+     */
+    private int pending = 0;
+
+    private Thread thread = null;
+
+    /**
+     * Create a timer wheel, its thread is started on first use.
+     * 
+     * @param name the name of the ticker thread
+     * @param tickMillis the duration of a tick in ms
+     * @param size the number of buckets (rounded up to a power of two)
+     */
+    TimerWheel(String name, long tickMillis, int size)
+    {
+        if (tickMillis < 1 || size < 1)
+            throw new IllegalArgumentException(
+                "Invalid tick (" + tickMillis + ") or size (" + size + ")");
+        this.name = name;
+        this.tickMillis = tickMillis;
+        int buckets = Integer.highestOneBit(size);
+        if (buckets < size)
+            buckets <<= 1;
+        this.buckets = new Timeout[buckets];
+        mask = buckets - 1;
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Have the given task run once the given delay has passed.
+     * 
+     * @param task the task to run
+     * @param delay the delay in ms
+     * @return the handle to cancel the time-out with.
+     */
+    synchronized Timeout schedule(Runnable task, long delay)
+    {
+        if (task == null)
+            throw new IllegalArgumentException("No task to schedule");
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (pending == 0)				// idle wheel, catch up right away
+            tick = Math.max(tick, elapsed / tickMillis);
+        long due = (elapsed + Math.max(delay, 0) + tickMillis - 1) / tickMillis;
+        if (due <= tick)
+            due = tick + 1;
+        Timeout timeout = new Timeout(this, task);
+        timeout.rounds = (due - tick - 1) / buckets.length;
+        link(timeout, (int) (due & mask));
+        if (thread == null)
+        {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        else if (pending == 1)
+            notify();
+        return timeout;
+    }
+
+    private void link(Timeout timeout, int bucket)
+    {
+        pending++;
+        timeout.bucket = bucket;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        buckets[bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout)
+    {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        pending--;
+    }
+
+    /**
+     * Advance the wheel by one tick.
+     * 
+     * @return the time-outs that expired.
+     */
+    private synchronized ArrayList<Timeout> advance()
+    {
+        ArrayList<Timeout> expired = new ArrayList<Timeout>();
+        tick++;
+        Timeout timeout = buckets[(int) (tick & mask)];
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0)
+                timeout.rounds--;
+            else
+            {
+                unlink(timeout);
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+        return expired;
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                long sleep;
+                synchronized (this)
+                {
+                    while (pending == 0)
+                        wait();
+                    sleep = startTime + (tick + 1) * tickMillis
+                                - System.currentTimeMillis();
+                }
+                if (sleep > 0)
+                    Thread.sleep(sleep);
+                for (Timeout timeout : advance())
+                {
+                    try
+                    {
+                        timeout.task.run();
+                    }
+                    catch (Exception e)
+                    {
+                        logger.error("Error running time-out in " + name, e);
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                logger.warn(name + " interrupted, continuing");
+            }
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    static final class Timeout
+    {
+        private final TimerWheel wheel;
+
+        private final Runnable task;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        private long rounds;
+
+        /**
+         * The bucket this time-out is in, -1 once expired or cancelled.
+         */
+        private int bucket = -1;
+
+        private Timeout(TimerWheel wheel, Runnable task)
+        {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        /**
+         * Cancel this time-out.
+         * 
+         * @return true if it was cancelled, false if it already expired (or
+         *         was cancelled before).
+         */
+        boolean cancel()
+        {
+            synchronized (wheel)
+            {
+                if (bucket < 0)
+                    return false;
+                wheel.unlink(this);
+                return true;
+            }
+        }
+
+        /**
+         * @return true when still waiting to expire.
+         */
+        boolean isPending()
+        {
+            synchronized (wheel)
+            {
+                return bucket >= 0;
+            }
+        }
+    }
+}
@@ -16,11 +16,12 @@
  */
 package javax.net.msrp;
 
+import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 import javax.net.msrp.exceptions.*;
 import javax.net.msrp.utils.TextUtils;
@@ -99,7 +100,22 @@ public class Transaction
      */
     protected TransactionManager transactionManager = null;
 
-    protected byte[] headerBytes = new byte[MAXHEADERBYTES];
+    /**
+     * The header of the transaction. For incoming transactions borrowed from
+     * the {@link BufferPool} once header data is received, until the end-line.
+     */
+    protected byte[] headerBytes = null;
+
+    /**
+     * When awaiting its response, the time-out of this (sent) request.
+     */
+    TimerWheel.Timeout responseTimer = null;
+
+    /**
+     * Is this transaction in the send queue of its transaction manager?
+     * @see TransactionQueue
+     */
+    boolean queued = false;
 
     /**
      * Variable that tells if this Transaction is interrupted (paused or
@@ -224,7 +240,17 @@ public class Transaction
 
     private String nickname = null;
 
-    private StringBuffer headerBuffer = new StringBuffer();
+    /**
+     * Number of bytes of received header data in headerBytes.
+     */
+    private int headerLength = 0;
+
+    /**
+     * Number of lines of received header data and the start of the last one.
+     */
+    private int headerLines = 0;
+
+    private int headerLineStart = 0;
 
     /**
      * if this is a valid transaction or if it has any problem with it assume
@@ -243,7 +269,8 @@ public class Transaction
 
     /**
      * The byte array that contains the body bytes of the transaction in the
-     * case that the body doesn't belong to a message
+     * case that the body doesn't belong to a message. Borrowed from the
+     * {@link BufferPool} when body data is received, until the end-line.
      */
     private byte[] bodyBytes;
 
@@ -258,6 +285,12 @@ public class Transaction
      */
     private int realChunkSize = 0;
 
+    /**
+     * Number of body bytes of this (incoming) chunk accounted for with the
+     * report mechanism.
+     */
+    private int accountedChunkSize = 0;
+
     /**
      * Is this an interruptible transaction or not
      */
@@ -268,6 +301,13 @@ public class Transaction
      */
     private int dataCopied = 0;
 
+    /**
+     * May the body be sent straight from the message's file? Cleared when
+     * the end-line shows up in the part about to be sent.
+     * @see #transferData(WritableByteChannel, long)
+     */
+    private boolean transferable = true;
+
     /**
      * Generic constructor for (possibly incoming) transactions
      * 
@@ -287,7 +327,6 @@ public class Transaction
         byteRange[0] = byteRange[1] = totalMessageBytes = UNINTIALIZED;
         transactionType = method;
         setTID(tid);
-        initializeDataStructures();
 
         logger.info(toString() + " transaction created, handled by " + manager);
     }
@@ -314,7 +353,6 @@ public class Transaction
 
         /* by default have the continuation flag to be a chunk */
         continuation_flag = FLAG_IRQ;
-        initializeDataStructures();
         logger.info(toString() + " transaction created for message " + message);
     }
 
@@ -386,6 +424,7 @@ public class Transaction
 	        if (ct.length() == 0)
 	        	ct = "text/plain";
 	        header.append("Content-Type: ").append(ct).append("\r\n\r\n");
+	        hasContentStuff = true;		/* even if no data follows */
         }
         headerBytes = header.toString().getBytes(TextUtils.utf8);
     }
@@ -472,6 +511,34 @@ public class Transaction
         return toReturn.toString();
     }
 
+    /**
+     * @param chunkIndex index of a body byte of this chunk
+     * @return the offset of that byte within the message
+     */
+    private long chunkOffset(int chunkIndex)
+    {
+        long offset = (byteRange[CHUNKSTARTBYTEINDEX] - 1) + chunkIndex;
+        if (offset < 0)         /* uninitialised or unknown...  */
+            offset = 0;
+        return offset;
+    }
+
+    /**
+     * Account the body received since the last call with the report
+     * mechanism of the message.
+     * 
+     * @see Stack#setReceiveAccountingThreshold(int)
+     */
+    private void accountReceivedBody()
+    {
+        int size = realChunkSize - accountedChunkSize;
+        if (size <= 0)
+            return;
+        message.getReportMechanism().countReceivedBodyBlock(message, this,
+            chunkOffset(accountedChunkSize), size);
+        accountedChunkSize = realChunkSize;
+    }
+
     /**
      * Parse the data, identify the header and fill the body.
      * Also it should find errors on received data and generate a 400 response
@@ -497,7 +564,6 @@ public class Transaction
     {
         if (!inContentStuff)
         {
-            String toParse = new String(incData, offset, length, TextUtils.utf8);
             /*
              * if the transaction is marked as complete or invalid, calls to
              * this method will do nothing
@@ -507,54 +573,35 @@ public class Transaction
             if (completeTransaction)
                 throw new ImplementationException(
                     "Error: trying to parse data to a complete transaction!");
-
-            int i = 0;
-            while (i < toParse.length())
+            if (headerComplete)
             {
-                if (!headerComplete)
-                {
-                    try
-                    {
-                        int j;
-                        while (i < toParse.length() && !isHeaderBufferComplete())
-                        {
-                        	j = toParse.indexOf("\r\n", i);
-                        	if (j == -1) {
-                                addHeaderBuffer(toParse.substring(i));
-                                i = toParse.length();
-                        	} else {
-                        		addHeaderBuffer(toParse.substring(i, j + 2));
-                        		i = j + 2;
-                        	}
-                        }
-                        if (isHeaderBufferComplete())
-                        {
-                            recognizeHeader();
-                            proccessHeader();
-                            headerComplete = true;
-                            logger.trace(this + " parsed header");
-                        }
-                    }
-                    catch (Exception e)
-                    {
-                        validTransaction = false;
-                        logger.warn(this +
-                        		" parse exception, returning without parsing", e);
-                        return;
-                    }
-                }						// if (!headercomplete)
-                if (headerComplete)
-                {
-                    if (!isValid())
-                        logger.warn(this + " parsed invalid.");
-                    int moreData = toParse.length() - i;
-                    if (moreData > 0)
-                    	logger.warn(this +
-                    			" parsed header but have more data, is preparser ok?");
-                    break;
-                }
-            } // while
-
+                logger.warn(this +
+                        " parsed header but have more data, is preparser ok?");
+                return;
+            }
+            int used;
+            try
+            {
+                used = addHeaderData(incData, offset, length);
+                if (used == NOTFOUND)
+                    return;
+                recognizeHeader();
+                proccessHeader();
+                headerComplete = true;
+                logger.trace(this + " parsed header");
+            }
+            catch (Exception e)
+            {
+                validTransaction = false;
+                logger.warn(this +
+                        " parse exception, returning without parsing", e);
+                return;
+            }
+            if (!isValid())
+                logger.warn(this + " parsed invalid.");
+            if (used < length)
+                logger.warn(this +
+                        " parsed header but have more data, is preparser ok?");
         } // if (!inContentStuff)
         else
         {
@@ -572,7 +619,6 @@ public class Transaction
             }
             try
             {
-                byte[] data;
                 if (!isIncomingResponse() && message != null &&
                     transactionType == TransactionType.SEND)
                 {
@@ -581,49 +627,32 @@ public class Transaction
                      * 
                      * TODO validate byteRange values for non negatives etc
                      */
-                    long start =
-                    		(byteRange[CHUNKSTARTBYTEINDEX] - 1) + realChunkSize;
-                    if (start < 0)      /* uninitialised or unknown...  */
-                        start = 0;
-                    int blockSize =
-                    		message.getReportMechanism().getTriggerGranularity();
-                    data = new byte[blockSize];
-                    int size2Copy = blockSize;
+                    long start = chunkOffset(realChunkSize);
+                    int size = incBuffer.remaining();
 
                     logger.trace(this + " parsing body, starting " + start +
-                            ", size " + incBuffer.remaining());
-                    
-                    while (incBuffer.hasRemaining())
-                    {
-                        if (blockSize > incBuffer.remaining()) {
-                        	size2Copy = incBuffer.remaining();
-                            data = new byte[size2Copy];
-                        }
-                        incBuffer.get(data);
-                        message.getDataContainer().put(start, data);
-                        realChunkSize += size2Copy;
-                        message.getReportMechanism().countReceivedBodyBlock(
-                        		message, this, start, size2Copy);
-                        start += size2Copy;
-                    }
+                            ", size " + size);
+                    message.getDataContainer().put(start, incBuffer);
+                    realChunkSize += size;
+                    if (realChunkSize - accountedChunkSize >=
+                    		Stack.getReceiveAccountingThreshold())
+                    	accountReceivedBody();
                 }
                 else
                 {
                     logger.trace(this +
                     		" parsing body of non-send message. Nr of bytes=" +
                     		incBuffer.remaining());
-                    data = new byte[incBuffer.remaining()];
-                    incBuffer.get(data);
-                    if (data.length > 0)
+                    if (bodyByteBuffer == null)
                     {
-                    	if (bodyByteBuffer == null)
-                            bodyByteBuffer = ByteBuffer.wrap(data);
-                    	else
-                    	{
-                            bodyByteBuffer.put(data);
-                            realChunkSize += data.length;
-                    	}
+                        bodyBytes = Stack.getBufferPool()
+                                        .take(Stack.MAX_NONSEND_BODYSIZE);
+                        bodyByteBuffer = ByteBuffer.wrap(bodyBytes, 0,
+                                            Stack.MAX_NONSEND_BODYSIZE);
                     }
+                    int size = incBuffer.remaining();
+                    bodyByteBuffer.put(incBuffer);
+                    realChunkSize += size;
                 }
             }
             catch (Exception e)
@@ -692,12 +721,20 @@ public class Transaction
              * call the report mechanism function so that it can call the should
              * generate report
              */
+            if (transactionType == TransactionType.SEND &&
+            		!isIncomingResponse() && message != null)
+            	accountReceivedBody();
             if (transactionType == TransactionType.SEND &&
             		!isIncomingResponse() && message != null &&
             		flag == FLAG_END)
             {
+                if (message.getSize() < 0)
+                    /* total was unknown ('*'), now it's the end of this chunk */
+                    message.size = chunkOffset(realChunkSize);
                 (message.getReportMechanism()).getCounter(message)
                     .receivedEndOfMessage();
+                if (message.getDataContainer() != null)
+                    message.getDataContainer().end();
             }
             if (transactionType == TransactionType.SEND &&
             		!isIncomingResponse() && continuation_flag == FLAG_ABORT)
@@ -716,8 +753,7 @@ public class Transaction
                 message.gotAborted(this);
             }
         }
-        String aux = headerBuffer.toString();
-        headerBytes = aux.getBytes(TextUtils.utf8);
+        releaseBuffers();
         completeTransaction = true;
     }
 
@@ -837,10 +873,14 @@ public class Transaction
     {
         if (interrupted)
             return false;
+        if (readIndex[DATA] > 0 || readIndex[ENDLINE] > 0)
+            return false;				// no more once the end-line started
         if (readIndex[HEADER] >= headerBytes.length && !message.hasData())
             return false;
-        if (session.getChunkSize() > 0 && dataCopied >= session.getChunkSize())
-            return false;
+        long chunkSize = session.getChunkSize();
+        if (chunkSize > 0 && (dataCopied >= chunkSize || (dataCopied > 0 &&
+                message.getDataContainer().currentReadOffset() % chunkSize == 0)))
+            return false;				// chunk full or at its boundary
         return true;
     }
 
@@ -919,6 +959,100 @@ public class Transaction
         return bytesCopied;
     }
 
+    /**
+     * Gets the DATA (header and content excluding end-line) that follows as
+     * a buffer for a gathering write: a view on the rest of the header, else
+     * a view on the next part of the content if its data container provides
+     * one.
+     * 
+     * @param max the maximum number of bytes to return
+     * @return the buffer, or null if the content is to be copied with
+     *         {@link #getData(byte[], int)}
+     * @throws ImplementationException if this function was called when there
+     *             was no more data or if it was interrupted
+     * @throws Exception if something went wrong while trying to get this data
+     */
+    ByteBuffer getDataBuffer(int max) throws Exception
+    {
+        if (interrupted || readIndex[ENDLINE] > 0)
+        {
+            throw new ImplementationException("Called Transaction.getDataBuffer() " +
+            		"when it should've been Transaction.getEndLineBuffer()");
+        }
+        if (readIndex[HEADER] < headerBytes.length)
+        {
+            int length = (int) Math.min(max, headerBytes.length - readIndex[HEADER]);
+            ByteBuffer header =
+                ByteBuffer.wrap(headerBytes, (int) readIndex[HEADER], length);
+            readIndex[HEADER] += length;
+            return header;
+        }
+        long chunkSize = session.getChunkSize();
+        if (chunkSize > 0 && chunkSize - dataCopied < max)
+            max = (int) (chunkSize - dataCopied);
+        ByteBuffer content = message.getView(max);
+        if (content != null)
+        {
+            hasContentStuff = true;
+            dataCopied += content.remaining();
+        }
+        return content;
+    }
+
+    /**
+     * @return can the body bytes that follow be sent with
+     *         {@link #transferData(WritableByteChannel, long)}?
+     */
+    boolean isTransferable()
+    {
+        return transferable && message.getDirection() == Direction.OUT &&
+            getTransactionType() == TransactionType.SEND &&
+            message.getDataContainer() instanceof FileDataContainer &&
+            readIndex[HEADER] >= headerBytes.length && hasData();
+    }
+
+    /**
+     * Send body bytes straight from the message's file to the given channel,
+     * without copying them through a send buffer. The header must have been
+     * sent already.
+     * <p>
+     * The part to send is first checked for this transaction's end-line,
+     * including a few bytes on either side so an end-line split over what
+     * was sent before or what follows is found too. When found, nothing is
+     * sent and the rest of the body takes the regular path that interrupts
+     * the transaction at the end-line.
+     * 
+     * @param channel the channel to send to.
+     * @param max maximum number of bytes to send.
+     * @return the number of bytes sent, -1 when the body is to be sent with
+     *         {@link #getData(byte[], int)}.
+     * @throws IOException if reading the file or writing the channel failed.
+     */
+    long transferData(WritableByteChannel channel, long max)
+        throws IOException
+    {
+        FileDataContainer file =
+            (FileDataContainer) message.getDataContainer();
+        long chunkSize = session.getChunkSize();
+        if (chunkSize > 0 && chunkSize - dataCopied < max)
+            max = chunkSize - dataCopied;
+        long offset = file.currentReadOffset();
+        byte[] endLine = ("-------" + tID).getBytes(TextUtils.usascii);
+        if (file.contains(endLine, offset - endLine.length,
+                offset + max + endLine.length))
+        {
+            transferable = false;
+            return -1;
+        }
+        long sent = file.transferTo(channel, max);
+        if (sent > 0)
+        {
+            hasContentStuff = true;
+            dataCopied += sent;
+        }
+        return sent;
+    }
+
     /**
      * Gets a byte for the end of transaction line
      * 
@@ -956,9 +1090,46 @@ public class Transaction
                 "Error: getEndLineByte() called without available bytes to get");
         }
         readIndex[ENDLINE]++;
+        if (isStreamed() && !interrupted)
+            /* streamed content ends with its source */
+            continuation_flag = message.getDataContainer().isExhausted() ?
+                FLAG_END : FLAG_IRQ;
         return continuation_flag;
     }
 
+    /**
+     * @return is this a SEND request with content read from a source of
+     *         unknown length?
+     * @see OutgoingMessage#isStreamed()
+     */
+    private boolean isStreamed()
+    {
+        return transactionType == TransactionType.SEND && message != null &&
+            message.getDirection() == Direction.OUT &&
+            ((OutgoingMessage) message).isStreamed();
+    }
+
+    /**
+     * @return is this a chunk of streamed content that is to be followed by
+     *         another chunk, once sent?
+     */
+    boolean isFollowedByChunk()
+    {
+        return !interrupted && continuation_flag == FLAG_IRQ && isStreamed();
+    }
+
+    /**
+     * @return the rest of the end of transaction line, including the CRLF
+     *         that separates it from any content.
+     * @throws InternalErrorException if all of the end-line was returned
+     *             already
+     */
+    ByteBuffer getEndLineBuffer() throws InternalErrorException
+    {
+        byte[] endLine = new byte[tID.length() + 12];
+        return ByteBuffer.wrap(endLine, 0, getEndLine(endLine, 0));
+    }
+
     protected int getEndLine(byte[] data, int offset) throws InternalErrorException
     {
     	for (int i = 0; i < data.length - offset; i++)
@@ -968,7 +1139,7 @@ public class Transaction
     		else
     			return i;
     	}
-    	return 0;
+    	return data.length - offset;	// buffer full, rest of end-line follows
     }
     /**
      * Asserts if a transaction is interruptible or not.
@@ -1161,6 +1332,8 @@ public class Transaction
     {
         if (transactionType != TransactionType.SEND)
         {
+            if (bodyByteBuffer == null)
+                return new byte[size];
             if (size == ALLBYTES)
             {
                 bodyByteBuffer.flip();
@@ -1231,18 +1404,25 @@ public class Transaction
     }
 
     /**
-     * Constructor-method to initialize data structures as needed.
-     * 
-     * Currently uses this transaction's TransactionType to assert if there is
-     * need to reserve space for this transaction body
+     * Trade the pooled header and body buffers of this (incoming) transaction
+     * for arrays of the exact size and return them to the pool.
      */
-    private void initializeDataStructures()
+    private void releaseBuffers()
     {
-        if (transactionType != TransactionType.SEND &&
-    		transactionType != TransactionType.NICKNAME)
+        BufferPool pool = Stack.getBufferPool();
+        if (headerBytes != null)
         {
-            bodyBytes = new byte[Stack.MAX_NONSEND_BODYSIZE];
+            byte[] buffer = headerBytes;
+            headerBytes = Arrays.copyOf(buffer, headerLength);
+            pool.give(buffer);
+        }
+        if (bodyBytes != null)
+        {
+            byte[] buffer = bodyBytes;
+            bodyBytes = Arrays.copyOf(buffer, bodyByteBuffer.position());
             bodyByteBuffer = ByteBuffer.wrap(bodyBytes);
+            bodyByteBuffer.position(bodyBytes.length);
+            pool.give(buffer);
         }
     }
 
@@ -1252,50 +1432,44 @@ public class Transaction
     }
 
     /**
-     * Adds the given data to the buffer checking if it already doesn't exceed
-     * the maximum limit of bytes. In that case an Exception is
-     * thrown
+     * Adds received header data to headerBytes until the header is complete,
+     * checking it doesn't exceed the maximum limit of bytes. In that case an
+     * Exception is thrown.
+     * <br>
+     * The header of an incoming response ends with the CRLF of the from-path
+     * (the second line), that of a request with content-stuff at the empty
+     * line. A request without content-stuff ends with the end-line.
      * 
-     * @param toAdd the string to add to the buffer used for storage of
-     *            complete lines for analyzing posteriorly
-     * @throws InvalidHeaderException if too many bytes would be passed with the
-     *             addition of toAdd
-     */
-    private void addHeaderBuffer(String toAdd) throws InvalidHeaderException
+     * @param data		the buffer holding the data.
+     * @param offset	the start of the data.
+     * @param length	the number of bytes of data.
+     * @return the number of bytes taken up to the end of the header or
+     *         NOTFOUND when the header is not complete yet.
+     * @throws InvalidHeaderException if the header would exceed the limit.
+     */
+    private int addHeaderData(byte[] data, int offset, int length)
+        throws InvalidHeaderException
     {
-    	int len = toAdd.length() + headerBuffer.length();
-
-    	if ( len > MAXHEADERBYTES)
-            throw new InvalidHeaderException("Trying to parse a line of "
-                + len + " bytes when the limit is " + MAXHEADERBYTES);
-        else
-            headerBuffer.append(toAdd);
-    }
-
-    private static Pattern endOfHeaderWithoutContent =
-            Pattern.compile(
-                "^To-Path: .{10,}\r\nFrom-Path: .{10,}\r\n", Pattern.DOTALL);
-
-    private static Pattern endOfHeaderWithContent =
-            Pattern.compile(".*(\r\n){2}.*", Pattern.DOTALL);
-
-    /** Has headerBuffer all of the header data?
-     * @return true if headerBuffer has all of header-data
-     */
-    private boolean isHeaderBufferComplete()
-    {
-    	/*
-	     * in case of incoming response the header
-	     * ends with the from-paths last uri and CRLF
-    	 */
-        Matcher isHeaderComplete;
-        if (isIncomingResponse())
-            isHeaderComplete = endOfHeaderWithoutContent.matcher(headerBuffer);
-        else
-	        /* In case of a transaction with 'content-stuff' */
-	        isHeaderComplete = endOfHeaderWithContent.matcher(headerBuffer);
-
-        return isHeaderComplete.matches();
+        if (headerBytes == null)
+            headerBytes = Stack.getBufferPool().take(MAXHEADERBYTES);
+        for (int i = 0; i < length; i++)
+        {
+            if (headerLength == MAXHEADERBYTES)
+                throw new InvalidHeaderException("Header exceeds the limit of "
+                    + MAXHEADERBYTES + " bytes");
+            byte b = data[offset + i];
+            headerBytes[headerLength++] = b;
+            if (b == '\n' && headerLength > 1 &&
+                headerBytes[headerLength - 2] == '\r')
+            {
+                headerLines++;
+                if (isIncomingResponse() ? headerLines == 2
+                                         : headerLength - headerLineStart == 2)
+                    return i + 1;
+                headerLineStart = headerLength;
+            }
+        }
+        return NOTFOUND;
     }
 
     /**
@@ -1309,7 +1483,7 @@ public class Transaction
      * the method are present.
      * 
      * check to see if there is any garbage on the transaction (bytes
-     * remaining in the headerBuffer that aren't assigned to any valid field ?!)
+     * remaining in the header that aren't assigned to any valid field ?!)
      */
     @SuppressWarnings("static-method")
     private void validate()
@@ -1434,7 +1608,8 @@ public class Transaction
                  * associate session with this transaction manager and
                  * remove from the list of sessions yet to be identified
                  */
-                connectionsInstance.identifiedSession(relatedSession);
+                connectionsInstance.identifiedSession(relatedSession,
+                		transactionManager.getConnection());
                 this.session = relatedSession;
                 transactionManager.addSession(relatedSession);
                 associateMessage();
@@ -1490,7 +1665,9 @@ public class Transaction
         		break;
         	case SEND:
             	in = IncomingMessageFactory.createMessage(
-            			session, messageID, this.contentType, totalMessageBytes);
+            			session, messageID, this.contentType,
+            			totalMessageBytes == UNKNOWN ? Message.UNKNOWN :
+            										totalMessageBytes);
                 message = in;
                 message.setSuccessReport(successReport);
                 try
@@ -1507,18 +1684,27 @@ public class Transaction
                 if (result && in.getResult() != ResponseCode.RC200)
                 {
                     in.setResult(ResponseCode.RC200);
-                    if (in instanceof IncomingAliveMessage || in.getDataContainer() != null)
+                    if (!(in instanceof IncomingAliveMessage) &&
+                    	in.getDataContainer() == null)
+                    {	// user didn't assign DataContainer to message;
+                    	//		keep it in memory or a temporary file.
+                    	try
+                    	{
+                    		in.setDataContainer(
+                    				new SpillingDataContainer(in.getSize()));
+                    	}
+                    	catch (IOException e)
+                    	{
+                    		logger.error(this + 
+                    				" no datacontainer to store incoming data, " +
+                    				"discarding incoming message " + in, e);
+                    		result = false;
+                    	}
+                    }
+                    if (result)
                     {	// put on receiving message "list" of the Session
                         session.putReceivingMessage(in);
                     }
-                    else
-                    {	// if user didn't assign DataContainer to message;
-                    	//		discard & log.
-                    	logger.error(this + 
-                			" no datacontainer given to store incoming data, " +
-            				"discarding incoming message " + in);
-                        result = false;
-                    }
                 }
                 if (!result)
                 {						/* The message is to be discarded! */
@@ -1565,77 +1751,101 @@ public class Transaction
         }
     }
 
-    private static Pattern asciiPattern = Pattern.compile("\\p{ASCII}+");
-
-    private static Pattern headers = Pattern.compile(
-                    "(^To-Path:) (.{10,})(\r\n)(From-Path:) (.{10,})(\r\n)(\\p{ASCII}*)",
-                    Pattern.CASE_INSENSITIVE);
-
-    private static Pattern messageIDPattern = Pattern.compile(
-                    "(.*)(Message-ID:) (\\p{Alnum}(\\p{Alnum}|\\.|\\-|\\+|\\%|\\=){3,31})(\r\n)(.*)",
-                    Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern byteRangePattern = Pattern.compile(
-                    "(.*)(Byte-Range:) (\\p{Digit}+)-(\\p{Digit}+|\\*)/(\\p{Digit}+|\\*)(\r\n)(.*)",
-                    Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern contentTypePattern = Pattern.compile(
-                    "(.*)(Content-Type:) ([^/]{1,30}/[^;\r\n]{1,30})(;.*)?\r\n(.*)",
-                    Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern fReportPattern = Pattern.compile(
-	                "(.*)(Failure-Report:) ([^\r\n]*)(\r\n)(.*)",
-	                Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern sReportPattern = Pattern.compile(
-		    		"(.*)(Success-Report:) ([^\r\n]*)(\r\n)(.*)",
-		            Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern nicknamePattern = Pattern.compile(
-		            "(.*)(Use-Nickname:) +\"([^\"]+)\"[^\r\n]*\r\n(.*)",
-		            Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern statusPattern = Pattern.compile(
-	                "(.*)(Status:) (\\p{Digit}{3}) (\\p{Digit}{3})([^\r\n]*)\r\n(.*)",
-	                Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    /**
-     * will recognise the headers stored on headerBuffer, initialise all of the
+    /*
+     * The header fields the header parser picks up, indexes in headerNames.
+     */
+    private static final int TO_PATH = 0;
+    private static final int FROM_PATH = 1;
+    private static final int MESSAGE_ID = 2;
+    private static final int BYTE_RANGE = 3;
+    private static final int CONTENT_TYPE = 4;
+    private static final int FAILURE_REPORT = 5;
+    private static final int SUCCESS_REPORT = 6;
+    private static final int USE_NICKNAME = 7;
+    private static final int STATUS = 8;
+
+    /**
+     * Lower-case names of the header fields picked up by the header parser.
+     */
+    private static final byte[][] headerNames = {
+        "to-path".getBytes(TextUtils.usascii),
+        "from-path".getBytes(TextUtils.usascii),
+        "message-id".getBytes(TextUtils.usascii),
+        "byte-range".getBytes(TextUtils.usascii),
+        "content-type".getBytes(TextUtils.usascii),
+        "failure-report".getBytes(TextUtils.usascii),
+        "success-report".getBytes(TextUtils.usascii),
+        "use-nickname".getBytes(TextUtils.usascii),
+        "status".getBytes(TextUtils.usascii),
+    };
+
+    /**
+     * will recognise the headers stored on headerBytes, initialise all of the
      * variables related to the header and check for violations of the
-     * protocol
+     * protocol.
+     * <br>
+     * The header is walked once, line by line: the field name is looked up
+     * (case-insensitive) and the position of the value remembered, fields
+     * that are not of interest are skipped.
      * 
      * @throws InvalidHeaderException if it's found that the header is invalid
      *             for some reason
      */
     private void recognizeHeader() throws InvalidHeaderException
     {
-    	Matcher matcher;
-
-    	// If the characters aren't all ascii send an invalid header
-        matcher = asciiPattern.matcher(headerBuffer);
-        if (!matcher.matches())
-            throw new InvalidHeaderException(
-                "Error, non-ascii characters contained in the header");
+        int[] valueStart = new int[headerNames.length];
+        int[] valueEnd = new int[headerNames.length];
+        Arrays.fill(valueStart, NOTFOUND);
 
         // headers = To-Path CRLF From-Path CRLF 1*( header CRLF )
-        matcher = headers.matcher(headerBuffer);
-        if (!matcher.matches())
+        int line = 0;
+        int i = 0;
+        while (i < headerLength)
+        {
+            int lineStart = i;
+            int colon = NOTFOUND;
+            for (; i < headerLength && headerBytes[i] != '\r'; i++)
+            {
+                if (headerBytes[i] < 0)
+                    throw new InvalidHeaderException(
+                        "Error, non-ascii characters contained in the header");
+                if (colon == NOTFOUND && headerBytes[i] == ':')
+                    colon = i;
+            }
+            int lineEnd = i;
+            i += 2;								// skip CRLF
+            if (lineEnd == lineStart)			// end of header
+                break;
+            int field = colon == NOTFOUND ? NOTFOUND : headerField(lineStart, colon);
+            if ((line == 0 && field != TO_PATH) ||
+                (line == 1 && field != FROM_PATH))
+                break;
+            if (field != NOTFOUND)
+            {
+                int start = colon + 1;
+                while (start < lineEnd && isWhiteSpace(headerBytes[start]))
+                    start++;
+                int end = lineEnd;
+                while (end > start && isWhiteSpace(headerBytes[end - 1]))
+                    end--;
+                valueStart[field] = start;
+                valueEnd[field] = end;
+            }
+            line++;
+        }
+        if (valueStart[TO_PATH] == NOTFOUND || valueStart[FROM_PATH] == NOTFOUND ||
+            valueEnd[TO_PATH] - valueStart[TO_PATH] < 10 ||
+            valueEnd[FROM_PATH] - valueStart[FROM_PATH] < 10)
         {
             throw new InvalidHeaderException(
                 "Transaction doesn't have valid to/from-path headers."
                     + " Transaction: " + transactionType
-                    + " headerBuffer: " + headerBuffer);
+                    + " header: " + new String(headerBytes, 0, headerLength,
+                                        TextUtils.usascii));
         }
         try
         {
-            String[] toPaths = matcher.group(2).split(" +");
-            URI[] toPath = new URI[toPaths.length];
-            int i =0;
-            for (String path : toPaths) {
-            	toPath[i] = URI.create(path);
-            	i++;
-            }
-            setToPath(toPath);
+            setToPath(parsePath(valueStart[TO_PATH], valueEnd[TO_PATH]));
         }
         catch (Exception e)
         {
@@ -1643,14 +1853,7 @@ public class Transaction
         }
         try
         {
-            String[] fromPaths = matcher.group(5).split(" +");
-            URI[] fromPath = new URI[fromPaths.length];
-            int i = 0;
-            for (String path : fromPaths) {
-            	fromPath[i] = URI.create(path);
-            	i++;
-            }
-            setFromPath(fromPath);
+            setFromPath(parsePath(valueStart[FROM_PATH], valueEnd[FROM_PATH]));
         }
         catch (Exception e)
         {
@@ -1659,84 +1862,103 @@ public class Transaction
         // If we are receiving a response the processing ends here
         if (isIncomingResponse())
             return;
+        int start;
+        int end;
         switch (transactionType)		// Method specific headers
         {
         case REPORT:
             /* Report request specific headers: */
-            /* 'Status:' processing */
-            matcher = statusPattern.matcher(headerBuffer);
-            if (matcher.matches())
+            /* 'Status:' processing, namespace SP status-code [SP comment] */
+            start = valueStart[STATUS];
+            end = valueEnd[STATUS];
+            if (start != NOTFOUND && end - start >= 7 &&
+                isDigits(start, 3) && headerBytes[start + 3] == ' ' &&
+                isDigits(start + 4, 3) &&
+                (end - start == 7 || headerBytes[start + 7] == ' '))
             {
-                String namespace = matcher.group(3);
-                String statusCode = matcher.group(4);
-                String comment = matcher.group(5);
-                statusHeader =
-                    new StatusHeader(namespace, statusCode, comment);
+                String comment = null;
+                if (end - start > 8)
+                    comment = new String(headerBytes, start + 8,
+                                    end - start - 8, TextUtils.usascii);
+                statusHeader = new StatusHeader(
+                    new String(headerBytes, start, 3, TextUtils.usascii),
+                    new String(headerBytes, start + 4, 3, TextUtils.usascii),
+                    comment);
             }
             /* $FALL-THROUGH$: to shared headers */
         case SEND:
             /* Message-ID processing: */
-            matcher = messageIDPattern.matcher(headerBuffer);
-            if (matcher.matches())
-            {
-                messageID = matcher.group(3);
-            }
-            else
+            start = valueStart[MESSAGE_ID];
+            end = valueEnd[MESSAGE_ID];
+            if (start == NOTFOUND || !isIdentifier(start, end))
                 throw new InvalidHeaderException("MessageID not found");
+            messageID = new String(headerBytes, start, end - start,
+                                TextUtils.usascii);
 
             /* Byte-Range processing: */
-            matcher = byteRangePattern.matcher(headerBuffer);
-            if (matcher.matches())
+            if (valueStart[BYTE_RANGE] != NOTFOUND)
+                parseByteRange(valueStart[BYTE_RANGE], valueEnd[BYTE_RANGE]);
+
+            start = valueStart[CONTENT_TYPE];
+            if (start != NOTFOUND)
             {
-                byteRange[0] = Integer.parseInt(matcher.group(3));
-                if (matcher.group(4).equals("*"))
-                    byteRange[1] = UNKNOWN;
-                else
-                    byteRange[1] = Integer.parseInt(matcher.group(4));
-                if (matcher.group(5).equals("*"))
-                    totalMessageBytes = UNKNOWN;
-                else
-                    totalMessageBytes = Integer.parseInt(matcher.group(5));
+                end = start;
+                int slash = NOTFOUND;
+                for (; end < valueEnd[CONTENT_TYPE] && headerBytes[end] != ';'; end++)
+                    if (slash == NOTFOUND && headerBytes[end] == '/')
+                        slash = end;
+                if (slash > start && slash < end - 1)
+                    contentType = new String(headerBytes, start, end - start,
+                                        TextUtils.usascii);
             }
-            matcher = contentTypePattern.matcher(headerBuffer);
-            if (matcher.matches())
-                this.contentType = matcher.group(3);
 
             /* Report processing: */
-            matcher = fReportPattern.matcher(headerBuffer);
-            if (matcher.matches())
+            if (valueStart[FAILURE_REPORT] != NOTFOUND)
             {
-            	String value = matcher.group(3).trim().toLowerCase();
-            	if (value.matches("yes|no|partial"))
-            		failureReport = value;
-            	else
-	                logger.warn(this + " failure-Report invalid value found: " +
-	                			value);
+                start = valueStart[FAILURE_REPORT];
+                end = valueEnd[FAILURE_REPORT];
+                if (equalsIgnoreCase(start, end, Message.YES))
+                    failureReport = Message.YES;
+                else if (equalsIgnoreCase(start, end, Message.NO))
+                    failureReport = Message.NO;
+                else if (equalsIgnoreCase(start, end, Message.PARTIAL))
+                    failureReport = Message.PARTIAL;
+                else
+                    logger.warn(this + " failure-Report invalid value found: " +
+                                new String(headerBytes, start, end - start,
+                                        TextUtils.usascii));
             }
-            matcher = sReportPattern.matcher(headerBuffer);
-            if (matcher.matches())
+            if (valueStart[SUCCESS_REPORT] != NOTFOUND)
             {
-            	String value = matcher.group(3).trim().toLowerCase();
-            	if (value.equals("yes"))
-            			successReport = true;
-            	else if (value.equals("no"))
-            			successReport = false;
-            	else
-	                logger.warn(this + " success-Report invalid value found: " +
-	                			value);
+                start = valueStart[SUCCESS_REPORT];
+                end = valueEnd[SUCCESS_REPORT];
+                if (equalsIgnoreCase(start, end, Message.YES))
+                    successReport = true;
+                else if (equalsIgnoreCase(start, end, Message.NO))
+                    successReport = false;
+                else
+                    logger.warn(this + " success-Report invalid value found: " +
+                                new String(headerBytes, start, end - start,
+                                        TextUtils.usascii));
             }
             break;
         case NICKNAME:
-            matcher = nicknamePattern.matcher(headerBuffer);
-            if (matcher.matches())
-                nickname = matcher.group(3);
-            else
+            start = valueStart[USE_NICKNAME];
+            end = NOTFOUND;
+            if (start != NOTFOUND && headerBytes[start] == '"')
+                for (int j = start + 1; j < valueEnd[USE_NICKNAME]; j++)
+                    if (headerBytes[j] == '"')
+                    {
+                        end = j;
+                        break;
+                    }
+            if (end == NOTFOUND || end == start + 1)
                 throw new InvalidHeaderException("Nickname not found");
-            matcher = fReportPattern.matcher(headerBuffer);
-            if (matcher.matches())
+            nickname = new String(headerBytes, start + 1, end - start - 1,
+                                TextUtils.usascii);
+            if (valueStart[FAILURE_REPORT] != NOTFOUND)
             	logger.warn(this + " failure report included in NICKNAME request, ignoring...");
-            matcher = sReportPattern.matcher(headerBuffer);
-            if (matcher.matches())
+            if (valueStart[SUCCESS_REPORT] != NOTFOUND)
             	logger.warn(this + " success report included in NICKNAME request, ignoring...");
         	break;
         case UNSUPPORTED:
@@ -1747,6 +1969,147 @@ public class Transaction
         }
     }
 
+    /**
+     * @return the index in headerNames of the header field name found at the
+     *         given range of headerBytes, NOTFOUND if not of interest.
+     */
+    private int headerField(int start, int end)
+    {
+        int length = end - start;
+        for (int field = 0; field < headerNames.length; field++)
+        {
+            byte[] name = headerNames[field];
+            if (name.length != length)
+                continue;
+            int i = 0;
+            while (i < length && toLower(headerBytes[start + i]) == name[i])
+                i++;
+            if (i == length)
+                return field;
+        }
+        return NOTFOUND;
+    }
+
+    /**
+     * @return the space separated URIs in the given range of headerBytes.
+     */
+    private URI[] parsePath(int start, int end)
+    {
+        ArrayList<URI> path = new ArrayList<URI>(2);
+        int i = start;
+        while (i < end)
+        {
+            int uriStart = i;
+            while (i < end && headerBytes[i] != ' ')
+                i++;
+            path.add(URI.create(new String(headerBytes, uriStart, i - uriStart,
+                                        TextUtils.usascii)));
+            while (i < end && headerBytes[i] == ' ')
+                i++;
+        }
+        return path.toArray(new URI[path.size()]);
+    }
+
+    /**
+     * Byte-Range: range-start "-" range-end "/" total
+     * <br>
+     * The fields are left untouched if the value is malformed.
+     */
+    private void parseByteRange(int start, int end)
+    {
+        int dash = start;
+        while (dash < end && isDigit(headerBytes[dash]))
+            dash++;
+        if (dash == start || dash >= end || headerBytes[dash] != '-')
+            return;
+        int slash = dash + 1;
+        while (slash < end && headerBytes[slash] != '/')
+            slash++;
+        long rangeEnd = parseNumber(dash + 1, slash);
+        long total = parseNumber(slash + 1, end);
+        if (slash >= end || rangeEnd == NOTFOUND || total == NOTFOUND)
+            return;
+        byteRange[CHUNKSTARTBYTEINDEX] = parseNumber(start, dash);
+        byteRange[CHUNKENDBYTEINDEX] = rangeEnd;
+        totalMessageBytes = total;
+    }
+
+    /**
+     * @return the number or '*' (as UNKNOWN) in the given range of
+     *         headerBytes, NOTFOUND if it is neither.
+     */
+    private long parseNumber(int start, int end)
+    {
+        if (end - start == 1 && headerBytes[start] == '*')
+            return UNKNOWN;
+        if (start >= end)
+            return NOTFOUND;
+        long number = 0;
+        for (int i = start; i < end; i++)
+        {
+            if (!isDigit(headerBytes[i]))
+                return NOTFOUND;
+            number = number * 10 + headerBytes[i] - '0';
+        }
+        return number;
+    }
+
+    /**
+     * ident = ALPHANUM 3*31ident-char
+     */
+    private boolean isIdentifier(int start, int end)
+    {
+        int length = end - start;
+        if (length < 4 || length > 32 || !isAlphaNum(headerBytes[start]))
+            return false;
+        for (int i = start + 1; i < end; i++)
+        {
+            byte b = headerBytes[i];
+            if (!isAlphaNum(b) && b != '.' && b != '-' && b != '+' &&
+                b != '%' && b != '=')
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isDigits(int start, int count)
+    {
+        for (int i = start; i < start + count; i++)
+            if (!isDigit(headerBytes[i]))
+                return false;
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String value)
+    {
+        if (end - start != value.length())
+            return false;
+        for (int i = 0; i < value.length(); i++)
+            if (toLower(headerBytes[start + i]) != value.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static boolean isWhiteSpace(byte b)
+    {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean isDigit(byte b)
+    {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isAlphaNum(byte b)
+    {
+        return isDigit(b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static byte toLower(byte b)
+    {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
     /**
      * @param toPath the toPath to set
      */
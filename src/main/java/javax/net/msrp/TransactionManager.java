@@ -16,13 +16,17 @@
  */
 package javax.net.msrp;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.Vector;
 
 import javax.net.msrp.events.MessageAbortedEvent;
 import javax.net.msrp.exceptions.*;
@@ -49,6 +53,12 @@ public class TransactionManager
     private static final Logger logger =
         LoggerFactory.getLogger(TransactionManager.class);
 
+    /**
+     * Number of buffers a connection passes to
+     * {@link #getBuffersToSend(byte[], ByteBuffer[])}.
+     */
+    static final int GATHER_BUFFERS = 16;
+
     /*
      * @uml.property name="_connections"
      */
@@ -64,12 +74,53 @@ public class TransactionManager
      * @uml.associationEnd multiplicity="(0 -1)"
      *                     inverse="_transactionManager:javax.net.msrp.Transaction"
      */
-    private Vector<Transaction> transactionsToSend =
-        new Vector<Transaction>();
+    private TransactionQueue transactionsToSend = new TransactionQueue();
 
+    /**
+     * The requests sent (or being sent) on this connection that may still get
+     * a response, mapped to their transaction id.
+     * <br>
+     * A request is retired from this table once its response is received,
+     * once it has been sent when no response is to be expected
+     * (Failure-Report: no) or when it times out.
+     */
     private HashMap<String, Transaction> existingTransactions =
         new HashMap<String, Transaction>();
 
+    /**
+     * Messages of which the last request was handed out by the last
+     * {@link #getBuffersToSend(byte[], ByteBuffer[])}. They are written once
+     * the connection has written those buffers.
+     * @see #buffersWritten()
+     */
+    private ArrayList<OutgoingMessage> handedOut =
+        new ArrayList<OutgoingMessage>();
+
+    /**
+     * Messages that won't be written, of which the content is released once
+     * the connection has written the buffers handed out, which may still
+     * hold views on it.
+     * @see #releaseContent(Message)
+     */
+    private ArrayList<Message> toRelease = new ArrayList<Message>();
+
+    /**
+     * Are buffers handed out by the last
+     * {@link #getBuffersToSend(byte[], ByteBuffer[])} still to be written?
+     */
+    private boolean buffersOut = false;
+
+    /**
+     * RFC 4975: the time (in ms) to wait for the response to a request before
+     * considering the request failed.
+     */
+    protected static final long RESPONSE_TIMEOUT = 30000;
+
+    /**
+     * Timeout for responses used by this transaction manager.
+     */
+    protected long responseTimeout = RESPONSE_TIMEOUT;
+
     private HashMap<URI, Session> associatedSessions =
         new HashMap<URI, Session>();
 
@@ -80,6 +131,7 @@ public class TransactionManager
      * Methods that may behave differently:
      * 
      * @see #generateNewTID()
+     * @see #retire(Transaction)
      */
     protected boolean testing = false;
 
@@ -305,6 +357,13 @@ public class TransactionManager
             {
                 logger.error(this + " error calling triggerReceivedReport", e);
             }
+            if (transaction.getMessage() instanceof OutgoingMessage)
+            {
+                MessageDelivery delivery =
+                    ((OutgoingMessage) transaction.getMessage()).getDelivery();
+                if (delivery != null)
+                    delivery.reportReceived(transaction);
+            }
         }
     }
 
@@ -401,6 +460,7 @@ public class TransactionManager
                     "%s %s is an incoming response and has been processed" +
             		" by the transactionManager for connection (localURI): ",
                     transaction, connection.getLocalURI()));
+            responseReceived(transactionResponse.getTID());
             processResponse(transactionResponse);
             return;
         }
@@ -436,6 +496,14 @@ public class TransactionManager
      */
     private void processResponse(TransactionResponse response)
     {
+    	if (response.response2Type == TransactionType.SEND &&
+    			response.getMessage() instanceof OutgoingMessage)
+    	{
+    		MessageDelivery delivery =
+    				((OutgoingMessage) response.getMessage()).getDelivery();
+    		if (delivery != null)
+    			delivery.responseReceived(response);
+    	}
     	if (response.response2Type == TransactionType.NICKNAME)
     	{
 			response.getMessage().getSession().triggerReceivedNickResult(response);
@@ -461,6 +529,19 @@ public class TransactionManager
             response.getMessage().fireMessageAbortedEvent(
                 response.responseCode, null, response);
         }
+    	else if (response.response2Type == TransactionType.SEND &&
+    			ResponseCode.isError(response.responseCode) &&
+    			response.getMessage() instanceof OutgoingMessage)
+    	{
+    		boolean queued;
+    		synchronized (this)
+    		{
+    			queued = !transactionsToSend.get(response.getMessage())
+    						.isEmpty();
+    		}
+    		if (!queued)				/* nothing left to send */
+    			releaseContent(response.getMessage());
+    	}
     }
 
     /**
@@ -492,6 +573,27 @@ public class TransactionManager
 
     protected void removeSession(Session session) {
     	associatedSessions.remove(session.getURI());
+    	synchronized (this)
+    	{							// stop sending its messages
+    		for (Message message : transactionsToSend.messages())
+    			if (message.getSession() == session)
+    				abortMessage(message);
+    	}
+    	synchronized (this)
+    	{							// forget its requests awaiting a response
+    		Iterator<Transaction> it =
+    				existingTransactions.values().iterator();
+    		while (it.hasNext())
+    		{
+    			Transaction t = it.next();
+    			if (t.responseTimer != null && t.getMessage() != null &&
+    				t.getMessage().getSession() == session)
+    			{
+    				t.responseTimer.cancel();
+    				it.remove();
+    			}
+    		}
+    	}
     }
 
     /**
@@ -527,11 +629,22 @@ public class TransactionManager
      * 
      * @param toSend	the message to queue.
      */
-    protected void generateTransactionsToSend(Message toSend)
+    protected void generateTransactionsToSend(final Message toSend)
     {
         if (toSend == null || toSend.getDirection() != Direction.OUT)
             throw new IllegalArgumentException(
                     "No or invalid message to send specified");
+        if (((OutgoingMessage) toSend).isStreamed() &&
+                toSend.getDataContainer().whenReadable(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {		/* continue once the source has data */
+                            if (!toSend.wasAborted())
+                                generateTransactionsToSend(toSend);
+                        }
+                    }))
+            return;
 
         OutgoingMessage validated = null;
         Transaction newTransaction = null;
@@ -562,46 +675,177 @@ public class TransactionManager
     	        // change the reference to the lastSendTransaction of the message
     	        toSend.setLastSendTransaction(newTransaction);
     
-    	        addTransactionToSend(newTransaction, UNIMPORTANT);
+    	        addTransactionToSend(newTransaction);
             }
     	}
     	while (--chunks > 0);
     }
 
-    private static final int UNIMPORTANT = -1;
-
     /**
      * Adds the given transaction to the queue of transactions to send and wakes
      * up the write thread of the associated connection
      * 
-     * @param Transaction transactionToSend
-     * @param positionIndex the position in which to add the transaction, if -1
-     *            (UNIMPORTANT) just run an .add
+     * @param transaction the transaction to send
      */
-    private void addTransactionToSend(Transaction transaction, int positionIndex)
+    private void addTransactionToSend(Transaction transaction)
     {
-        if (positionIndex != UNIMPORTANT)
-            transactionsToSend.add(positionIndex, transaction);
-        else
-            transactionsToSend.add(transaction);
+        transactionsToSend.add(transaction);
         connection.notifyWriteThread();
     }
 
     /**
      * Remove this transaction from the send queue.
-     * In case this is an interrupted transaction, generate and queue the rest.
+     * In case this is an interrupted transaction or a chunk of streamed
+     * content, generate and queue the rest.
      * @param tx the transaction to remove.
      */
     private void removeTransactionToSend(Transaction tx) {
 		if (transactionsToSend.remove(tx))
 		{
-			if (tx.interrupted && !tx.isAborted())
+			requestSent(tx);
+			if (!tx.interrupted && tx.getMessage() != null &&
+					tx.getMessage().getDirection() == Direction.OUT &&
+					tx.getTransactionType() == TransactionType.SEND &&
+					!tx.isFollowedByChunk() && tx.getMessage().isComplete())
+				lastRequestSent((OutgoingMessage) tx.getMessage());
+			if ((tx.interrupted && !tx.isAborted()) || tx.isFollowedByChunk())
 			{
 				generateTransactionsToSend(tx.getMessage());
 			}
 		}
     }
 
+    /**
+     * The last request carrying the given message left the send queue: the
+     * message is written once the connection has written the buffers.
+     * 
+     * @param message the message sent.
+     */
+    private void lastRequestSent(OutgoingMessage message)
+    {
+        handedOut.add(message);
+        if (message.getDelivery() != null)
+            message.getDelivery().lastRequestSent();
+    }
+
+    /**
+     * A request left the send queue: have it wait for its response or retire
+     * it when no response is to be expected.
+     * 
+     * @param tx the transaction.
+     */
+    private synchronized void requestSent(final Transaction tx)
+    {
+        if (existingTransactions.get(tx.getTID()) != tx)
+            return;						// not a request awaiting a response
+        if (!tx.hasSentData() || Message.NO.equals(getFailureReport(tx)))
+        {
+            retire(tx);
+            return;
+        }
+        MessageDelivery delivery = deliveryOf(tx);
+        if (delivery != null)
+            delivery.requestSent();
+        tx.responseTimer = Stack.getTimerWheel().schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    responseTimedOut(tx);
+                }
+            }, responseTimeout);
+    }
+
+    /**
+     * The response to a request was received, retire the request.
+     * 
+     * @param tid the transaction id of the request.
+     */
+    private synchronized void responseReceived(String tid)
+    {
+        Transaction tx = existingTransactions.get(tid);
+        if (tx != null)
+        {
+            if (tx.responseTimer != null)
+                tx.responseTimer.cancel();
+            retire(tx);
+        }
+    }
+
+    /**
+     * Remove the given request from the table of existing transactions.
+     * When testing, the request is kept for inspection.
+     * 
+     * @param tx the transaction to remove.
+     * @see #getExistingTransactions()
+     */
+    private synchronized void retire(Transaction tx)
+    {
+        if (!testing)
+            existingTransactions.remove(tx.getTID());
+    }
+
+    /**
+     * @param tx a transaction
+     * @return the progress followed of the message the given SEND request
+     *         carries, null if none.
+     */
+    private static MessageDelivery deliveryOf(Transaction tx)
+    {
+        Message message = tx.getMessage();
+        if (tx.getTransactionType() != TransactionType.SEND ||
+                message == null || message.getDirection() != Direction.OUT)
+            return null;
+        return ((OutgoingMessage) message).getDelivery();
+    }
+
+    private static String getFailureReport(Transaction tx)
+    {
+        Message message = tx.getMessage();
+        if (message == null)
+            return Message.YES;
+        return message.getFailureReport();
+    }
+
+    /**
+     * No response was received in time for the given request: retire it. A
+     * request that wants failure reports fails as if a 408 response was
+     * received (RFC 4975, section 7.1.1), others are just forgotten.
+     * <p>
+     * Run by the timer wheel, so failing the request (which aborts the
+     * message and calls the listener) is handed off to the stack's worker.
+     * 
+     * @param tx the request that timed out.
+     */
+    private void responseTimedOut(final Transaction tx)
+    {
+        synchronized (this)
+        {
+            if (existingTransactions.get(tx.getTID()) != tx)
+                return;					// response came in just now
+            retire(tx);
+        }
+        if (!Message.YES.equals(getFailureReport(tx)))
+            return;
+        logger.warn(this + " no response received for " + tx);
+        Stack.getWorker().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        processResponse(new TransactionResponse(tx,
+                            ResponseCode.RC408, "local timeout", Direction.IN));
+                    }
+                    catch (Exception e)
+                    {
+                        logger.error(TransactionManager.this + " failing timed out " + tx, e);
+                    }
+                }
+            });
+    }
+
     /**
      * Checks the transaction queue for existing transactions to be sent
      * 
@@ -658,10 +902,10 @@ public class TransactionManager
         private String transactionID = null;
 
         /**
-         * Variable used by the method parse to assert in which state the parser
-         * is so that we can save the state of this state machine between calls
+         * The scanner for the end-line of the transaction being sent, that
+         * keeps what might start an end-line between calls
          */
-        private short state = 0;
+        private EndLineScanner scanner = null;
 
         /**
          * Assert if the data we have so far contains the end-line
@@ -689,6 +933,9 @@ public class TransactionManager
         private void init(String transactionId)
         {
             this.transactionID = transactionId;
+            if (scanner == null ||
+                    !scanner.getTransactionId().equals(transactionId))
+                scanner = new EndLineScanner(transactionId);
         }
 
         /**
@@ -703,25 +950,19 @@ public class TransactionManager
         }
 
         /**
-         * This method is used to parse the data to be searched for the end line
-         * characters
+         * Parse the remaining bytes of the given buffer, without changing its
+         * position.
          * 
-         * @param outputData the data to be parsed and searched for the end line
-         *            string
-         * @param length how many bytes of the outputData vector should be
-         *            searched
+         * @param outputData the data to be parsed and searched for the end
+         *            line string
          * @throws ImplementationException if it was detected that this method
          *             was used in an incorrect way
          */
-        private void parse(byte[] outputData, int length)
+        private void parse(ByteBuffer outputData)
             throws ImplementationException
         {
             if (transactionID == null)
                 return;
-
-            if (outputData.length < length)
-                throw new ImplementationException("method "
-                    + "called with argument length too big");
             /*
              * if we found already the end of line and haven't reset the value
              * with a call to hasEndLine and we call the parse that generates an
@@ -733,52 +974,29 @@ public class TransactionManager
                         + "outgoingDataValidator on TransactionManager, after "
                         + "calling parse a call should always be made "
                         + "to the dataHasEndLine");
-            for (int i = 0; i < length; i++)
+            int found = scanner.scan(outputData);
+            if (found >= 0)
             {
-                switch (state)
-                {
-                case 0:
-                    if (outputData[i] == '-')
-                        state++;
-                    break;
-
-                case 1: case 2: case 3: case 4: case 5: case 6:
-                    if (outputData[i] == '-')
-                        state++;
-                    else
-                        state = 0;
-                    break;
-
-                default:
-                    if (state >= 7)
-                    {
-                        if ((state - 7) < transactionID.length() &&
-                    		outputData[i] == transactionID.charAt(state - 7))
-                            state++;
-                        else if ((state - 7 >= transactionID.length() &&
-                        		 (outputData[i] == '$' || outputData[i] == '#' ||
-                        		  outputData[i] == '+')))
-                        {
-                            foundEndLine = true;
-                            toRewind = length - i + state;
-                            /*
-                             * if we had an end-line split by buffers we
-                             * rewind to the beginning of the data in this
-                             * buffer and then interrupt the transaction
-                             */
-                            if (toRewind > length)
-                                toRewind = length;
-                            state = 0;
-                            break;					/* exit the for */
-                        }
-                        else
-                            state = 0;
-                    }
-                    break;
-                }
+                foundEndLine = true;
+                /*
+                 * if we had an end-line split by buffers we rewind to the
+                 * beginning of the data in this buffer and then interrupt
+                 * the transaction
+                 */
+                toRewind = outputData.remaining() - found;
             }
         }
 
+        /**
+         * Forget the part of an end-line matched so far, the data that
+         * follows it was checked otherwise.
+         */
+        private void clearState()
+        {
+            if (scanner != null)
+                scanner.clear();
+        }
+
         /**
          * Returns the number of positions we should rewind
          * on the buffer and on the transaction's read offset before we
@@ -794,140 +1012,279 @@ public class TransactionManager
         new OutgoingDataValidator();
 
     /**
-     * Method used by the connection object to retrieve a byte array of data
-     * to be sent by the connection.
+     * Have the validator check the content of the given transaction, if it
+     * is one that can be interrupted: responses carry their end-line in
+     * their content.
      * 
-     * 3 mechanisms are active here:
-     *  - 1 piggyback multiple transactions to send into the byte array.
-     *  - 2 split large data over multiple byte-array blocks
-     *  - 3 interrupt transactions that contain endline-data in the content
-     *  	(and split into multiple transactions, using the validator).
+     * @param t the transaction about to be sent from
+     */
+    private void initValidator(Transaction t)
+    {
+        if (t.isInterruptible())
+            outgoingDataValidator.init(t.getTID());
+        else
+            outgoingDataValidator.reset();
+    }
+
+    /**
+     * Account for the bytes about to be sent from the given transaction, if
+     * it is an outgoing SEND request: this is what triggers the sent status
+     * updates.
      * 
-     * It is also at this level that the sending of bytes is accounted for
-     * purposes of triggering the sendUpdateStatus and the prioritiser
+     * @param t the transaction
+     * @param bytesToAccount number of bytes sent from it
+     * @return true if the bytes were accounted for
+     */
+    private boolean account(Transaction t, int bytesToAccount)
+    {
+        if (!t.isIncomingResponse()
+            && t.getTransactionType() == TransactionType.SEND
+            && !t.hasResponse())
+        {
+            /*
+             * reporting the sent update status seen that this is an
+             * outgoing send request
+             */
+            OutgoingMessage transactionMessage =
+                (OutgoingMessage) t.getMessage();
+            if (transactionMessage != null)
+            {
+                transactionMessage.getReportMechanism().countSentBodyBytes(
+                    transactionMessage, bytesToAccount);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method used by the connection object to retrieve the data to be sent:
+     * fill the given array of buffers with views on the header, the content
+     * and the end-line of the transactions to send, so the connection can
+     * send them with a single gathering write. Content that its data
+     * container can't provide a view on is copied to the given staging array.
+     * <p>
+     * Transactions are piggybacked into the buffers, large content is split
+     * over calls and transactions that contain end-line data in their content
+     * are interrupted (and continued in another transaction, using the
+     * validator). It is also at this level that the sending of bytes is
+     * accounted for purposes of triggering the sendUpdateStatus.
+     * <p>
+     * Per call at most {@link Stack#getIOBufferSize()} bytes are gathered.
      * 
-     * @param outData the byte array to fill with data to send
-     * @return the number of bytes filled on outData
+     * @param staging array to copy content without a view to
+     * @param buffers array to fill with the buffers to send
+     * @return the number of buffers filled
      * @throws Exception if something went wrong retrieving the data.
      */
-    protected int getDataToSend(byte[] outData) throws Exception
+    protected int getBuffersToSend(byte[] staging, ByteBuffer[] buffers)
+        throws Exception
     {
-        int byteCounter = 0;
-        int bytesToAccount = 0;		/* Number of bytes per transaction sent */
+        int count = 0;
+        int staged = 0;
+        int budget = Stack.getIOBufferSize();
 
-        synchronized (this) {
-	        while (byteCounter < outData.length && hasDataToSend())
-	        {
-	            Transaction t = transactionsToSend.get(0);
-	            outgoingDataValidator.init(t.getTID());
+        synchronized (this)
+        {
+            while (count < buffers.length && budget > 0 && hasDataToSend())
+            {
+                Transaction t = transactionsToSend.peek();
+                initValidator(t);
+                int bytesToAccount = 0;
 
-	            boolean nextTransaction = false;
-	            while (byteCounter < outData.length && !nextTransaction)
-	            {
-	                if (t.hasData())
-	                {	// when we are still transmitting data
-	                    int result = t.getData(outData, byteCounter);
-	                    byteCounter += result;
-	                    bytesToAccount += result;
-	                }
-	                else
-	                {
-	                    // Let's check to see if we should transmit end of line
-	                    if (t.hasEndLine())
-	                    {
-	                        /*
-	                         * First time we get here we should check if the
-	                         * end-line was found, if it was we should rewind,
-	                         * interrupt transaction and set bytesToAccount
-	                         * back to appropriate positions including index i.
-	                         * We can also reset the outgoingDataValidator
-	                         * because we know the end-line won't
-	                         * appear again on content before the transaction
-	                         * finishes
-	                         */
-	                        outgoingDataValidator.parse(outData, byteCounter);
-	                        outgoingDataValidator.reset();
-	                        if (outgoingDataValidator.dataHasEndLine())
-	                        {
-	                            int rewindAmount =
-	                            		outgoingDataValidator.amount2Rewind();
-	                            t.rewind(rewindAmount);
-	                            t.interrupt();
-	                            byteCounter -= rewindAmount;
-	                            bytesToAccount -= rewindAmount;
-	                            continue;
-	                        }
-	                        int nrBytes = t.getEndLine(outData, byteCounter);
-	                        byteCounter += nrBytes;
-	                        bytesToAccount += nrBytes;
-	                    }
-	                    else
-	                    {
-	                        /*
-	                         * Removing the given transaction from the queue of
-	                         * transactions to send
-	                         */
-	                    	removeTransactionToSend(t);
-	                        /*
-	                         * we should also reset the outgoingDataValidator, so
-	                         * that future calls to the parser won't misjudge the
-	                         * correct end-line as an end-line on the body content.
-	                         */
-	                        outgoingDataValidator.reset();
-
-	                        nextTransaction = true; // get next transaction, if any
-	                    }
-	                }
-	            }// end of transaction while
-//	            nextTransaction = false;
-
-	            /*
-	             * the buffer is full or the transaction has been removed from
-	             * the list of transactions to send and if that was the case the
-	             * outgoingValidator won't make a false positive because it has been
-	             * reset
-	             */
-	            outgoingDataValidator.parse(outData, byteCounter);
-	            if (outgoingDataValidator.dataHasEndLine())
-	            {
-	                int rewindAmount =
-	                    outgoingDataValidator.amount2Rewind();
-	                t.rewind(rewindAmount);
-	                t.interrupt();
-	                byteCounter -= rewindAmount;
-	                bytesToAccount -= rewindAmount;
-
-                    int nrBytes = t.getEndLine(outData, byteCounter);
-                    byteCounter += nrBytes;
-                    bytesToAccount += nrBytes;
-
-	                removeTransactionToSend(t);
-	                outgoingDataValidator.reset();
-	            }
-	            /* 
-				 * account for the bytes sent from this transaction if they should
-	             * be accounted for
-	             */
-	            if (!t.isIncomingResponse()
-	                && t.getTransactionType() == TransactionType.SEND
-	                && !t.hasResponse())
-	            {
-	                /*
-	                 * reporting the sent update status seen that this is an
-	                 * outgoing send request
-	                 */
-	                OutgoingMessage transactionMessage =
-	                    (OutgoingMessage) t.getMessage();
-	                if (transactionMessage != null)
-	                {
-	                    transactionMessage.getReportMechanism().countSentBodyBytes(
-	                        transactionMessage, bytesToAccount);
-	                    bytesToAccount = 0;
-	                }
-	            }
-	        }	// end of main while, the one that goes across transactions
+                while (count < buffers.length && budget > 0)
+                {
+                    ByteBuffer buffer;
+                    if (t.hasData())
+                    {
+                        buffer = t.getDataBuffer(Math.min(budget, sliceOf(t)));
+                        if (buffer == null)
+                        {				// no view on the content, copy it
+                            if (staged == staging.length)
+                                break;
+                            int length = t.getData(staging, staged);
+                            buffer = ByteBuffer.wrap(staging, staged, length);
+                            staged += length;
+                        }
+                        outgoingDataValidator.parse(buffer);
+                        if (outgoingDataValidator.dataHasEndLine())
+                        {
+                            int rewindAmount =
+                                outgoingDataValidator.amount2Rewind();
+                            t.rewind(rewindAmount);
+                            t.interrupt();
+                            buffer.limit(buffer.limit() - rewindAmount);
+                        }
+                    }
+                    else if (t.hasEndLine())
+                        buffer = t.getEndLineBuffer();
+                    else
+                    {
+                        removeTransactionToSend(t);
+                        /*
+                         * reset the validator, so the end-line just sent
+                         * won't be taken for one in the content.
+                         */
+                        outgoingDataValidator.reset();
+                        break;
+                    }
+                    if (buffer.hasRemaining())
+                    {
+                        buffers[count++] = buffer;
+                        budget -= buffer.remaining();
+                        bytesToAccount += buffer.remaining();
+                    }
+                }
+                account(t, bytesToAccount);
+                if (staged == staging.length && t.hasData())
+                    break;
+            }
+            if (count > 0)
+                buffersOut = true;
+        }
+        return count;
+    }
+
+    /**
+     * Called by the connection once it has written all the buffers of the
+     * last {@link #getBuffersToSend(byte[], ByteBuffer[])}: the messages sent
+     * completely are written, caller-owned content of them is released.
+     */
+    void buffersWritten()
+    {
+        ArrayList<OutgoingMessage> written;
+        ArrayList<Message> dropped;
+        synchronized (this)
+        {
+            buffersOut = false;
+            if (handedOut.isEmpty() && toRelease.isEmpty())
+                return;
+            written = handedOut;
+            handedOut = new ArrayList<OutgoingMessage>();
+            dropped = toRelease;
+            toRelease = new ArrayList<Message>();
+        }
+        for (OutgoingMessage message : written)
+        {
+            if (message.getDataContainer() != null)
+                message.getDataContainer().release();
+            if (message.getDelivery() != null)
+                message.getDelivery().allWritten();
+        }
+        for (Message message : dropped)
+            if (message.getDataContainer() != null)
+                message.getDataContainer().release();
+    }
+
+    /**
+     * The given outgoing message won't be written (any further): release
+     * its content, right away or once the buffers handed out to the
+     * connection are written.
+     * 
+     * @param message the message.
+     * @see DataContainer#release()
+     */
+    void releaseContent(Message message)
+    {
+        if (message.getDirection() != Direction.OUT ||
+                message.getDataContainer() == null)
+            return;
+        synchronized (this)
+        {
+            if (buffersOut)
+            {
+                toRelease.add(message);
+                return;
+            }
         }
-        return byteCounter;
+        message.getDataContainer().release();
+    }
+
+    /**
+     * Called once the connection is closed: nothing handed out or queued
+     * will be written anymore, release the content of the messages.
+     */
+    void connectionClosed()
+    {
+        ArrayList<Message> dropped = new ArrayList<Message>();
+        synchronized (this)
+        {
+            dropped.addAll(handedOut);
+            handedOut.clear();
+            dropped.addAll(toRelease);
+            toRelease.clear();
+            dropped.addAll(transactionsToSend.messages());
+            buffersOut = false;
+        }
+        for (Message message : dropped)
+            if (message.getDirection() == Direction.OUT &&
+                    message.getDataContainer() != null)
+                message.getDataContainer().release();
+    }
+
+    /**
+     * @param t a transaction to send
+     * @return the maximum number of bytes to hand to the channel at a time
+     *         for the transaction
+     */
+    private static int sliceOf(Transaction t)
+    {
+        if (t.getTransactionType() != TransactionType.SEND ||
+                t.getMessage() == null || t.getMessage().getSize() <= 0)
+            return Stack.getIOBufferSize();
+        /*
+         * keep slices of smaller messages below a percent of their size, so
+         * the sent status is reported as precisely as with the send buffer
+         */
+        return (int) Math.min(Stack.getIOBufferSize(), Math.max(
+            Connection.OUTPUTBUFFERLENGTH, t.getMessage().getSize() / 100));
+    }
+
+    /**
+     * Send body bytes of the SEND request being sent straight from its file
+     * to the given channel, sparing the copy of the content into memory by
+     * {@link #getBuffersToSend(byte[], ByteBuffer[])}. Only applies once the header of the
+     * request has been sent and while no response or REPORT waits to be
+     * sent; at most {@link Stack#getIOBufferSize()} bytes go per call so those
+     * don't wait long.
+     * <p>
+     * The channel is written outside the lock on this transaction manager,
+     * like the connection does with the buffers of
+     * {@link #getBuffersToSend(byte[], ByteBuffer[])}.
+     * 
+     * @param channel the channel to send to.
+     * @return the number of body bytes sent, -1 when this doesn't apply and
+     *         {@link #getBuffersToSend(byte[], ByteBuffer[])} is to be used.
+     * @throws IOException if reading the file or writing the channel failed.
+     */
+    protected long transferDataToSend(WritableByteChannel channel)
+        throws IOException
+    {
+        Transaction t;
+        synchronized (this)
+        {
+            t = transactionsToSend.current();
+            if (t == null || transactionsToSend.hasPriority() ||
+                    !t.isTransferable())
+                return -1;
+        }
+        OutgoingMessage message = (OutgoingMessage) t.getMessage();
+        long sent = t.transferData(channel, sliceOf(t));
+        if (sent > 0)
+        {
+            synchronized (this)
+            {
+                outgoingDataValidator.clearState();
+                /*
+                 * once complete, the sent status is updated when the
+                 * end-line is sent
+                 */
+                if (!t.hasResponse() && !message.isComplete())
+                    message.getReportMechanism().countSentBodyBytes(
+                        message, (int) sent);
+            }
+        }
+        return sent;
     }
 
     /**
@@ -947,15 +1304,15 @@ public class TransactionManager
      *         existingTransactions Hashmap, or null otherwise
      * @see #existingTransactions
      */
-    protected Transaction getTransaction(String tid)
+    protected synchronized Transaction getTransaction(String tid)
     {
         return existingTransactions.get(tid);
     }
 
     /**
-     * Inserts transaction to send at the first interruptible spot in the queue.
-     * Or appends it when a transaction is being processed and interrupts that
-     * transaction.
+     * Queues the transaction to send ahead of all requests. When an
+     * interruptible transaction is being sent, it is interrupted so this one
+     * can go first.
      * 
      * It's responsible for appropriate queueing of REPORT and responses
      * 
@@ -974,27 +1331,12 @@ public class TransactionManager
             throw new IllegalUseException(" the addPriorityTransaction was" +
 	                " called with an invalid direction transaction, " +
 	                "direction: " + transaction.getDirection());
-        /*
-         * Make sure that this response doesn't put itself ahead of other
-         * priority transactions:
-         */
         synchronized(this)
         {
-	        for (int i = 0; i < transactionsToSend.size(); i++)
-	        {
-	            Transaction t = transactionsToSend.get(i);
-	            if (t.isInterruptible())
-	            {
-	                if (i == 0 && t.hasSentData()) {
-	                    addTransactionToSend(transaction, 1);
-		                t.interrupt();
-	                } else
-	                    addTransactionToSend(transaction, i);
-	                return;
-	            }
-	        }
-	        // No interruptible transactions to send, just add the one given.
-	        addTransactionToSend(transaction, UNIMPORTANT);
+            Transaction t = transactionsToSend.current();
+            if (t != null && t.isInterruptible() && t.hasSentData())
+                t.interrupt();
+            addTransactionToSend(transaction);
         }
     }
 
@@ -1002,9 +1344,9 @@ public class TransactionManager
     {
     	synchronized (this)
     	{
-	        for (Transaction t : transactionsToSend)
+	        for (Transaction t : transactionsToSend.get(message))
 	            if (t.getTransactionType() == TransactionType.SEND &&
-	                t.getMessage().equals(message) && t.isInterruptible())
+	                t.isInterruptible())
                     t.interrupt();
     	}
     }
@@ -1018,9 +1360,8 @@ public class TransactionManager
     	synchronized(this)
     	{
     		boolean first = true;
-    		for (Transaction t : transactionsToSend)
-	            if (t.getTransactionType() == TransactionType.SEND &&
-	                t.getMessage().equals(message))
+    		for (Transaction t : transactionsToSend.get(message))
+	            if (t.getTransactionType() == TransactionType.SEND)
 	            {
 	            	logger.debug(String.format("%s %s aborted.", this, t));
 	            	if (first)
@@ -1032,5 +1373,7 @@ public class TransactionManager
 	            		removeTransactionToSend(t);
 	            }
     	}
+    	/* an aborted transaction sends no more content, just its end-line */
+    	releaseContent(message);
     }
 }
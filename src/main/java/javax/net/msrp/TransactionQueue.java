@@ -0,0 +1,199 @@
+/* Copyright © João Antunes 2008
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+
+/**
+ * The queue of transactions waiting to be sent on a connection.
+ * <p>
+ * Transactions are kept in three FIFO lanes that are served in order of
+ * priority: responses, REPORTs and then requests (SEND chunks and NICKNAMEs).
+ * The transaction that is being sent stays at the head of the queue until it
+ * is removed, whatever gets queued in the meantime; it is up to the caller
+ * to interrupt it when something more important arrives.
+ * <p>
+ * Queued requests are also indexed by their message, so all transactions
+ * of a message can be found without walking the queue. Removal is constant
+ * time: a removed transaction is just marked, and skipped when it reaches
+ * the head of its lane.
+ * <p>
+ * Not thread safe, the {@link TransactionManager} guards it.
+ */
+class TransactionQueue
+{
+    private final ArrayDeque<Transaction> responses =
+        new ArrayDeque<Transaction>();
+
+    private final ArrayDeque<Transaction> reports =
+        new ArrayDeque<Transaction>();
+
+    private final ArrayDeque<Transaction> requests =
+        new ArrayDeque<Transaction>();
+
+    /**
+     * The queued requests of each message, in queue order.
+     */
+    private final IdentityHashMap<Message, ArrayDeque<Transaction>> byMessage =
+        new IdentityHashMap<Message, ArrayDeque<Transaction>>();
+
+    /**
+     * The transaction being sent, if any.
+     */
+    private Transaction current = null;
+
+    private volatile int size = 0;
+
+    /**
+     * Queue the given transaction in its lane.
+     * 
+     * @param transaction the transaction to queue.
+     */
+    void add(Transaction transaction)
+    {
+        if (transaction.queued)
+            throw new IllegalArgumentException(transaction + " already queued");
+        transaction.queued = true;
+        size++;
+        switch (transaction.getTransactionType())
+        {
+        case RESPONSE:
+            responses.add(transaction);
+            break;
+        case REPORT:
+            reports.add(transaction);
+            break;
+        default:
+            requests.add(transaction);
+            Message message = transaction.getMessage();
+            if (message != null)
+            {
+                ArrayDeque<Transaction> queued = byMessage.get(message);
+                if (queued == null)
+                {
+                    queued = new ArrayDeque<Transaction>(2);
+                    byMessage.put(message, queued);
+                }
+                queued.add(transaction);
+            }
+        }
+    }
+
+    /**
+     * Get the transaction to send data from: the one being sent, otherwise
+     * the first one of the most important non-empty lane, which then becomes
+     * the one being sent.
+     * 
+     * @return the transaction at the head of the queue, null when empty.
+     */
+    Transaction peek()
+    {
+        if (current == null)
+        {
+            current = head(responses);
+            if (current == null)
+                current = head(reports);
+            if (current == null)
+                current = head(requests);
+        }
+        return current;
+    }
+
+    private static Transaction head(ArrayDeque<Transaction> lane)
+    {
+        Transaction transaction;
+        while ((transaction = lane.peek()) != null && !transaction.queued)
+            lane.poll();				// drop removed transactions
+        return transaction;
+    }
+
+    /**
+     * @return the transaction being sent, null if none.
+     */
+    Transaction current()
+    {
+        return current;
+    }
+
+    /**
+     * Remove the given transaction from the queue.
+     * 
+     * @param transaction the transaction to remove.
+     * @return true if it was queued.
+     */
+    boolean remove(Transaction transaction)
+    {
+        if (!transaction.queued)
+            return false;
+        transaction.queued = false;
+        size--;
+        if (transaction == current)
+            current = null;
+        Message message = transaction.getMessage();
+        if (message != null)
+        {
+            ArrayDeque<Transaction> queued = byMessage.get(message);
+            if (queued != null && queued.removeFirstOccurrence(transaction) &&
+                    queued.isEmpty())
+                byMessage.remove(message);
+        }
+        return true;
+    }
+
+    /**
+     * @param message the message.
+     * @return the queued requests of the given message, in queue order.
+     */
+    Collection<Transaction> get(Message message)
+    {
+        ArrayDeque<Transaction> queued = byMessage.get(message);
+        if (queued == null)
+            return Collections.emptyList();
+        return new ArrayList<Transaction>(queued);
+    }
+
+    /**
+     * @return the messages that have requests queued.
+     */
+    Collection<Message> messages()
+    {
+        return new ArrayList<Message>(byMessage.keySet());
+    }
+
+    /**
+     * @return is a response or REPORT waiting to be sent?
+     */
+    boolean hasPriority()
+    {
+        return head(responses) != null || head(reports) != null;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    int size()
+    {
+        return size;
+    }
+}
@@ -129,6 +129,19 @@ public class TransactionResponse
         return lengthToTransfer;
     }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.Transaction#getDataBuffer(int)
+     */
+    @Override
+    ByteBuffer getDataBuffer(int max)
+    {
+        ByteBuffer view = content.slice();
+        if (view.remaining() > max)
+            view.limit(max);
+        content.position(content.position() + view.remaining());
+        return view;
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.Transaction#hasData()
      */
@@ -0,0 +1,44 @@
+/**
+ This file is part of MSRP Java Stack.
+
+    MSRP Java Stack is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MSRP Java Stack is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with MSRP Java Stack.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package javax.net.msrp.exceptions;
+
+/**
+ * A message wasn't delivered: a request carrying it got a negative response,
+ * or a failure REPORT came in for it.
+ */
+@SuppressWarnings("serial")
+public class DeliveryFailedException extends Exception {
+
+	private final int code;
+
+	/**
+	 * @param code the response or status code received.
+	 * @param message what went wrong.
+	 */
+	public DeliveryFailedException(int code, String message) {
+		super(message);
+		this.code = code;
+	}
+
+	/**
+	 * @return the response or status code received.
+	 */
+	public int getCode() {
+		return code;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright © João Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test the pool of buffers of the stack.
+ */
+public class TestBufferPool
+{
+    /**
+     * Requests are served from the smallest size class that fits and returned
+     * arrays are handed out again.
+     */
+    @Test
+    public void testSizeClasses()
+    {
+        BufferPool pool = new BufferPool(false);
+        assertEquals(BufferPool.MIN_SIZE, pool.take(1).length);
+        assertEquals(2048, pool.take(2048).length);
+        assertEquals(4096, pool.take(3024).length);
+        assertEquals(BufferPool.MAX_SIZE + 1,
+            pool.take(BufferPool.MAX_SIZE + 1).length);
+
+        byte[] buffer = pool.take(10240);
+        assertEquals(16384, buffer.length);
+        pool.give(buffer);
+        assertSame(buffer, pool.take(9000));
+        assertNotSame(buffer, pool.take(9000));
+    }
+
+    /**
+     * When detecting leaks, arrays that are out are counted and arrays that
+     * are returned twice are not pooled twice.
+     */
+    @Test
+    public void testLeakDetection()
+    {
+        BufferPool pool = new BufferPool(true);
+        byte[] first = pool.take(100);
+        byte[] second = pool.take(100);
+        assertEquals(2, pool.reportLeaks());
+        pool.give(first);
+        pool.give(first);
+        pool.give(new byte[128]);
+        assertEquals(1, pool.reportLeaks());
+        assertSame(first, pool.take(100));
+        assertNotSame(first, pool.take(100));
+        pool.give(second);
+        assertEquals(2, pool.reportLeaks());
+    }
+}
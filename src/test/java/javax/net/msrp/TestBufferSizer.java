@@ -0,0 +1,61 @@
+/*
+ * Copyright © João Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests the adaptation of I/O buffer sizes to the traffic.
+ */
+public class TestBufferSizer
+{
+    @Test
+    public void testGrowsWhenFull()
+    {
+        BufferSizer sizer = new BufferSizer(2048, 10000);
+        assertEquals(2048, sizer.size());
+        assertFalse(sizer.used(2000));
+        assertTrue(sizer.used(2048));
+        assertEquals(4096, sizer.size());
+        assertTrue(sizer.used(4096));
+        assertTrue(sizer.used(8192));
+        assertEquals(10000, sizer.size());
+        assertFalse(sizer.used(10000));
+        assertEquals(10000, sizer.size());
+    }
+
+    @Test
+    public void testShrinksWhenQuiet()
+    {
+        BufferSizer sizer = new BufferSizer(2048, 8192);
+        sizer.used(2048);
+        sizer.used(4096);
+        assertEquals(8192, sizer.size());
+        for (int i = 1; i < BufferSizer.SHRINK_AFTER; i++)
+            assertFalse(sizer.used(100));
+        sizer.used(4000);				/* not small: starts over */
+        for (int i = 1; i < BufferSizer.SHRINK_AFTER; i++)
+            assertFalse(sizer.used(100));
+        assertTrue(sizer.used(100));
+        assertEquals(4096, sizer.size());
+        for (int i = 0; i < 10 * BufferSizer.SHRINK_AFTER; i++)
+            sizer.used(0);
+        assertEquals(2048, sizer.size());
+    }
+}
@@ -6,6 +6,11 @@ package javax.net.msrp;
 import static org.junit.Assert.*;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
 
 import javax.net.msrp.Connection;
 import javax.net.msrp.exceptions.ParseException;
@@ -61,6 +66,15 @@ public class TestConnectionPreparser {
 			"\r\n" +
 			"-------22AR0e31$\r\n";
 
+	String ReceiveBodiless =
+			"MSRP a+b.c1Zz REPORT\r\n" +
+			"To-Path: msrp://192.168.52.46:12596/jm10r107;tcp\r\n" +
+			"From-Path: msrp://192.168.51.191:1356/riTC090J;tcp\r\n" +
+			"Message-ID: 1335451480454000c296b8d90\r\n" +
+			"Byte-Range: 1-2/2\r\n" +
+			"Status: 000 200 OK\r\n" +
+			"-------a+b.c1Zz$\r\n";
+
 	@Before
 	public void setUp() throws Exception {
 		in = new Connection(InetAddress.getLocalHost());
@@ -96,4 +110,111 @@ public class TestConnectionPreparser {
 			fail(e.getMessage());
 		}
 	}
+
+	/**
+	 * Feed the transactions one byte at a time: start-, header- and end-lines
+	 * split at every position should all be recognised.
+	 */
+	@Test
+	public void testPreParserSplitLines() {
+		byte[] inbuffer = (Receive2PerPacket + ReceiveBodiless)
+				.getBytes(TextUtils.utf8);
+		final List<String> ended = new ArrayList<String>();
+		in.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				if (arg instanceof Transaction)
+					ended.add(((Transaction) arg).getTID());
+			}
+		});
+		try {
+			for (int i = 0; i < inbuffer.length; i++)
+				in.preParser.preParse(new byte[] { inbuffer[i] }, 1);
+		} catch (ParseException cpe) {
+			fail("Error parsing: " + cpe.getMessage());
+		} catch (Exception e) {
+			fail(e.getMessage());
+		}
+		assertEquals(Arrays.asList("G002A0C5", "22AR0e31", "a+b.c1Zz"), ended);
+	}
+
+	/**
+	 * A response to a transaction that is not (or no longer) known should be
+	 * skipped, without breaking the parsing of what follows.
+	 */
+	@Test
+	public void testPreParserUnknownResponse() {
+		byte[] inbuffer = (
+				"MSRP 9Xq4Za7k 200 OK\r\n" +
+				"To-Path: msrp://192.168.51.191:1356/riTC090J;tcp\r\n" +
+				"From-Path: msrp://192.168.52.46:12596/jm10r107;tcp\r\n" +
+				"-------9Xq4Za7k$\r\n" + ReceiveBodiless)
+				.getBytes(TextUtils.utf8);
+		final List<String> ended = new ArrayList<String>();
+		in.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				if (arg instanceof Transaction)
+					ended.add(((Transaction) arg).getTID());
+			}
+		});
+		try {
+			for (int i = 0; i < inbuffer.length; i++)
+				in.preParser.preParse(new byte[] { inbuffer[i] }, 1);
+		} catch (ParseException cpe) {
+			fail("Error parsing: " + cpe.getMessage());
+		} catch (Exception e) {
+			fail(e.getMessage());
+		}
+		assertEquals(Arrays.asList("a+b.c1Zz"), ended);
+	}
+
+	/**
+	 * Content-stuff with near end-lines in it, fed split at every position:
+	 * the content should be handed over intact, and only once.
+	 */
+	@Test
+	public void testPreParserContentSplit() throws Exception {
+		String body = "a\r\n-------G002A0C5\r\n" +
+				"\r\n------G002A0C5$\r\n" +
+				"\r\n-------G002A0C5+x" +
+				"\r\n-------G002A0C5#\r" +
+				"\r\r\n--------G002A0C5$-\r";
+		String packet =
+				"MSRP G002A0C5 SEND\r\n" +
+				"To-Path: msrp://192.168.52.46:12596/jm10r107;tcp\r\n" +
+				"From-Path: msrp://192.168.51.191:1356/riTC090J;tcp\r\n" +
+				"Message-ID: 1335451480454000c296b8d90\r\n" +
+				"Byte-Range: 1-*/*\r\n" +
+				"Content-Type: text/plain\r\n" +
+				"\r\n" + body +
+				"\r\n-------G002A0C5$\r\n" + ReceiveBodiless;
+		byte[] inbuffer = packet.getBytes(TextUtils.utf8);
+		for (int split = 1; split < inbuffer.length; split++) {
+			final StringBuilder content = new StringBuilder();
+			final List<String> ended = new ArrayList<String>();
+			Connection connection = new Connection(InetAddress.getLocalHost()) {
+				@Override
+				void parseContent(byte[] data, int offset, int length) {
+					content.append(new String(data, offset, length,
+							TextUtils.utf8));
+				}
+			};
+			connection.addObserver(new Observer() {
+				public void update(Observable o, Object arg) {
+					if (arg instanceof Transaction)
+						ended.add(((Transaction) arg).getTID());
+				}
+			});
+			try {
+				connection.preParser.preParse(
+						Arrays.copyOfRange(inbuffer, 0, split), split);
+				connection.preParser.preParse(
+						Arrays.copyOfRange(inbuffer, split, inbuffer.length),
+						inbuffer.length - split);
+			} finally {
+				connection.close();
+			}
+			assertEquals("split at " + split, body, content.toString());
+			assertEquals(Arrays.asList("G002A0C5", "a+b.c1Zz"), ended);
+		}
+	}
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright © João Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.ArrayList;
+
+import javax.net.msrp.testutils.MockSessionListener;
+
+import org.junit.Test;
+
+/**
+ * Test sessions towards the same next hop multiplexing a single connection.
+ */
+public class TestConnectionSharing extends TestFrame
+{
+    /**
+     * Connect a second pair of sessions next to the standard one: the second
+     * active session, created towards the same next hop, should reuse the
+     * connection of the first with a URI of its own that doesn't change, and
+     * be able to send over it. The connection should survive the teardown of
+     * one of its sessions and be closed with the last one.
+     */
+    @Test
+    public void testSharedConnection()
+    {
+        Session secondSending = null;
+        Session secondReceiving = null;
+        try
+        {
+            byte[] data = new byte[1024];
+            fillText(data);
+            assertArrayEquals(data, memory2Memory(data, false));
+            Connection connection = sendingSession.getConnection();
+
+            MockSessionListener secondSendingListener =
+                new MockSessionListener("Tx2");
+            MockSessionListener secondReceivingListener =
+                new MockSessionListener("Rx2");
+            secondSending = Session.create(false, false, address,
+                receivingSession.getURI());
+            URI secondURI = secondSending.getURI();
+            assertSame(connection, secondSending.getConnection());
+            assertEquals(connection.getLocalURI().getAuthority(),
+                secondURI.getAuthority());
+            secondReceiving =
+                new Session(false, false, secondSending.getURI(), address);
+            secondSending.setListener(secondSendingListener);
+            secondReceiving.setListener(secondReceivingListener);
+
+            byte[] moreData = new byte[2 * 1024];
+            fillText(moreData);
+            OutgoingMessage message =
+                new OutgoingMessage("plain/text", moreData);
+            message.setSuccessReport(true);
+            secondSending.sendMessage(message);
+
+            ArrayList<URI> toPath = new ArrayList<URI>();
+            toPath.add(secondReceiving.getURI());
+            secondSending.setToPath(toPath);
+            assertSame(connection, secondSending.getConnection());
+            assertEquals(secondURI, secondSending.getURI());
+            assertTrue(connection.getSessionURIs().contains(secondURI));
+
+            secondReceivingListener.setDataContainer(
+                new MemoryDataContainer(moreData.length));
+            secondReceivingListener.setAcceptHookResult(true);
+            secondReceivingListener.triggerReception();
+            synchronized (secondReceivingListener.messageComplete)
+            {
+                if (secondReceivingListener.getReceiveMessage() == null)
+                    secondReceivingListener.messageComplete.wait(2000L);
+            }
+            assertArrayEquals(moreData, secondReceivingListener
+                .getReceiveMessage().getDataContainer().get(0, 0).array());
+            synchronized (secondSendingListener.successReportCounter)
+            {
+                if (secondSendingListener.getReceivedReportTransaction() == null)
+                    secondSendingListener.successReportCounter.wait(2000L);
+            }
+            assertNotNull("no success report over the shared connection",
+                secondSendingListener.getReceivedReportTransaction());
+
+            secondSending.tearDown();
+            assertTrue(connection.isUsable());
+            assertSame(connection, Stack.getInstance()
+                .getConnectionBySessionURI(sendingSession.getURI()));
+            sendingSession.tearDown();
+            assertFalse(connection.isUsable());
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        finally
+        {
+            if (secondSending != null)
+                secondSending.tearDown();
+            if (secondReceiving != null)
+                secondReceiving.tearDown();
+        }
+    }
+
+    /**
+     * A session created towards a next hop must not be routed elsewhere.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testToPathOfOtherNextHop() throws Exception
+    {
+        Session session = Session.create(false, false, address,
+            URI.create("msrp://192.0.2.1:2855/abcd;tcp"));
+        try
+        {
+            ArrayList<URI> toPath = new ArrayList<URI>();
+            toPath.add(receivingSession.getURI());
+            session.setToPath(toPath);
+        }
+        finally
+        {
+            session.tearDown();
+        }
+    }
+}
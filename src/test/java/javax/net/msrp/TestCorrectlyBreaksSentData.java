@@ -18,6 +18,7 @@ package javax.net.msrp;
 
 import static org.junit.Assert.*;
 
+import java.io.FileOutputStream;
 import java.util.*;
 
 import javax.net.msrp.Transaction;
@@ -55,7 +56,22 @@ public class TestCorrectlyBreaksSentData extends TestFrame
     	breakTransactionTest(2499);
     }
 
-    void breakTransactionTest(int dataSize) 
+    /**
+     * The end-line well inside the body of a message sent from a file, where
+     * the body is sent straight from the file, breaks the transaction too.
+     */
+    @Test
+    public void testBreakingOfFileTransaction()
+    {
+    	breakTransactionTest(300 * 1024, 200 * 1024, true);
+    }
+
+    void breakTransactionTest(int dataSize)
+    {
+    	breakTransactionTest(dataSize, 300, false);
+    }
+
+    void breakTransactionTest(int dataSize, int endLineAt, boolean fromFile)
     {
     	try
         {
@@ -83,17 +99,32 @@ public class TestCorrectlyBreaksSentData extends TestFrame
             byte[] phonyEndLine = ("-------" + tidString + "$").getBytes(TextUtils.utf8);
             int i, j;
 
-            for (i = 0, j = 300; i < phonyEndLine.length; i++, j++)
+            for (i = 0, j = endLineAt; i < phonyEndLine.length; i++, j++)
                 data[j] = phonyEndLine[i];
 
             /*
              * all set, let's assign the message to the sending session and
              * connect them
              */
-            sendingSession.sendMessage(
-            		new OutgoingMessage("plain/text", data));
+            if (fromFile)
+            {
+                FileOutputStream stream = new FileOutputStream(tempFile);
+                stream.write(data);
+                stream.close();
+                sendingSession.sendMessage(
+                		new OutgoingMessage("plain/text", tempFile));
+            }
+            else
+                sendingSession.sendMessage(
+                		new OutgoingMessage("plain/text", data));
 
             triggerSendReceive(data);
+            if (fromFile)
+            {
+                wait4ComleteMessage();
+                assertArrayEquals(data, receivingSessionListener
+                    .getReceiveMessage().getDataContainer().get(0, 0).array());
+            }
             /*
              * after the message is received, let's check the list of
              * existingTransactions on the sending session to make sure that the
@@ -293,6 +293,27 @@ public class TestCounter
             expectedCluster, testCounter.counter.get(0));
     }
 
+    /**
+     * Chunks arriving in reverse order, some of them twice, should end up in
+     * a single cluster.
+     */
+    @Test
+    public void testOutOfOrderChunks()
+    {
+        Counter counter = new Counter(null);
+        for (long i = 999; i >= 0; i--)
+        {
+            counter.register(i * 100, 100);
+            if (i % 10 == 0)
+                counter.register(i * 100 + 50, 100);
+            assertEquals("Number of clusters should be one", 1,
+                counter.counter.size());
+        }
+        assertEquals(100000, counter.getCount());
+        assertEquals(100000, counter.getNrConsecutiveBytes());
+        assertFalse(counter.register(500, 1000));
+    }
+
     /**
      * Test the typical reception of a message. This test is embedded in a
      * way in the other tests and is non essential as the other two before
@@ -305,4 +326,26 @@ public class TestCounter
 //    {
 //
 //    }
+
+    /**
+     * A message keeps one counter, shared by the report mechanisms, until it
+     * is removed from them.
+     */
+    @Test
+    public void testCounterPerMessage()
+    {
+        byte[] content = new byte[] { 'a', 'b' };
+        Message message = new OutgoingMessage("text/plain", content);
+        Message other = new OutgoingMessage("text/plain", content);
+        ReportMechanism mechanism = DefaultReportMechanism.getInstance();
+
+        Counter counter = mechanism.getCounter(message);
+        assertSame(counter, message.getCounter());
+        assertNotSame(counter, other.getCounter());
+
+        counter.register(0, 2);
+        mechanism.removeMessage(message);
+        assertNotSame(counter, message.getCounter());
+        assertEquals(0, message.getCounter().getCount());
+    }
 }
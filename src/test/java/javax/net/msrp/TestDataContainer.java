@@ -0,0 +1,486 @@
+/*
+ * Copyright © João Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.msrp.exceptions.NotEnoughStorageException;
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.Test;
+
+/**
+ * Tests storing data in the data containers.
+ */
+public class TestDataContainer
+{
+    private static ByteBuffer slice(String data, int from, int to)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(TextUtils.usascii));
+        buffer.limit(to).position(from);
+        return buffer;
+    }
+
+    private static void putSlices(DataContainer container) throws Exception
+    {
+        String data = "0123456789";
+        ByteBuffer second = slice(data, 4, 10);
+        container.put(4, second);
+        assertFalse(second.hasRemaining());
+        container.put(0, slice(data, 0, 4));
+        assertEquals(data, new String(container.get(0, 10).array(),
+            TextUtils.usascii));
+    }
+
+    @Test
+    public void testPutBufferInMemory() throws Exception
+    {
+        putSlices(new MemoryDataContainer(10));
+    }
+
+    @Test
+    public void testPutBufferInFile() throws Exception
+    {
+        File file = File.createTempFile("msrp", ".tmp");
+        file.deleteOnExit();
+        DataContainer container = new FileDataContainer(file);
+        try
+        {
+            putSlices(container);
+        }
+        finally
+        {
+            container.dispose();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFileContains() throws Exception
+    {
+        File file = File.createTempFile("msrp", ".tmp");
+        file.deleteOnExit();
+        byte[] data = new byte[20 * 1024];
+        byte[] pattern = "-------abcd".getBytes(TextUtils.usascii);
+        System.arraycopy(pattern, 0, data, 8 * 1024 - 4, pattern.length);
+        Files.write(file.toPath(), data);
+        FileDataContainer container = new FileDataContainer(file);
+        try
+        {						// found across the reads, not outside range
+            assertTrue(container.contains(pattern, 0, data.length));
+            assertTrue(container.contains(pattern, 8 * 1024 - 4,
+                8 * 1024 - 4 + pattern.length));
+            assertFalse(container.contains(pattern, 8 * 1024 - 3, data.length));
+            assertFalse(container.contains(pattern, 0, 8 * 1024));
+            assertEquals(0, container.currentReadOffset());
+        }
+        finally
+        {
+            container.dispose();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testPutBufferInMappedFile() throws Exception
+    {
+        File file = File.createTempFile("msrp", ".tmp");
+        file.deleteOnExit();
+        DataContainer container = new MappedFileDataContainer(file, 10, 4);
+        try
+        {
+            assertEquals(10, container.size());
+            putSlices(container);
+        }
+        finally
+        {
+            container.dispose();
+            file.delete();
+        }
+    }
+
+    /**
+     * Chunks received interleaved, over more windows than are kept mapped.
+     */
+    @Test
+    public void testInterleavedPutsInMappedFile() throws Exception
+    {
+        byte[] data = new byte[1000];
+        new Random(4975).nextBytes(data);
+        File file = File.createTempFile("msrp", ".tmp");
+        file.deleteOnExit();
+        DataContainer container = new MappedFileDataContainer(file,
+                                        data.length, 64);
+        try
+        {
+            for (int i = 0; i < 500; i += 50)
+            {
+                container.put(i, ByteBuffer.wrap(data, i, 50));
+                container.put(500 + i, ByteBuffer.wrap(data, 500 + i, 50));
+            }
+            assertArrayEquals(data, container.get(0, data.length).array());
+        }
+        finally
+        {
+            container.dispose();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testUnknownSizeMappedFile() throws Exception
+    {
+        File file = File.createTempFile("msrp", ".tmp");
+        file.deleteOnExit();
+        DataContainer container =
+            new MappedFileDataContainer(file, Message.UNKNOWN, 4);
+        try
+        {
+            assertEquals(0, container.size());
+            putSlices(container);
+        }
+        finally
+        {
+            container.dispose();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testPutBufferInSegments() throws Exception
+    {
+        putSlices(new SegmentedMemoryDataContainer());
+    }
+
+    /**
+     * Data over several segments, put and read back in parts that straddle
+     * them.
+     */
+    @Test
+    public void testSegments() throws Exception
+    {
+        int segment = SegmentedMemoryDataContainer.SEGMENT_SIZE;
+        byte[] data = new byte[2 * segment + 100];
+        new Random(4975).nextBytes(data);
+        DataContainer container = new SegmentedMemoryDataContainer();
+        container.put(segment - 10, ByteBuffer.wrap(data, segment - 10,
+                                        data.length - segment + 10));
+        container.put(0, ByteBuffer.wrap(data, 0, segment - 10));
+        assertEquals(data.length, container.size());
+        assertArrayEquals(data, container.get(0, 0).array());
+
+        byte[] read = new byte[data.length];
+        int offset = 0;
+        while (container.hasDataToRead())
+            offset += container.get(read, offset, 1000);
+        assertArrayEquals(data, read);
+
+        container.rewindRead(data.length - segment + 10);
+        ByteBuffer view = container.getView(100);
+        assertTrue(view.isReadOnly());
+        assertEquals(10, view.remaining());
+        assertEquals(segment, container.currentReadOffset());
+        container.dispose();
+        assertEquals(0, container.size());
+    }
+
+    /**
+     * Disposed segments are reused zeroed, except those that views were
+     * handed out on.
+     */
+    @Test
+    public void testSegmentReuse() throws Exception
+    {
+        byte[] data = new byte[100];
+        Arrays.fill(data, (byte) 'x');
+        DataContainer container = new SegmentedMemoryDataContainer(data);
+        container.dispose();
+
+        container = new SegmentedMemoryDataContainer();
+        container.put(99, (byte) 'y');
+        byte[] expected = new byte[100];
+        expected[99] = 'y';
+        assertArrayEquals(expected, container.get(0, 0).array());
+
+        ByteBuffer view = container.getView(100);
+        container.dispose();
+        new SegmentedMemoryDataContainer(data).dispose();
+        byte[] viewed = new byte[view.remaining()];
+        view.get(viewed);
+        assertArrayEquals(expected, viewed);
+    }
+
+    @Test
+    public void testSpillToFile() throws Exception
+    {
+        byte[] data = new byte[300];
+        new Random(4975).nextBytes(data);
+        SpillingDataContainer container = new SpillingDataContainer(200, null);
+        try
+        {
+            container.put(0, ByteBuffer.wrap(data, 0, 200));
+            assertFalse(container.isSpilled());
+            byte[] read = new byte[50];
+            assertEquals(50, container.get(read, 0));
+
+            container.put(200, ByteBuffer.wrap(data, 200, 100));
+            assertTrue(container.isSpilled());
+            assertTrue(container.getFile().exists());
+            assertEquals(300, container.size());
+            assertEquals(50, container.currentReadOffset());
+            assertArrayEquals(data, container.get(0, 0).array());
+        }
+        finally
+        {
+            container.dispose();
+        }
+        assertFalse(container.getFile().exists());
+    }
+
+    /**
+     * The segments of the data spilled to a file go back to the pool.
+     */
+    @Test
+    public void testSegmentsReusedAfterSpill() throws Exception
+    {
+        new SegmentedMemoryDataContainer(new byte[1]).dispose();
+        int spare = SegmentedMemoryDataContainer.spareSegments();
+        byte[] data = new byte[300];
+        new Random(4975).nextBytes(data);
+        SpillingDataContainer container = new SpillingDataContainer(200, null);
+        try
+        {
+            container.put(0, ByteBuffer.wrap(data, 0, 200));
+            assertEquals(spare - 1, SegmentedMemoryDataContainer.spareSegments());
+            container.put(200, ByteBuffer.wrap(data, 200, 100));
+            assertTrue(container.isSpilled());
+            assertEquals(spare, SegmentedMemoryDataContainer.spareSegments());
+            assertArrayEquals(data, container.get(0, 0).array());
+        }
+        finally
+        {
+            container.dispose();
+        }
+    }
+
+    @Test
+    public void testMoveSpilling() throws Exception
+    {
+        File target = File.createTempFile("msrp", ".tmp");
+        target.deleteOnExit();
+        SpillingDataContainer container = new SpillingDataContainer(4, null);
+        try
+        {
+            putSlices(container);
+            File spilled = container.getFile();
+            container.moveTo(target);
+            assertFalse(spilled.exists());
+            assertEquals(target, container.getFile());
+            container.dispose();
+            assertEquals("0123456789", new String(
+                Files.readAllBytes(target.toPath()), TextUtils.usascii));
+
+            container = new SpillingDataContainer(100, null);
+            putSlices(container);
+            assertFalse(container.isSpilled());
+            container.moveTo(target);
+            container.dispose();
+            assertEquals("0123456789", new String(
+                Files.readAllBytes(target.toPath()), TextUtils.usascii));
+        }
+        finally
+        {
+            target.delete();
+        }
+    }
+
+    @Test
+    public void testStreaming() throws Exception
+    {
+        final StreamingDataContainer stream = new StreamingDataContainer(4);
+        final int[] paused = new int[1];
+        Runnable pause = new Runnable() {
+            @Override
+            public void run()
+            {
+                paused[0]++;
+            }
+        };
+        Runnable resume = new Runnable() {
+            @Override
+            public void run()
+            {
+                paused[0]--;
+            }
+        };
+        stream.put(0, slice("0123456789", 0, 2));
+        stream.holdBack(pause, resume);
+        assertEquals("below capacity", 0, paused[0]);
+        stream.put(2, slice("0123456789", 2, 10));
+        stream.holdBack(pause, resume);
+        stream.holdBack(pause, resume);
+        assertEquals("put shouldn't wait, but hold back once", 1, paused[0]);
+        assertEquals(10, stream.size());
+        stream.end();
+
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        dst.limit(7);
+        assertEquals(7, stream.read(dst));
+        assertEquals("3 bytes held", 1, paused[0]);
+        dst.limit(16);
+        while (stream.read(dst) >= 0)
+            ;
+        assertEquals("resumed once consumed", 0, paused[0]);
+        assertEquals("0123456789",
+            new String(dst.array(), 0, dst.position(), TextUtils.usascii));
+        assertEquals(10, stream.currentReadOffset());
+        assertNull(stream.take());
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testStreamingOutOfOrder() throws Exception
+    {
+        StreamingDataContainer stream = new StreamingDataContainer();
+        stream.put(0, slice("0123456789", 0, 4));
+        stream.put(6, slice("0123456789", 6, 10));
+    }
+
+    @Test(expected = java.nio.channels.AsynchronousCloseException.class)
+    public void testStreamingDisposed() throws Exception
+    {
+        StreamingDataContainer stream = new StreamingDataContainer();
+        stream.put(0, slice("0123456789", 0, 4));
+        assertEquals(4, stream.take().remaining());
+        stream.dispose();
+        stream.take();
+    }
+
+    @Test
+    public void testChannelSource() throws Exception
+    {
+        byte[] data = "0123456789".getBytes(TextUtils.usascii);
+        ChannelDataContainer source =
+            new ChannelDataContainer(new ByteArrayInputStream(data));
+        byte[] dst = new byte[6];
+
+        awaitReadable(source);
+        assertEquals(6, source.get(dst, 0));
+        source.rewindRead(2);
+        assertEquals(4, source.currentReadOffset());
+        assertEquals(6, source.get(dst, 0));
+        assertEquals("456789", new String(dst, TextUtils.usascii));
+        awaitReadable(source);
+        assertFalse(source.hasDataToRead());
+        assertTrue(source.isEnded());
+        assertTrue(source.isExhausted());
+        assertEquals(10, source.size());
+    }
+
+    @Test
+    public void testChannelSourceWaiting() throws Exception
+    {
+        Pipe pipe = Pipe.open();
+        ChannelDataContainer source = new ChannelDataContainer(pipe.source());
+        byte[] dst = new byte[6];
+
+        assertFalse("shouldn't wait for the source", source.hasDataToRead());
+        assertEquals(0, source.get(dst, 0));
+        pipe.sink().write(slice("0123456789", 0, 4));
+        awaitReadable(source);
+        assertEquals(4, source.get(dst, 0));
+        assertFalse(source.isExhausted());
+        pipe.sink().close();
+        awaitReadable(source);
+        assertTrue(source.isExhausted());
+        source.dispose();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChannelSourceNonBlocking() throws Exception
+    {
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        new ChannelDataContainer(pipe.source());
+    }
+
+    /**
+     * Wait for the source to have data or end.
+     */
+    private static void awaitReadable(ChannelDataContainer source)
+        throws InterruptedException
+    {
+        final CountDownLatch readable = new CountDownLatch(1);
+        if (source.whenReadable(new Runnable() {
+                @Override
+                public void run()
+                {
+                    readable.countDown();
+                }
+            }))
+            assertTrue(readable.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCallerBuffers() throws Exception
+    {
+        final int[] released = new int[1];
+        ByteBuffer first = slice("0123456789", 2, 5);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer last = ByteBuffer.allocateDirect(4);
+        last.put(slice("0123456789", 6, 10)).flip();
+        DataContainer container = new OutgoingMessage("text/plain",
+            new Runnable() {
+                @Override
+                public void run()
+                {
+                    released[0]++;
+                }
+            }, first, empty, last).getDataContainer();
+
+        assertEquals(7, container.size());
+        assertEquals("2346789", new String(container.get(0, 0).array(),
+            TextUtils.usascii));
+        ByteBuffer view = container.getView(4);
+        assertTrue(view.isReadOnly());
+        assertEquals(3, view.remaining());
+        byte[] dst = new byte[4];
+        assertEquals(4, container.get(dst, 0));
+        assertEquals("6789", new String(dst, TextUtils.usascii));
+        assertEquals(2, first.position());
+        assertFalse(container.hasDataToRead());
+
+        container.dispose();
+        container.dispose();
+        assertEquals(1, released[0]);
+    }
+
+    @Test(expected = NotEnoughStorageException.class)
+    public void testPutBufferOverflow() throws Exception
+    {
+        new MemoryDataContainer(8).put(4, slice("0123456789", 0, 6));
+    }
+}
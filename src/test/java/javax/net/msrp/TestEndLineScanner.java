@@ -0,0 +1,152 @@
+/*
+ * Copyright © João Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.Test;
+
+/**
+ * Tests the scanning of outgoing content for the end-line.
+ */
+public class TestEndLineScanner
+{
+    private static final String TID = "a1B2c3D4";
+
+    private static ByteBuffer wrap(String data)
+    {
+        return ByteBuffer.wrap(data.getBytes(TextUtils.usascii));
+    }
+
+    @Test
+    public void testFindsEndLine()
+    {
+        EndLineScanner scanner = new EndLineScanner(TID);
+        assertEquals(-1, scanner.scan(wrap("no end-line ------- here")));
+        scanner.clear();
+        assertEquals(5, scanner.scan(wrap("some -------" + TID + "$ tail")));
+        scanner.clear();
+        assertEquals(0, scanner.scan(wrap("-------" + TID + "+")));
+        scanner.clear();
+        assertEquals(3, scanner.scan(wrap("abc-------" + TID + "#")));
+    }
+
+    @Test
+    public void testRespectsPosition()
+    {
+        EndLineScanner scanner = new EndLineScanner(TID);
+        ByteBuffer data = wrap("xxxxxxxxxx-------" + TID + "$");
+        data.position(4);
+        assertEquals(6, scanner.scan(data));
+        assertEquals(4, data.position());
+    }
+
+    @Test
+    public void testNeedsFlag()
+    {
+        EndLineScanner scanner = new EndLineScanner(TID);
+        assertEquals(-1, scanner.scan(wrap("-------" + TID + "x")));
+        scanner.clear();
+        assertEquals(-1, scanner.scan(wrap("------" + TID + "$")));
+        scanner.clear();
+        assertEquals(-1, scanner.scan(wrap("-------" + TID)));
+    }
+
+    @Test
+    public void testMoreHyphens()
+    {
+        EndLineScanner scanner = new EndLineScanner(TID);
+        assertEquals(2, scanner.scan(wrap("---------" + TID + "$")));
+        scanner.clear();
+        assertEquals(13, scanner.scan(wrap("--------------------" + TID + "$")));
+    }
+
+    @Test
+    public void testSplitEndLine()
+    {
+        String endLine = "-------" + TID + "$";
+        for (int split = 1; split < endLine.length(); split++)
+        {
+            EndLineScanner scanner = new EndLineScanner(TID);
+            assertEquals(-1, scanner.scan(wrap("0123456789" +
+                endLine.substring(0, split))));
+            assertEquals("split at " + split, 0,
+                scanner.scan(wrap(endLine.substring(split) + "more")));
+        }
+    }
+
+    @Test
+    public void testClearForgetsTail()
+    {
+        EndLineScanner scanner = new EndLineScanner(TID);
+        assertEquals(-1, scanner.scan(wrap("data-------")));
+        scanner.clear();
+        assertEquals(-1, scanner.scan(wrap(TID + "$")));
+    }
+
+    @Test
+    public void testBinaryData()
+    {
+        Random random = new Random(4975);
+        byte[] data = new byte[1024 * 1024];
+        random.nextBytes(data);
+        EndLineScanner scanner = new EndLineScanner(TID);
+        for (int i = 0; i < data.length; i += 4096)
+            assertEquals(-1, scanner.scan(ByteBuffer.wrap(data, i, 4096)));
+
+        byte[] endLine = ("-------" + TID + "#").getBytes(TextUtils.usascii);
+        System.arraycopy(endLine, 0, data, 4090, endLine.length);
+        scanner.clear();
+        assertEquals(-1, scanner.scan(ByteBuffer.wrap(data, 0, 4096)));
+        assertEquals(0, scanner.scan(ByteBuffer.wrap(data, 4096, 4096)));
+    }
+
+    /**
+     * Not a real test: gives the throughput of the scanner over random data
+     * and over data full of hyphens.
+     */
+    @Test
+    public void profileScanner()
+    {
+        byte[] random = new byte[16 * 1024 * 1024];
+        new Random(4975).nextBytes(random);
+        byte[] hyphens = new byte[random.length];
+        java.util.Arrays.fill(hyphens, (byte) '-');
+        profile("random", random);
+        profile("hyphens", hyphens);
+    }
+
+    private static void profile(String name, byte[] data)
+    {
+        EndLineScanner scanner = new EndLineScanner(TID);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long start = System.nanoTime();
+        for (int i = 0; i < data.length; i += 65536)
+        {
+            buffer.limit(i + 65536).position(i);
+            assertEquals(-1, scanner.scan(buffer));
+        }
+        long nanos = Math.max(System.nanoTime() - start, 1);
+        System.out.println("Scanned " + name + " data at " +
+            (data.length * 1000L / nanos) + " MB/s");
+    }
+}
@@ -229,6 +229,41 @@ public abstract class TestFrame {
         System.gc();
     }
 
+    /**
+     * Send the content of one container, receive it in the other.
+     * 
+     * @return the container of the message received.
+     */
+    public DataContainer container2Container(DataContainer out,
+    		DataContainer in, boolean wantSuccessReport)
+    {
+        String testName =
+        		Thread.currentThread().getStackTrace()[2].getMethodName();
+        try
+        {
+            outMessage = new OutgoingMessage("plain/text", out);
+            outMessage.setSuccessReport(wantSuccessReport);
+            sendingSession.sendMessage(outMessage);
+
+            long startTime = System.currentTimeMillis();
+            triggerSendReceive(in);
+            wait4Report(wantSuccessReport);
+            wait4ComleteMessage();
+
+            System.out.println(testName + "() took: " +
+                    	(System.currentTimeMillis() - startTime) + " ms");
+
+            return receivingSessionListener.getReceiveMessage()
+            			.getDataContainer();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        return null;
+    }
+
     public byte[] memory2Memory(byte[] data, boolean wantSuccessReport)
     {
         return memory2Memory(data, wantSuccessReport, 0);
@@ -332,9 +367,24 @@ public abstract class TestFrame {
     }
 
 	public void file2File(boolean wantSuccessReport)
+	{
+		file2File(Thread.currentThread().getStackTrace()[2].getMethodName(),
+				wantSuccessReport, false);
+	}
+
+	/**
+	 * Like {@link #file2File(boolean)}, receiving into a
+	 * {@link MappedFileDataContainer}.
+	 */
+	public void file2MappedFile(boolean wantSuccessReport)
+	{
+		file2File(Thread.currentThread().getStackTrace()[2].getMethodName(),
+				wantSuccessReport, true);
+	}
+
+	private void file2File(String testName, boolean wantSuccessReport,
+			boolean mapped)
     {
-        String testName =
-        		Thread.currentThread().getStackTrace()[2].getMethodName();
     	Long startTime;
         try
         {
@@ -355,7 +405,10 @@ public abstract class TestFrame {
                 receivingTempFile = File.createTempFile(
                 		Long.toString(System .currentTimeMillis()), null, null);
 
-            FileDataContainer fdc = new FileDataContainer(receivingTempFile);
+            FileDataContainer fdc = mapped ?
+            		new MappedFileDataContainer(receivingTempFile,
+            							tempFile.length()) :
+            		new FileDataContainer(receivingTempFile);
 
             startTime = System.currentTimeMillis();
             triggerSendReceive(fdc);
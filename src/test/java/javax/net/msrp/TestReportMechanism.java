@@ -206,6 +206,40 @@ public class TestReportMechanism extends TestFrame
         }
     }
 
+    /**
+     * Account received body coarsely: the message should still be received
+     * completely and the success report be called one time
+     */
+    @Test
+    public void testCoarseReceiveAccounting()
+    {
+        Stack.setReceiveAccountingThreshold(256 * 1024);
+        try
+        {
+            byte[] data = new byte[5 * 1024 * 1024];
+            fillTempFile(data, true);
+
+            assertArrayEquals(data, file2Memory(true));
+            delay(200);
+            assertEquals("Error the success report was called: "
+                + sendingSessionListener.successReportCounter
+                + " times and not 1",
+                1, sendingSessionListener.successReportCounter.size());
+            assertEquals(receivingSessionListener.getReceiveMessage()
+                .getMessageID(), sendingSessionListener
+                .getReceivedReportTransaction().getMessageID());
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        finally
+        {
+            Stack.setReceiveAccountingThreshold(0);
+        }
+    }
+
     /**
      * This method tests sending a small (499 KBytes) message and at the end
      * makes sure the success report was called one time
@@ -18,7 +18,22 @@ package javax.net.msrp;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.msrp.exceptions.DeliveryFailedException;
+import javax.net.msrp.exceptions.IllegalUseException;
+import javax.net.msrp.utils.TextUtils;
 
 import org.junit.*;
 
@@ -45,6 +60,347 @@ public class TestSendingBinaryMessages extends TestFrame
         assertArrayEquals(data, receivedData);
     }
 
+    /**
+     * Tests sending a 5MB Message, over the short message limit, with a
+     * SegmentedMemoryDataContainer to a SegmentedMemoryDataContainer
+     */
+    @Test
+    public void test5MbBinMsgSegmented2Segmented() throws Exception
+    {
+        byte[] data = new byte[5 * 1024 * 1024];
+        fillBinary(data);
+
+        DataContainer received = container2Container(
+            new SegmentedMemoryDataContainer(data),
+            new SegmentedMemoryDataContainer(), true);
+
+        assertArrayEquals(data, received.get(0, 0).array());
+    }
+
+    /**
+     * Tests sending a 5MB Message from caller-owned direct buffers, which are
+     * released once sent
+     */
+    @Test
+    public void test5MbBinMsgFromBuffers() throws Exception
+    {
+        byte[] data = new byte[5 * 1024 * 1024];
+        fillBinary(data);
+        ByteBuffer first = ByteBuffer.allocateDirect(3 * 1024 * 1024);
+        first.put(data, 0, first.capacity()).flip();
+        ByteBuffer second = ByteBuffer.wrap(data, first.capacity(),
+            data.length - first.capacity()).asReadOnlyBuffer();
+        final CountDownLatch released = new CountDownLatch(1);
+
+        DataContainer received = container2Container(
+            new BufferDataContainer(new Runnable() {
+                @Override
+                public void run()
+                {
+                    released.countDown();
+                }
+            }, first, second),
+            new SegmentedMemoryDataContainer(), true);
+
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        assertEquals(0, first.position());
+        assertEquals(first.capacity(), second.position());
+        assertArrayEquals(data, received.get(0, 0).array());
+    }
+
+    /**
+     * Tests sending a 5MB Message asynchronously, following its delivery
+     */
+    @Test
+    public void test5MbBinMsgAsync() throws Exception
+    {
+        byte[] data = new byte[5 * 1024 * 1024];
+        fillBinary(data);
+        outMessage = new OutgoingMessage("plain/text", data);
+        outMessage.setSuccessReport(true);
+
+        MessageDelivery delivery = sendingSession.sendMessageAsync(outMessage);
+        triggerSendReceive(new SegmentedMemoryDataContainer());
+
+        assertSame(outMessage, delivery.written().get(10, TimeUnit.SECONDS));
+        assertSame(outMessage,
+            delivery.acknowledged().get(10, TimeUnit.SECONDS));
+        assertSame(outMessage, delivery.delivered().get(10, TimeUnit.SECONDS));
+        assertTrue(delivery.isDone());
+        wait4ComleteMessage();
+        assertArrayEquals(data, receivingSessionListener.getReceiveMessage()
+            .getDataContainer().get(0, 0).array());
+    }
+
+    /**
+     * Tests a message sent asynchronously and rejected with a 413 is still
+     * reported aborted
+     */
+    @Test
+    public void testAsyncRejected() throws Exception
+    {
+        byte[] data = new byte[1024];
+        fillBinary(data);
+        outMessage = new OutgoingMessage("plain/text", data);
+        MessageDelivery delivery = sendingSession.sendMessageAsync(outMessage);
+
+        receivingSessionListener.setAcceptHookResult(false);
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(receivingSession.getURI());
+        sendingSession.setToPath(toPath);
+
+        try
+        {
+            delivery.acknowledged().get(10, TimeUnit.SECONDS);
+            fail("message was rejected");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof DeliveryFailedException);
+            assertEquals(ResponseCode.RC413,
+                ((DeliveryFailedException) e.getCause()).getCode());
+        }
+        synchronized (sendingSessionListener.abortMessageCounter)
+        {
+            if (sendingSessionListener.abortMessageCounter.isEmpty())
+                sendingSessionListener.abortMessageCounter.wait(2000);
+        }
+        assertEquals(1, sendingSessionListener.abortMessageCounter.size());
+        assertEquals(ResponseCode.RC413,
+            sendingSessionListener.messageAbortEvents.get(0).getReason());
+    }
+
+    /**
+     * Tests a success report for the last chunk only doesn't complete the
+     * delivery
+     */
+    @Test
+    public void testAsyncDeliveredByWholeRange() throws Exception
+    {
+        OutgoingMessage message =
+            new OutgoingMessage("plain/text", new byte[10000]);
+        message.setSuccessReport(true);
+        MessageDelivery delivery = new MessageDelivery(message);
+
+        delivery.reportReceived(successReport("9001-10000/10000"));
+        assertFalse(delivery.delivered().isDone());
+        delivery.reportReceived(successReport("1-10000/10000"));
+        assertSame(message, delivery.delivered().getNow(null));
+    }
+
+    private static Transaction successReport(String byteRange)
+        throws Exception
+    {
+        String header = "To-Path: msrp://192.168.2.3:1234/asd23asd;tcp\r\n" +
+            "From-Path: msrp://192.168.2.3:1324/123asd;tcp\r\n" +
+            "Message-ID: 12345\r\n" + "Byte-Range: " + byteRange + "\r\n" +
+            "Status: 000 200 OK\r\n";
+        Transaction report = new Transaction("tid12345", TransactionType.REPORT,
+            new TransactionManager(), Direction.IN);
+        report.parse(header.getBytes(TextUtils.utf8), 0, header.length(),
+            false);
+        report.signalizeEnd('$');
+        return report;
+    }
+
+    /**
+     * Tests caller-owned buffers of a message that is rejected while it is
+     * being sent are still released
+     */
+    @Test
+    public void testBuffersReleasedWhenRejected() throws Exception
+    {
+        byte[] data = new byte[5 * 1024 * 1024];
+        fillBinary(data);
+        final CountDownLatch released = new CountDownLatch(1);
+        outMessage = new OutgoingMessage("plain/text", new Runnable() {
+                @Override
+                public void run()
+                {
+                    released.countDown();
+                }
+            }, ByteBuffer.wrap(data));
+        sendingSession.sendMessage(outMessage);
+
+        receivingSessionListener.setAcceptHookResult(false);
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(receivingSession.getURI());
+        sendingSession.setToPath(toPath);
+
+        assertTrue(released.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests the milestones that aren't reported fail right away
+     */
+    @Test
+    public void testAsyncUnreported() throws Exception
+    {
+        OutgoingMessage message =
+            new OutgoingMessage("plain/text", new byte[] { 1, 2, 3 });
+        message.setSuccessReport(false);
+        message.setFailureReport(Message.NO);
+
+        MessageDelivery delivery = new MessageDelivery(message);
+        assertFalse(delivery.written().isDone());
+        assertTrue(delivery.acknowledged().isCompletedExceptionally());
+        assertTrue(delivery.delivered().isCompletedExceptionally());
+        try
+        {
+            delivery.delivered().get();
+            fail("success report wasn't requested");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalUseException);
+        }
+        delivery.cancel();
+        assertTrue(delivery.written().isCancelled());
+        assertTrue(delivery.isDone());
+    }
+
+    /**
+     * Tests sending a Message read from a source that makes the sender wait
+     */
+    @Test
+    public void testBinMsgFromSlowSource() throws Exception
+    {
+        final byte[] data = new byte[256 * 1024];
+        fillBinary(data);
+        final Pipe pipe = Pipe.open();
+        Thread writer = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (int i = 0; i < data.length; i += data.length / 16)
+                    {
+                        pipe.sink().write(
+                            ByteBuffer.wrap(data, i, data.length / 16));
+                        Thread.sleep(20);
+                    }
+                    pipe.sink().close();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+
+        DataContainer received = container2Container(
+            new ChannelDataContainer(pipe.source()),
+            new MemoryDataContainer(data.length), true);
+
+        assertEquals(data.length, outMessage.getSize());
+        assertArrayEquals(data, received.get(0, 0).array());
+    }
+
+    /**
+     * Tests sending a 5MB Message read from a stream of unknown length
+     */
+    @Test
+    public void test5MbBinMsgFromStream() throws Exception
+    {
+        byte[] data = new byte[5 * 1024 * 1024];
+        fillBinary(data);
+
+        DataContainer received = container2Container(
+            new ChannelDataContainer(new ByteArrayInputStream(data)),
+            new SegmentedMemoryDataContainer(), true);
+
+        assertEquals(data.length, outMessage.getSize());
+        assertEquals(data.length, sendingSessionListener
+            .getReceivedReportTransaction().getTotalMessageBytes());
+        assertEquals(data.length,
+            receivingSessionListener.getReceiveMessage().getSize());
+        assertArrayEquals(data, received.get(0, 0).array());
+    }
+
+    /**
+     * Tests sending a 5MB Message read from a stream of unknown length in
+     * chunks of 1MB
+     */
+    @Test
+    public void test5MbBinMsgFromStreamChunked() throws Exception
+    {
+        byte[] data = new byte[5 * 1024 * 1024];
+        fillBinary(data);
+        sendingSession.setChunkSize(1024 * 1024);
+
+        DataContainer received = container2Container(
+            new ChannelDataContainer(new ByteArrayInputStream(data)),
+            new SegmentedMemoryDataContainer(), true);
+
+        assertTrue(outMessage.isComplete());
+        assertEquals(data.length,
+            receivingSessionListener.getReceiveMessage().getSize());
+        assertArrayEquals(data, received.get(0, 0).array());
+    }
+
+    /**
+     * Tests sending a 5MB Message to a SpillingDataContainer, which should
+     * move it to a file
+     */
+    @Test
+    public void test5MbBinMsgToSpilling() throws Exception
+    {
+        byte[] data = new byte[5 * 1024 * 1024];
+        fillBinary(data);
+
+        SpillingDataContainer received = (SpillingDataContainer)
+            container2Container(new SegmentedMemoryDataContainer(data),
+                new SpillingDataContainer(1024 * 1024, null), false);
+
+        assertTrue(received.isSpilled());
+        assertArrayEquals(data, Files.readAllBytes(received.getFile().toPath()));
+        File file = received.getFile();
+        received.dispose();
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Tests streaming a 5MB Message to the application while it is received,
+     * holding no more than 64KB at a time
+     */
+    @Test
+    public void test5MbBinMsgStreamed() throws Exception
+    {
+        byte[] data = new byte[5 * 1024 * 1024];
+        fillBinary(data);
+        final StreamingDataContainer stream =
+            new StreamingDataContainer(64 * 1024);
+        final ByteArrayOutputStream consumed = new ByteArrayOutputStream();
+        Thread consumer = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {				/* start late, the sender is held back */
+                    Thread.sleep(200);
+                    ByteBuffer slice;
+                    while ((slice = stream.take()) != null)
+                        consumed.write(slice.array(), slice.position(),
+                            slice.remaining());
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        consumer.start();
+
+        container2Container(new SegmentedMemoryDataContainer(data), stream,
+            true);
+        consumer.join(5000);
+
+        assertTrue(stream.isEnded());
+        assertArrayEquals(data, consumed.toByteArray());
+    }
+
     /**
      * Tests sending a 1MB Message with a MemoryDataContainer
      */
@@ -119,6 +475,20 @@ public class TestSendingBinaryMessages extends TestFrame
         assertFilesEqual();
     }
 
+    /**
+     * Tests sending a 5MB Message with a FileDataContainer to a
+     * MappedFileDataContainer
+     */
+    @Test
+    public void test5MbBinMsgFile2MappedFile()
+    {
+        byte[] data = new byte[5 * 1024 * 1024];
+        fillTempFile(data, true);
+        data = null;
+        file2MappedFile(false);
+        assertFilesEqual();
+    }
+
     /**
       * Tests sending a 300KB Message with a FileDataContainer to a
       * FileDataContainer
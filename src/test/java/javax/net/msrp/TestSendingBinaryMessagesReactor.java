@@ -0,0 +1,41 @@
+/* Copyright © João Antunes 2008
+ * This file is part of MSRP Java Stack.
+ *
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * The binary send/receive tests, with the I/O of the connections driven by
+ * the reactor engine instead of by a pair of threads per connection.
+ *
+ * @see Stack#setUseReactors(boolean)
+ */
+public class TestSendingBinaryMessagesReactor extends TestSendingBinaryMessages
+{
+    @BeforeClass
+    public static void useReactors()
+    {
+        Stack.setUseReactors(true);
+    }
+
+    @AfterClass
+    public static void useThreads()
+    {
+        Stack.setUseReactors(false);
+    }
+}
@@ -186,7 +186,8 @@ public class TestSendingSmallMessages extends TestFrame
 
             synchronized (receivingSessionListener)
             {
-                receivingSessionListener.wait();
+                if (receivingSessionListener.getNickname() == null)
+                    receivingSessionListener.wait(5000);
             }
     		assertEquals(receivingSessionListener.getNickname(), "Hairy Scary");
     		receivingSession.sendNickResult(
@@ -0,0 +1,95 @@
+/*
+ * Copyright © João Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test the timer wheel that runs the time-outs of the stack.
+ */
+public class TestTimerWheel
+{
+    private static final long TICK = 10;
+
+    /**
+     * Time-outs should expire, in order, and not before their delay passed;
+     * including those that take more than one round of the wheel.
+     */
+    @Test
+    public void testExpiry() throws InterruptedException
+    {
+        TimerWheel wheel = new TimerWheel("test timer", TICK, 8);
+        final long start = System.currentTimeMillis();
+        final long[] delays = { 250, 5, 40, 120 };
+        final long[] expired = new long[delays.length];
+        final CountDownLatch done = new CountDownLatch(delays.length);
+        for (int i = 0; i < delays.length; i++)
+        {
+            final int index = i;
+            wheel.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    expired[index] = System.currentTimeMillis() - start;
+                    done.countDown();
+                }
+            }, delays[i]);
+        }
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++)
+            assertTrue("expired after " + expired[i] + " ms, not " + delays[i],
+                expired[i] >= delays[i]);
+        assertTrue(expired[1] <= expired[2]);
+        assertTrue(expired[2] <= expired[3]);
+        assertTrue(expired[3] <= expired[0]);
+    }
+
+    /**
+     * A cancelled time-out should not expire.
+     */
+    @Test
+    public void testCancel() throws InterruptedException
+    {
+        TimerWheel wheel = new TimerWheel("test timer", TICK, 8);
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runs.incrementAndGet();
+            }
+        };
+        TimerWheel.Timeout cancelled = wheel.schedule(task, 50);
+        TimerWheel.Timeout kept = wheel.schedule(task, 50);
+        assertTrue(cancelled.isPending());
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.isPending());
+        assertFalse(cancelled.cancel());
+        Thread.sleep(200);
+        assertFalse(kept.isPending());
+        assertFalse(kept.cancel());
+        assertEquals(1, runs.get());
+    }
+}
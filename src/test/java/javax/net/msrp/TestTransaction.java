@@ -260,4 +260,33 @@ public class TestTransaction
         assertEquals(tx.getNickname(), "Hairy Scary");
         assertEquals(tx.getFailureReport(), "yes");
     }
+
+    static final String reportHeaders =
+            "To-Path: msrp://192.168.2.3:1234/asd23asd;tcp\r\n" +
+            "From-Path: msrp://192.168.2.3:1324/123asd;tcp\r\n" +
+            "X-Unknown-Header: Status: 000 500\r\n" +
+            "MESSAGE-ID: 12347\r\n" +
+            "byte-range: 1-10/10\r\n" +
+            "failure-REPORT:  Partial \r\n" +
+            "STATUS: 000 200 OK\r\n";
+
+    @Test
+    public void testParsingMixedCaseAndUnknownHeaders()
+        throws InvalidHeaderException,
+        ImplementationException, IllegalUseException
+    {
+        Transaction tx =
+            new Transaction(tID, TransactionType.REPORT,
+                dummyTransactionManager, Direction.IN);
+        tx.parse(reportHeaders.getBytes(TextUtils.utf8), 0,
+            reportHeaders.length(), false);
+        tx.signalizeEnd('$');
+
+        assertEquals("12347", tx.getMessageID());
+        assertArrayEquals(new long[] { 1, 10 }, tx.getByteRange());
+        assertEquals(10, tx.getTotalMessageBytes());
+        assertEquals("partial", tx.getFailureReport());
+        assertEquals(200, tx.getStatusHeader().getStatusCode());
+        assertEquals("OK", tx.getStatusHeader().getComment());
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright © João Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import javax.net.msrp.exceptions.IllegalUseException;
+
+import org.junit.Test;
+
+/**
+ * Test the send queue of a {@link TransactionManager}.
+ */
+public class TestTransactionQueue
+{
+    private TransactionManager manager = new TransactionManager();
+
+    private Transaction transaction(String tid, TransactionType type)
+        throws IllegalUseException
+    {
+        return new Transaction(tid, type, manager, Direction.OUT);
+    }
+
+    /**
+     * Responses go before REPORTs, which go before requests; the transaction
+     * being sent stays at the head until removed.
+     */
+    @Test
+    public void testLanes() throws IllegalUseException
+    {
+        TransactionQueue queue = new TransactionQueue();
+        Transaction send1 = transaction("send1", TransactionType.SEND);
+        Transaction send2 = transaction("send2", TransactionType.SEND);
+        Transaction report = transaction("report", TransactionType.REPORT);
+        Transaction response = transaction("response", TransactionType.RESPONSE);
+
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+        queue.add(send1);
+        queue.add(send2);
+        assertSame(send1, queue.peek());
+        queue.add(report);
+        queue.add(response);
+        assertEquals(4, queue.size());
+        assertSame(send1, queue.peek());		// being sent
+        assertSame(send1, queue.current());
+
+        assertTrue(queue.remove(send1));
+        assertFalse(queue.remove(send1));
+        assertNull(queue.current());
+        assertSame(response, queue.peek());
+        assertTrue(queue.remove(response));
+        assertSame(report, queue.peek());
+        assertTrue(queue.remove(report));
+        assertSame(send2, queue.peek());
+        assertTrue(queue.remove(send2));
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+    }
+
+    /**
+     * Requests are found by their message and can be removed from the middle
+     * of the queue.
+     */
+    @Test
+    public void testMessageIndex() throws IllegalUseException
+    {
+        TransactionQueue queue = new TransactionQueue();
+        Message message = new OutgoingMessage("text/plain", new byte[10]);
+        Message other = new OutgoingMessage("text/plain", new byte[10]);
+        Transaction first = transaction("first", TransactionType.SEND);
+        Transaction between = transaction("between", TransactionType.SEND);
+        Transaction second = transaction("second", TransactionType.SEND);
+        first.message = message;
+        between.message = other;
+        second.message = message;
+        queue.add(first);
+        queue.add(between);
+        queue.add(second);
+
+        assertEquals(Arrays.asList(first, second), queue.get(message));
+        assertEquals(Arrays.asList(between), queue.get(other));
+
+        assertTrue(queue.remove(between));
+        assertTrue(queue.get(other).isEmpty());
+        assertTrue(queue.remove(first));
+        assertEquals(Arrays.asList(second), queue.get(message));
+        assertSame(second, queue.peek());
+        assertEquals(1, queue.size());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright © João Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test the lifecycle of the requests kept by the {@link TransactionManager}.
+ */
+public class TestTransactionRetirement extends TestFrame
+{
+    /**
+     * Once a message has been sent and its responses received, none of its
+     * requests should be remembered by the sending side anymore.
+     */
+    @Test
+    public void testRetiredOnResponse()
+    {
+        try
+        {
+            byte[] data = new byte[5 * 1024];
+            fillText(data);
+            assertArrayEquals(data, memory2Memory(data, false, 1024));
+
+            TransactionManager txManager =
+                sendingSession.getTransactionManager();
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!txManager.getExistingTransactions().isEmpty() &&
+                    System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue(txManager.getExistingTransactions().isEmpty());
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+}